@@ -0,0 +1,484 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Graph-coloring register allocation (Chaitin-Briggs). Maps the virtual
+ * registers of every function onto k physical registers (see
+ * {@link ILOCOperand#newPhysicalReg}). Slower than
+ * {@link AllocateRegistersLinearScan}, but usually produces much less spill
+ * code and removes most register-to-register copies.
+ *
+ * Each round builds an interference graph from liveness (the source and
+ * destination of an {@code i2i} do not interfere by themselves), then
+ * coalesces copies using Briggs' conservative test so that coalescing never
+ * makes the graph harder to color. Nodes are removed in simplify order and
+ * colored optimistically; if some node cannot be colored, every such node is
+ * spilled and the round is repeated on the rewritten code.
+ *
+ * Spill costs count the definitions and uses of a node, weighted by
+ * 10^(loop depth). Registers whose only definitions load the same constant
+ * are rematerialized (the {@code loadI} is repeated before every use) instead
+ * of being stored to the stack frame. Other spilled registers get a stack
+ * slot (growing {@link ILOCFunction#localSize}) with a reload before every use
+ * and a store after every definition, each through a new short-lived register
+ * that is never spilled again.
+ *
+ * Register allocation must run after all other passes that create registers,
+ * and the program must not be in SSA form.
+ */
+public class AllocateRegistersGraphColoring extends ILOCManagedPass
+{
+    /**
+     * Smallest supported number of physical registers (one instruction can
+     * read three spilled registers)
+     */
+    public static final int MIN_REGISTERS = 3;
+
+    /**
+     * Loop depth beyond which spill costs no longer grow
+     */
+    private static final int MAX_WEIGHT_DEPTH = 8;
+
+    /**
+     * Entry in the spill candidate queue; entries go stale when the node is
+     * removed or its degree drops (a fresh entry is queued in that case)
+     */
+    private static class Candidate
+    {
+        int node;
+        int degree;
+        double priority;        // spill cost per interference
+
+        Candidate(int node, int degree, double priority)
+        {
+            this.node = node;
+            this.degree = degree;
+            this.priority = priority;
+        }
+    }
+
+    private int numRegisters;
+
+    // per-round state (indexed by dense register number)
+    private ILOCRegisterIndex registers;
+    private BitSet[] adj;
+    private int[] alias;
+    private double[] cost;
+    private Integer[] constant;     // rematerializable value, if any
+    private int[] color;            // physical register, or -1 if spilled
+
+    // IDs of registers created by spill code (per function)
+    private Set<Integer> noSpill;
+
+    /**
+     * Create an allocator for the given number of physical registers
+     * @param numRegisters Number of physical registers (k)
+     */
+    public AllocateRegistersGraphColoring(int numRegisters)
+    {
+        assert(numRegisters >= MIN_REGISTERS);
+        this.numRegisters = numRegisters;
+    }
+
+    public Set<ILOCAnalysisManager.Analysis> getPreservedAnalyses()
+    {
+        return ILOCAnalysisManager.CFG_ONLY;
+    }
+
+    protected void transform(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            noSpill = new HashSet<Integer>();
+            while (true) {
+                ILOCLiveness liveness = analyses.getLiveness(func);
+                registers = liveness.getRegisterIndex();
+                build(func, liveness);
+                coalesce(func);
+                computeCosts(func, analyses.getLoops(func));
+                List<Integer> spilled = colorGraph();
+                if (spilled.isEmpty()) {
+                    break;
+                }
+                insertSpillCode(func, spilled);
+                analyses.invalidate(func, ILOCAnalysisManager.Analysis.LIVENESS);
+            }
+            rewrite(func);
+            func.updateInstructionsFromCFG();
+            analyses.invalidate(func, ILOCAnalysisManager.Analysis.LIVENESS);
+        }
+    }
+
+    /**
+     * Returns true if the instruction is a copy between virtual registers
+     */
+    private static boolean isCopy(ILOCInstruction insn)
+    {
+        return insn.form == ILOCInstruction.Form.I2I &&
+            ILOCRegisterIndex.isVirtual(insn.operands[0]) &&
+            ILOCRegisterIndex.isVirtual(insn.operands[1]);
+    }
+
+    /**
+     * Build the interference graph by walking every block backwards from its
+     * live-out set
+     */
+    private void build(ILOCFunction func, ILOCLiveness liveness)
+    {
+        int n = registers.size();
+        adj = new BitSet[n];
+        alias = new int[n];
+        for (int r = 0; r < n; r++) {
+            adj[r] = new BitSet();
+            alias[r] = r;
+        }
+        for (ILOCBasicBlock b : func.allBlocks) {
+            BitSet live = (BitSet)liveness.getLiveOut(b).clone();
+            for (int i = b.instructions.size() - 1; i >= 0; i--) {
+                ILOCInstruction insn = b.instructions.get(i);
+                assert(insn.form != ILOCInstruction.Form.PHI);
+                if (isCopy(insn)) {
+                    // the copy's source and destination may share a register
+                    live.clear(registers.indexOf(insn.operands[0]));
+                }
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    int d = registers.indexOf(op);
+                    if (d < 0) {
+                        continue;
+                    }
+                    for (int l = live.nextSetBit(0); l >= 0; l = live.nextSetBit(l + 1)) {
+                        if (l != d) {
+                            adj[d].set(l);
+                            adj[l].set(d);
+                        }
+                    }
+                    live.clear(d);
+                }
+                for (ILOCOperand op : insn.getReadOperands()) {
+                    int r = registers.indexOf(op);
+                    if (r >= 0) {
+                        live.set(r);
+                    }
+                }
+            }
+        }
+    }
+
+    private int find(int r)
+    {
+        while (alias[r] != r) {
+            alias[r] = alias[alias[r]];
+            r = alias[r];
+        }
+        return r;
+    }
+
+    /**
+     * Merge the nodes of copies whenever the combined node would have fewer
+     * than k neighbors of significant degree (Briggs' test), until no more
+     * copies can be coalesced
+     */
+    private void coalesce(ILOCFunction func)
+    {
+        List<ILOCInstruction> copies = new ArrayList<ILOCInstruction>();
+        for (ILOCBasicBlock b : func.allBlocks) {
+            for (ILOCInstruction insn : b.instructions) {
+                if (isCopy(insn) && !noSpill.contains(insn.operands[0].id) &&
+                        !noSpill.contains(insn.operands[1].id)) {
+                    copies.add(insn);
+                }
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (ILOCInstruction copy : copies) {
+                int u = find(registers.indexOf(copy.operands[0]));
+                int v = find(registers.indexOf(copy.operands[1]));
+                if (u == v || adj[u].get(v)) {
+                    continue;
+                }
+                BitSet neighbors = (BitSet)adj[u].clone();
+                neighbors.or(adj[v]);
+                int significant = 0;
+                for (int w = neighbors.nextSetBit(0); w >= 0; w = neighbors.nextSetBit(w + 1)) {
+                    if (adj[w].cardinality() >= numRegisters) {
+                        significant++;
+                    }
+                }
+                if (significant >= numRegisters) {
+                    continue;
+                }
+
+                // merge v into u
+                for (int w = adj[v].nextSetBit(0); w >= 0; w = adj[v].nextSetBit(w + 1)) {
+                    adj[w].clear(v);
+                    adj[w].set(u);
+                }
+                adj[u].or(adj[v]);
+                adj[v].clear();
+                alias[v] = u;
+                changed = true;
+            }
+        }
+    }
+
+    /**
+     * Estimate the cost of spilling each node and find the nodes that can be
+     * rematerialized
+     */
+    private void computeCosts(ILOCFunction func, ILOCLoops loops)
+    {
+        int n = registers.size();
+        cost = new double[n];
+        constant = new Integer[n];
+        boolean[] remat = new boolean[n];
+        Arrays.fill(remat, true);
+        for (ILOCBasicBlock b : func.allBlocks) {
+            double weight = Math.pow(10, Math.min(loops.getDepth(b), MAX_WEIGHT_DEPTH));
+            for (ILOCInstruction insn : b.instructions) {
+                for (ILOCOperand op : insn.getReadOperands()) {
+                    int r = registers.indexOf(op);
+                    if (r >= 0) {
+                        cost[find(r)] += weight;
+                    }
+                }
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    int r = registers.indexOf(op);
+                    if (r < 0) {
+                        continue;
+                    }
+                    r = find(r);
+                    cost[r] += weight;
+                    if (insn.form != ILOCInstruction.Form.LOAD_I ||
+                            (constant[r] != null &&
+                             constant[r] != insn.operands[0].intConstant)) {
+                        remat[r] = false;
+                    } else {
+                        constant[r] = insn.operands[0].intConstant;
+                    }
+                }
+            }
+        }
+        for (int r = 0; r < n; r++) {
+            if (!remat[r]) {
+                constant[r] = null;
+            }
+        }
+        for (int r = 0; r < n; r++) {
+            if (noSpill.contains(registers.idAt(r))) {
+                cost[find(r)] = Double.POSITIVE_INFINITY;
+            }
+        }
+    }
+
+    /**
+     * Simplify the graph and then assign colors in reverse order, coloring
+     * optimistically (Briggs) when a spill candidate has to be removed
+     * @return Nodes that could not be colored
+     */
+    private List<Integer> colorGraph()
+    {
+        int n = registers.size();
+        int k = numRegisters;
+        int[] degree = new int[n];
+        boolean[] removed = new boolean[n];
+        Deque<Integer> low = new ArrayDeque<Integer>();
+        PriorityQueue<Candidate> high = new PriorityQueue<Candidate>(11, new Comparator<Candidate>() {
+            public int compare(Candidate a, Candidate b)
+            {
+                int c = Double.compare(a.priority, b.priority);
+                return (c != 0 ? c : Integer.compare(a.node, b.node));
+            }
+        });
+        int remaining = 0;
+        for (int r = 0; r < n; r++) {
+            if (find(r) != r) {
+                removed[r] = true;
+                continue;
+            }
+            degree[r] = adj[r].cardinality();
+            remaining++;
+            if (degree[r] < k) {
+                low.push(r);
+            } else {
+                high.add(new Candidate(r, degree[r], cost[r] / degree[r]));
+            }
+        }
+
+        int[] order = new int[remaining];
+        int count = 0;
+        while (count < remaining) {
+            int r;
+            if (!low.isEmpty()) {
+                r = low.pop();
+            } else {
+                // potential spill: cheapest cost per interference
+                Candidate c = high.poll();
+                while (removed[c.node] || c.degree != degree[c.node]) {
+                    c = high.poll();
+                }
+                r = c.node;
+            }
+            if (removed[r]) {
+                continue;
+            }
+            removed[r] = true;
+            order[count++] = r;
+            for (int w = adj[r].nextSetBit(0); w >= 0; w = adj[r].nextSetBit(w + 1)) {
+                if (!removed[w] && --degree[w] == k - 1) {
+                    low.push(w);
+                } else if (!removed[w] && degree[w] >= k) {
+                    high.add(new Candidate(w, degree[w], cost[w] / degree[w]));
+                }
+            }
+        }
+
+        color = new int[n];
+        Arrays.fill(color, -1);
+        List<Integer> spilled = new ArrayList<Integer>();
+        BitSet used = new BitSet(k);
+        for (int i = count - 1; i >= 0; i--) {
+            int r = order[i];
+            used.clear();
+            for (int w = adj[r].nextSetBit(0); w >= 0; w = adj[r].nextSetBit(w + 1)) {
+                if (color[w] >= 0) {
+                    used.set(color[w]);
+                }
+            }
+            int c = used.nextClearBit(0);
+            if (c < k) {
+                color[r] = c;
+            } else {
+                assert(cost[r] != Double.POSITIVE_INFINITY);
+                spilled.add(r);
+            }
+        }
+        return spilled;
+    }
+
+    /**
+     * Rewrite all references to spilled nodes, either rematerializing their
+     * constant or going through a stack slot
+     */
+    private void insertSpillCode(ILOCFunction func, List<Integer> spilled)
+    {
+        Set<Integer> spilledNodes = new HashSet<Integer>(spilled);
+        Map<Integer, Integer> slots = new HashMap<Integer, Integer>();
+        for (int r : spilled) {
+            if (constant[r] == null) {
+                slots.put(r, func.allocateLocal(Symbol.WORD_SIZE));
+            }
+        }
+
+        for (ILOCBasicBlock b : func.allBlocks) {
+            List<ILOCInstruction> code = new ArrayList<ILOCInstruction>();
+            for (ILOCInstruction insn : b.instructions) {
+                ILOCOperand[] ops = insn.operands;
+
+                // locate the written operand before any operands are replaced
+                int writePos = -1;
+                if (insn.getWriteOperands().size() == 1) {
+                    ILOCOperand w = insn.getWriteOperand();
+                    for (writePos = ops.length - 1; ops[writePos] != w; writePos--) { }
+                }
+                int def = (writePos >= 0 ? registers.indexOf(ops[writePos]) : -1);
+                def = (def >= 0 ? find(def) : -1);
+
+                // a rematerialized definition is simply dropped
+                if (def >= 0 && spilledNodes.contains(def) && constant[def] != null) {
+                    continue;
+                }
+
+                // register reads always come first in the operand list
+                int numReads = insn.getReadOperands().size();
+                Map<Integer, ILOCOperand> reloaded = new HashMap<Integer, ILOCOperand>();
+                for (int i = 0; i < numReads; i++) {
+                    int r = registers.indexOf(ops[i]);
+                    if (r < 0 || !spilledNodes.contains(find(r))) {
+                        continue;
+                    }
+                    r = find(r);
+                    if (!reloaded.containsKey(r)) {
+                        ILOCOperand temp = newTemp();
+                        code.add(constant[r] != null ?
+                                newLoadConstant(constant[r], temp, ops[i]) :
+                                newLoad(slots.get(r), temp, ops[i]));
+                        reloaded.put(r, temp);
+                    }
+                    ops[i] = reloaded.get(r);
+                }
+
+                code.add(insn);
+                if (def >= 0 && spilledNodes.contains(def)) {
+                    ILOCOperand temp = newTemp();
+                    code.add(newStore(temp, slots.get(def), ops[writePos]));
+                    ops[writePos] = temp;
+                }
+            }
+            b.instructions.clear();
+            b.instructions.addAll(code);
+        }
+    }
+
+    private ILOCOperand newTemp()
+    {
+        ILOCOperand temp = ILOCOperand.newVirtualReg();
+        noSpill.add(temp.id);
+        return temp;
+    }
+
+    /**
+     * Replace every virtual register with its color and drop copies whose
+     * source and destination ended up in the same register
+     */
+    private void rewrite(ILOCFunction func)
+    {
+        ILOCOperand[] physical = new ILOCOperand[numRegisters];
+        for (int p = 0; p < numRegisters; p++) {
+            physical[p] = ILOCOperand.newPhysicalReg(p);
+        }
+        for (ILOCBasicBlock b : func.allBlocks) {
+            Iterator<ILOCInstruction> it = b.instructions.iterator();
+            while (it.hasNext()) {
+                ILOCInstruction insn = it.next();
+                ILOCOperand[] ops = insn.operands;
+                for (int i = 0; i < ops.length; i++) {
+                    int r = registers.indexOf(ops[i]);
+                    if (r >= 0) {
+                        ops[i] = physical[color[find(r)]];
+                    }
+                }
+                if (insn.form == ILOCInstruction.Form.I2I && ops[0] == ops[1]) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static ILOCInstruction newLoadConstant(int value, ILOCOperand dest,
+            ILOCOperand original)
+    {
+        ILOCOperand[] ops = { ILOCOperand.newIntConstant(value), dest };
+        return new ILOCInstruction(ILOCInstruction.Form.LOAD_I, ops,
+                "rematerialize " + original);
+    }
+
+    private static ILOCInstruction newLoad(int offset, ILOCOperand dest,
+            ILOCOperand original)
+    {
+        ILOCOperand[] ops = { ILOCOperand.REG_BP,
+            ILOCOperand.newIntConstant(offset), dest };
+        return new ILOCInstruction(ILOCInstruction.Form.LOAD_AI, ops,
+                "reload " + original);
+    }
+
+    private static ILOCInstruction newStore(ILOCOperand src, int offset,
+            ILOCOperand original)
+    {
+        ILOCOperand[] ops = { src, ILOCOperand.REG_BP,
+            ILOCOperand.newIntConstant(offset) };
+        return new ILOCInstruction(ILOCInstruction.Form.STORE_AI, ops,
+                "spill " + original);
+    }
+}
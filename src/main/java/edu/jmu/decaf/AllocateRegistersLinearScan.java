@@ -0,0 +1,344 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Linear-scan register allocation (Poletto and Sarkar). Maps the virtual
+ * registers of every function onto k physical registers (see
+ * {@link ILOCOperand#newPhysicalReg}).
+ *
+ * Each virtual register gets a single live interval spanning every position
+ * where it is live, using the instructions in their linear order. Intervals
+ * are visited in order of increasing start; when no register is free, the
+ * interval that ends last is spilled to a new slot in the stack frame (which
+ * grows {@link ILOCFunction#localSize}).
+ *
+ * Every use of a spilled register is preceded by a reload into a scratch
+ * register, and every definition is followed by a store. Up to three scratch
+ * registers are reserved, but only as many as the spill code actually needs
+ * (no more than the spilled operands of any one instruction), so most
+ * functions keep all k registers for allocation. The allocator therefore
+ * needs at least {@link #MIN_REGISTERS} registers.
+ *
+ * Interval construction, sorting (by bucketing on start position), and the
+ * scan itself are linear in the size of the function, apart from a
+ * logarithmic factor for the set of active intervals. Register allocation
+ * must run after all other passes that create registers, and the program
+ * must not be in SSA form.
+ */
+public class AllocateRegistersLinearScan extends ILOCManagedPass
+{
+    /**
+     * Smallest supported number of physical registers (one instruction can
+     * read three spilled registers)
+     */
+    public static final int MIN_REGISTERS = 3;
+
+    private int numRegisters;
+
+    // per-function state (indexed by dense register number)
+    private ILOCRegisterIndex registers;
+    private int[] start;
+    private int[] end;
+    private int[] assigned;     // physical register, or -1 if spilled
+
+    /**
+     * Create an allocator for the given number of physical registers
+     * @param numRegisters Number of physical registers (k)
+     */
+    public AllocateRegistersLinearScan(int numRegisters)
+    {
+        assert(numRegisters >= MIN_REGISTERS);
+        this.numRegisters = numRegisters;
+    }
+
+    public Set<ILOCAnalysisManager.Analysis> getPreservedAnalyses()
+    {
+        return ILOCAnalysisManager.CFG_ONLY;
+    }
+
+    protected void transform(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            ILOCLiveness liveness = analyses.getLiveness(func);
+            registers = liveness.getRegisterIndex();
+            buildIntervals(func, liveness);
+
+            // reserve as many scratch registers as the spill code needs
+            int scratch = 0;
+            while (true) {
+                scan(numRegisters - scratch);
+                int needed = scratchNeeded(func);
+                if (needed <= scratch) {
+                    break;
+                }
+                scratch = needed;
+            }
+
+            rewrite(func, numRegisters - scratch);
+            func.updateInstructionsFromCFG();
+            analyses.invalidate(func, ILOCAnalysisManager.Analysis.LIVENESS);
+        }
+    }
+
+    /**
+     * Compute the live interval of every register from the linear
+     * instruction positions and the block-level liveness sets
+     */
+    private void buildIntervals(ILOCFunction func, ILOCLiveness liveness)
+    {
+        int n = registers.size();
+        start = new int[n];
+        end = new int[n];
+        Arrays.fill(start, Integer.MAX_VALUE);
+        Arrays.fill(end, -1);
+        int pos = 0;
+        for (ILOCBasicBlock b : func.allBlocks) {
+            int first = pos;
+            for (ILOCInstruction insn : b.instructions) {
+                for (ILOCOperand op : insn.operands) {
+                    int r = registers.indexOf(op);
+                    if (r >= 0) {
+                        extend(r, pos);
+                    }
+                }
+                pos++;
+            }
+            int last = pos - 1;
+            if (last < first) {
+                continue;       // empty block
+            }
+            BitSet in = liveness.getLiveIn(b);
+            for (int r = in.nextSetBit(0); r >= 0; r = in.nextSetBit(r + 1)) {
+                extend(r, first);
+            }
+            BitSet out = liveness.getLiveOut(b);
+            for (int r = out.nextSetBit(0); r >= 0; r = out.nextSetBit(r + 1)) {
+                extend(r, last);
+            }
+        }
+    }
+
+    private void extend(int r, int pos)
+    {
+        start[r] = Math.min(start[r], pos);
+        end[r] = Math.max(end[r], pos);
+    }
+
+    /**
+     * Assign registers to intervals in order of increasing start point
+     * @param available Number of allocatable registers
+     */
+    private void scan(int available)
+    {
+        int n = registers.size();
+        assigned = new int[n];
+        Arrays.fill(assigned, -1);
+
+        // sort intervals by start (bucket sort on position)
+        int maxPos = 0;
+        for (int r = 0; r < n; r++) {
+            if (end[r] >= 0) {
+                maxPos = Math.max(maxPos, start[r]);
+            }
+        }
+        int[] bucket = new int[maxPos + 2];
+        for (int r = 0; r < n; r++) {
+            if (end[r] >= 0) {
+                bucket[start[r] + 1]++;
+            }
+        }
+        for (int i = 0; i <= maxPos; i++) {
+            bucket[i + 1] += bucket[i];
+        }
+        int[] order = new int[n];
+        int count = 0;
+        for (int r = 0; r < n; r++) {
+            if (end[r] >= 0) {
+                order[bucket[start[r]]++] = r;
+                count++;
+            }
+        }
+
+        // active intervals, ordered by end point (ties by register)
+        TreeSet<Long> active = new TreeSet<Long>();
+        Deque<Integer> free = new ArrayDeque<Integer>();
+        for (int p = available - 1; p >= 0; p--) {
+            free.push(p);
+        }
+        for (int i = 0; i < count; i++) {
+            int r = order[i];
+
+            // expire intervals that end before this one starts (an instruction
+            // reads its operands before writing its result, so a register can
+            // be reused by the instruction that ends its interval)
+            while (!active.isEmpty() && endOf(active.first()) <= start[r]) {
+                free.push(assigned[regOf(active.pollFirst())]);
+            }
+
+            if (!free.isEmpty()) {
+                assigned[r] = free.pop();
+                active.add(key(r));
+            } else if (!active.isEmpty() && endOf(active.last()) > end[r]) {
+                // spill the active interval that ends last
+                int victim = regOf(active.pollLast());
+                assigned[r] = assigned[victim];
+                assigned[victim] = -1;
+                active.add(key(r));
+            }
+            // otherwise r itself is spilled
+        }
+    }
+
+    private long key(int r)
+    {
+        return ((long)end[r] << 32) | r;
+    }
+
+    private static int endOf(long key)
+    {
+        return (int)(key >>> 32);
+    }
+
+    private static int regOf(long key)
+    {
+        return (int)(key & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the largest number of distinct spilled registers read by any
+     * single instruction (definitions reuse a read's scratch register)
+     */
+    private int scratchNeeded(ILOCFunction func)
+    {
+        int needed = 0;
+        for (ILOCInstruction insn : func.getInstructions()) {
+            List<ILOCOperand> reads = insn.getReadOperands();
+            int spilled = 0;
+            for (int i = 0; i < reads.size(); i++) {
+                if (isSpilled(reads.get(i)) && !readEarlier(reads, i)) {
+                    spilled++;
+                }
+            }
+            if (spilled == 0 && insn.getWriteOperands().size() == 1 &&
+                    isSpilled(insn.getWriteOperand())) {
+                spilled = 1;
+            }
+            needed = Math.max(needed, spilled);
+        }
+        return needed;
+    }
+
+    private boolean isSpilled(ILOCOperand op)
+    {
+        int r = registers.indexOf(op);
+        return r >= 0 && assigned[r] == -1;
+    }
+
+    private static boolean readEarlier(List<ILOCOperand> reads, int i)
+    {
+        for (int j = 0; j < i; j++) {
+            if (reads.get(j).id == reads.get(i).id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace every virtual register with its physical register, inserting
+     * spill code for spilled registers
+     * @param firstScratch Number of the first scratch register
+     */
+    private void rewrite(ILOCFunction func, int firstScratch)
+    {
+        ILOCOperand[] physical = new ILOCOperand[numRegisters];
+        for (int p = 0; p < numRegisters; p++) {
+            physical[p] = ILOCOperand.newPhysicalReg(p);
+        }
+        Map<Integer, Integer> slots = new HashMap<Integer, Integer>();
+
+        for (ILOCBasicBlock b : func.allBlocks) {
+            List<ILOCInstruction> code = new ArrayList<ILOCInstruction>();
+            for (ILOCInstruction insn : b.instructions) {
+                assert(insn.form != ILOCInstruction.Form.PHI);
+                ILOCOperand[] ops = insn.operands;
+                List<ILOCInstruction> after = new ArrayList<ILOCInstruction>();
+
+                // locate the written operand before any operands are replaced
+                int writePos = -1;
+                if (insn.getWriteOperands().size() == 1) {
+                    ILOCOperand w = insn.getWriteOperand();
+                    for (writePos = ops.length - 1; ops[writePos] != w; writePos--) { }
+                }
+
+                // register reads always come first in the operand list
+                int numReads = insn.getReadOperands().size();
+                Map<Integer, ILOCOperand> reloaded = new HashMap<Integer, ILOCOperand>();
+                for (int i = 0; i < numReads; i++) {
+                    int r = registers.indexOf(ops[i]);
+                    if (r < 0) {
+                        continue;
+                    }
+                    if (assigned[r] >= 0) {
+                        ops[i] = physical[assigned[r]];
+                    } else if (reloaded.containsKey(r)) {
+                        ops[i] = reloaded.get(r);
+                    } else {
+                        ILOCOperand temp = physical[firstScratch + reloaded.size()];
+                        code.add(newLoad(slotFor(func, slots, r), temp, ops[i]));
+                        reloaded.put(r, temp);
+                        ops[i] = temp;
+                    }
+                }
+
+                if (writePos >= 0) {
+                    int r = registers.indexOf(ops[writePos]);
+                    if (r >= 0 && assigned[r] >= 0) {
+                        ops[writePos] = physical[assigned[r]];
+                    } else if (r >= 0) {
+                        ILOCOperand temp = (reloaded.containsKey(r) ?
+                                reloaded.get(r) : physical[firstScratch]);
+                        after.add(newStore(temp, slotFor(func, slots, r), ops[writePos]));
+                        ops[writePos] = temp;
+                    }
+                }
+
+                code.add(insn);
+                code.addAll(after);
+            }
+            b.instructions.clear();
+            b.instructions.addAll(code);
+        }
+    }
+
+    /**
+     * Returns the stack slot (offset from bp) of a spilled register,
+     * allocating it on first use
+     */
+    private static int slotFor(ILOCFunction func, Map<Integer, Integer> slots, int r)
+    {
+        if (!slots.containsKey(r)) {
+            slots.put(r, func.allocateLocal(Symbol.WORD_SIZE));
+        }
+        return slots.get(r);
+    }
+
+    private static ILOCInstruction newLoad(int offset, ILOCOperand dest,
+            ILOCOperand original)
+    {
+        ILOCOperand[] ops = { ILOCOperand.REG_BP,
+            ILOCOperand.newIntConstant(offset), dest };
+        return new ILOCInstruction(ILOCInstruction.Form.LOAD_AI, ops,
+                "reload " + original);
+    }
+
+    private static ILOCInstruction newStore(ILOCOperand src, int offset,
+            ILOCOperand original)
+    {
+        ILOCOperand[] ops = { src, ILOCOperand.REG_BP,
+            ILOCOperand.newIntConstant(offset) };
+        return new ILOCInstruction(ILOCInstruction.Form.STORE_AI, ops,
+                "spill " + original);
+    }
+}
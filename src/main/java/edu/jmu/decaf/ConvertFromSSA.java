@@ -0,0 +1,257 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Translates functions out of SSA form by replacing every phi with copies on
+ * the incoming edges. Copies for an edge are placed at the end of the
+ * predecessor block, unless the edge is critical (i.e., the predecessor ends
+ * with a conditional branch), in which case the edge is split with a new
+ * block that holds the copies and then jumps to the original target.
+ *
+ * All phis at the top of a block execute simultaneously, so the copies on
+ * each edge form a parallel copy. They are sequentialized so that no source
+ * is overwritten before it is read, breaking cycles (e.g., the classic swap
+ * problem) with a temporary register.
+ *
+ * Phis whose values are never used by a real instruction (minimal SSA has
+ * many, often in cycles that liveness-based dead code elimination cannot
+ * break) are dropped first, because their operands need not be defined on
+ * every path.
+ */
+public class ConvertFromSSA implements ILOCProcessor
+{
+    public ConvertFromSSA()
+    {
+    }
+
+    public void process(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            removeUselessPhis(func);
+            func.invalidateCFG();
+            func.getEntryBlock();
+
+            // registers that are actually defined (phi operands without a
+            // reaching definition are ignored)
+            Set<Integer> defined = new HashSet<Integer>();
+            for (ILOCInstruction insn : func.getInstructions()) {
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    if (ILOCRegisterIndex.isVirtual(op)) {
+                        defined.add(op.id);
+                    }
+                }
+            }
+
+            // new blocks for split edges, keyed by the block they follow
+            Map<ILOCBasicBlock, List<ILOCBasicBlock>> splits =
+                new HashMap<ILOCBasicBlock, List<ILOCBasicBlock>>();
+
+            for (ILOCBasicBlock b : func.allBlocks) {
+                List<ILOCInstruction> phis = removePhis(b);
+                if (phis.isEmpty()) {
+                    continue;
+                }
+                for (int j = 0; j < b.sources.size(); j++) {
+                    ILOCBasicBlock p = b.sources.get(j);
+                    List<ILOCOperand[]> copies = new ArrayList<ILOCOperand[]>();
+                    for (ILOCInstruction phi : phis) {
+                        ILOCOperand src = phi.operands[j];
+                        ILOCOperand dst = phi.operands[phi.operands.length - 1];
+                        if (src.id != dst.id && defined.contains(src.id)) {
+                            copies.add(new ILOCOperand[] { src, dst });
+                        }
+                    }
+                    if (copies.isEmpty()) {
+                        continue;
+                    }
+                    List<ILOCInstruction> seq = sequentialize(copies);
+                    if (p.targets.size() > 1) {
+                        if (!splits.containsKey(p)) {
+                            splits.put(p, new ArrayList<ILOCBasicBlock>());
+                        }
+                        splits.get(p).add(splitEdge(p, b, seq));
+                    } else {
+                        int pos = p.instructions.size();
+                        ILOCInstruction last = p.instructions.get(pos - 1);
+                        if (last.form == ILOCInstruction.Form.JUMP) {
+                            pos--;
+                        }
+                        p.instructions.addAll(pos, seq);
+                    }
+                }
+            }
+
+            List<ILOCInstruction> code = new ArrayList<ILOCInstruction>();
+            for (ILOCBasicBlock b : func.allBlocks) {
+                code.addAll(b.instructions);
+                if (splits.containsKey(b)) {
+                    for (ILOCBasicBlock s : splits.get(b)) {
+                        code.addAll(s.instructions);
+                    }
+                }
+            }
+            func.setInstructions(code);
+            func.invalidateCFG();
+        }
+    }
+
+    /**
+     * Remove all phis that do not (transitively) feed a non-phi instruction
+     */
+    private static void removeUselessPhis(ILOCFunction func)
+    {
+        Map<Integer, ILOCInstruction> phiByDest = new HashMap<Integer, ILOCInstruction>();
+        for (ILOCInstruction insn : func.getInstructions()) {
+            if (insn.form == ILOCInstruction.Form.PHI) {
+                phiByDest.put(insn.getWriteOperand().id, insn);
+            }
+        }
+        if (phiByDest.isEmpty()) {
+            return;
+        }
+
+        Set<ILOCInstruction> useful = Collections.newSetFromMap(
+                new IdentityHashMap<ILOCInstruction, Boolean>());
+        Deque<ILOCInstruction> worklist = new ArrayDeque<ILOCInstruction>();
+        for (ILOCInstruction insn : func.getInstructions()) {
+            if (insn.form != ILOCInstruction.Form.PHI) {
+                worklist.add(insn);
+            }
+        }
+        while (!worklist.isEmpty()) {
+            ILOCInstruction insn = worklist.poll();
+            for (ILOCOperand op : insn.getReadOperands()) {
+                ILOCInstruction phi = (ILOCRegisterIndex.isVirtual(op) ?
+                        phiByDest.get(op.id) : null);
+                if (phi != null && useful.add(phi)) {
+                    worklist.add(phi);
+                }
+            }
+        }
+
+        List<ILOCInstruction> code = new ArrayList<ILOCInstruction>();
+        for (ILOCInstruction insn : func.getInstructions()) {
+            if (insn.form != ILOCInstruction.Form.PHI || useful.contains(insn)) {
+                code.add(insn);
+            }
+        }
+        func.setInstructions(code);
+    }
+
+    /**
+     * Remove the phis from the top of a block
+     * @return Removed phis
+     */
+    private static List<ILOCInstruction> removePhis(ILOCBasicBlock b)
+    {
+        List<ILOCInstruction> phis = new ArrayList<ILOCInstruction>();
+        Iterator<ILOCInstruction> it = b.instructions.iterator();
+        while (it.hasNext()) {
+            ILOCInstruction insn = it.next();
+            if (insn.form == ILOCInstruction.Form.PHI) {
+                phis.add(insn);
+                it.remove();
+            } else if (insn.form != ILOCInstruction.Form.LABEL) {
+                break;
+            }
+        }
+        return phis;
+    }
+
+    /**
+     * Create a new block on the edge from a conditional branch to its target,
+     * redirecting one of the branch's targets to the new block
+     * @param p Predecessor (ends with a conditional branch)
+     * @param b Successor (starts with a label)
+     * @param copies Copies to place on the edge
+     * @return New block (placed right after the predecessor, which cannot
+     *         fall through)
+     */
+    private static ILOCBasicBlock splitEdge(ILOCBasicBlock p, ILOCBasicBlock b,
+            List<ILOCInstruction> copies)
+    {
+        ILOCInstruction cbr = p.instructions.get(p.instructions.size() - 1);
+        ILOCInstruction target = b.instructions.get(0);
+        assert(cbr.isConditionalBranch());
+        assert(target.form == ILOCInstruction.Form.LABEL);
+
+        ILOCBasicBlock split = ILOCBasicBlock.newBasicBlock();
+        ILOCOperand label = ILOCOperand.newAnonymousLabel();
+        split.instructions.add(new ILOCInstruction(ILOCInstruction.Form.LABEL,
+                    new ILOCOperand[] { label }, "split critical edge"));
+        split.instructions.addAll(copies);
+        ILOCOperand jumpTarget = ILOCOperand.newJumpLabel(target.operands[0].id);
+        split.instructions.add(new ILOCInstruction(ILOCInstruction.Form.JUMP,
+                    new ILOCOperand[] { jumpTarget }));
+
+        // redirect the first branch operand that still targets b (if both
+        // targets are b, the second split takes the other one)
+        int n = cbr.operands.length;
+        for (int i = n - 2; i < n; i++) {
+            if (cbr.operands[i].id == target.operands[0].id) {
+                cbr.operands[i] = label;
+                break;
+            }
+        }
+        return split;
+    }
+
+    /**
+     * Order a parallel copy so that every source is read before it is
+     * overwritten
+     * @param copies Pairs of source and destination registers (destinations
+     *        are distinct)
+     * @return Equivalent sequence of i2i instructions
+     */
+    private static List<ILOCInstruction> sequentialize(List<ILOCOperand[]> copies)
+    {
+        List<ILOCInstruction> seq = new ArrayList<ILOCInstruction>();
+        List<ILOCOperand[]> pending = new ArrayList<ILOCOperand[]>(copies);
+        while (!pending.isEmpty()) {
+            // emit any copy whose destination is not needed as a source
+            boolean progress = false;
+            for (int i = 0; i < pending.size(); i++) {
+                ILOCOperand[] copy = pending.get(i);
+                if (!isSource(pending, copy[1])) {
+                    seq.add(newCopy(copy[0], copy[1], "phi copy"));
+                    pending.remove(i);
+                    progress = true;
+                    break;
+                }
+            }
+            if (progress) {
+                continue;
+            }
+
+            // only cycles remain; save one destination to a temporary and
+            // read it from there instead
+            ILOCOperand dst = pending.get(0)[1];
+            ILOCOperand temp = ILOCOperand.newVirtualReg();
+            seq.add(newCopy(dst, temp, "break phi copy cycle"));
+            for (ILOCOperand[] copy : pending) {
+                if (copy[0].id == dst.id) {
+                    copy[0] = temp;
+                }
+            }
+        }
+        return seq;
+    }
+
+    private static boolean isSource(List<ILOCOperand[]> copies, ILOCOperand reg)
+    {
+        for (ILOCOperand[] copy : copies) {
+            if (copy[0].id == reg.id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ILOCInstruction newCopy(ILOCOperand src, ILOCOperand dst,
+            String comment)
+    {
+        return new ILOCInstruction(ILOCInstruction.Form.I2I,
+                new ILOCOperand[] { src, dst }, comment);
+    }
+}
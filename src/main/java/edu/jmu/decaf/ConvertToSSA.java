@@ -0,0 +1,295 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Converts every function into static single-assignment (SSA) form using the
+ * algorithm of Cytron et al.: phi instructions are placed at the iterated
+ * dominance frontiers of each register's definitions, and then all virtual
+ * registers are renamed during a walk of the dominator tree so that every
+ * register has exactly one definition.
+ *
+ * By default the pass builds pruned SSA, placing a phi only where the
+ * register is live on entry to the block. Minimal SSA (a phi at every
+ * iterated dominance frontier, dead or not) can be requested instead.
+ *
+ * The operands of a phi correspond, in order, to the predecessors of its
+ * block ({@link ILOCBasicBlock#sources}); the last operand is the
+ * destination. Passes that run on SSA form must preserve this
+ * correspondence. Unreachable blocks are removed first so that every
+ * predecessor has a reaching definition. Use {@link ConvertFromSSA} to
+ * translate back before interpreting the program.
+ */
+public class ConvertToSSA implements ILOCProcessor
+{
+    private boolean pruned;
+
+    private Map<Integer, Deque<ILOCOperand>> stacks;
+    private Map<ILOCInstruction, ILOCOperand> phiVariable;
+
+    /**
+     * Create a pass that builds pruned SSA
+     */
+    public ConvertToSSA()
+    {
+        this(true);
+    }
+
+    /**
+     * Create a pass that builds pruned or minimal SSA
+     * @param pruned True to place only live phis
+     */
+    public ConvertToSSA(boolean pruned)
+    {
+        this.pruned = pruned;
+    }
+
+    public void process(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            removeUnreachableBlocks(func);
+            ILOCDominators dom = new ILOCDominators(func);
+            phiVariable = new IdentityHashMap<ILOCInstruction, ILOCOperand>();
+            placePhis(func, dom);
+            rename(func, dom);
+
+            List<ILOCInstruction> code = new ArrayList<ILOCInstruction>();
+            for (ILOCBasicBlock b : func.allBlocks) {
+                code.addAll(b.instructions);
+            }
+            func.setInstructions(code);
+            func.invalidateCFG();
+        }
+    }
+
+    /**
+     * Drop blocks that cannot be reached from the entry (they would
+     * contribute phi operands without reaching definitions)
+     */
+    private static void removeUnreachableBlocks(ILOCFunction func)
+    {
+        func.invalidateCFG();
+        ILOCDominators dom = new ILOCDominators(func);
+        List<ILOCInstruction> code = new ArrayList<ILOCInstruction>();
+        for (ILOCBasicBlock b : func.allBlocks) {
+            if (dom.isReachable(b)) {
+                code.addAll(b.instructions);
+            }
+        }
+        if (code.size() != func.getInstructions().size()) {
+            func.setInstructions(code);
+        }
+        func.invalidateCFG();
+        func.getEntryBlock();
+    }
+
+    /**
+     * Insert (not yet renamed) phis at the iterated dominance frontiers of
+     * each register's definitions
+     */
+    private void placePhis(ILOCFunction func, ILOCDominators dom)
+    {
+        List<ILOCBasicBlock> blocks = func.allBlocks;
+        ILOCRegisterIndex registers = new ILOCRegisterIndex(func);
+        ILOCLiveness liveness = (pruned ? new ILOCLiveness(func, registers) : null);
+
+        // blocks defining each register (by dense index)
+        int candidates = (pruned ? registers.globalCount() : registers.size());
+        List<List<ILOCBasicBlock>> defBlocks = new ArrayList<List<ILOCBasicBlock>>();
+        for (int r = 0; r < candidates; r++) {
+            defBlocks.add(new ArrayList<ILOCBasicBlock>());
+        }
+        for (ILOCBasicBlock b : blocks) {
+            for (ILOCInstruction insn : b.instructions) {
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    int r = registers.indexOf(op);
+                    if (r >= 0 && r < candidates) {
+                        List<ILOCBasicBlock> defs = defBlocks.get(r);
+                        if (defs.isEmpty() || defs.get(defs.size() - 1) != b) {
+                            defs.add(b);
+                        }
+                    }
+                }
+            }
+        }
+
+        // worklist algorithm over the dominance frontiers
+        int[] hasPhi = new int[blocks.size()];
+        int[] onWorklist = new int[blocks.size()];
+        Arrays.fill(hasPhi, -1);
+        Arrays.fill(onWorklist, -1);
+        Deque<ILOCBasicBlock> worklist = new ArrayDeque<ILOCBasicBlock>();
+        for (int r = 0; r < candidates; r++) {
+            for (ILOCBasicBlock b : defBlocks.get(r)) {
+                onWorklist[b.index] = r;
+                worklist.add(b);
+            }
+            ILOCOperand reg = null;
+            while (!worklist.isEmpty()) {
+                ILOCBasicBlock b = worklist.poll();
+                for (int fi : dom.getFrontier(b)) {
+                    ILOCBasicBlock f = blocks.get(fi);
+                    if (hasPhi[fi] == r) {
+                        continue;
+                    }
+                    if (pruned && !liveness.getLiveIn(f).get(r)) {
+                        continue;
+                    }
+                    hasPhi[fi] = r;
+                    if (reg == null) {
+                        reg = findRegister(defBlocks.get(r).get(0), registers.idAt(r));
+                    }
+                    insertPhi(f, reg);
+                    if (onWorklist[fi] != r) {
+                        onWorklist[fi] = r;
+                        worklist.add(f);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the operand object for a register ID in one of its defining blocks
+     */
+    private static ILOCOperand findRegister(ILOCBasicBlock b, int id)
+    {
+        for (ILOCInstruction insn : b.instructions) {
+            for (ILOCOperand op : insn.getWriteOperands()) {
+                if (ILOCRegisterIndex.isVirtual(op) && op.id == id) {
+                    return op;
+                }
+            }
+        }
+        assert(false);
+        return null;
+    }
+
+    /**
+     * Insert a phi for a register at the top of a block (after its label)
+     */
+    private void insertPhi(ILOCBasicBlock b, ILOCOperand reg)
+    {
+        ILOCOperand[] ops = new ILOCOperand[b.sources.size() + 1];
+        Arrays.fill(ops, reg);
+        ILOCInstruction phi = new ILOCInstruction(ILOCInstruction.Form.PHI, ops);
+        phiVariable.put(phi, reg);
+        int pos = 0;
+        while (pos < b.instructions.size() &&
+                (b.instructions.get(pos).form == ILOCInstruction.Form.LABEL ||
+                 b.instructions.get(pos).form == ILOCInstruction.Form.PHI)) {
+            pos++;
+        }
+        b.instructions.add(pos, phi);
+    }
+
+    /**
+     * Rename all virtual registers during a preorder walk of the dominator
+     * tree (iteratively, so that deep trees do not overflow the Java stack)
+     */
+    private void rename(ILOCFunction func, ILOCDominators dom)
+    {
+        List<ILOCBasicBlock> blocks = func.allBlocks;
+        stacks = new HashMap<Integer, Deque<ILOCOperand>>();
+
+        Deque<ILOCBasicBlock> stack = new ArrayDeque<ILOCBasicBlock>();
+        Deque<List<Integer>> pushed = new ArrayDeque<List<Integer>>();
+        int[][] kids = new int[blocks.size()][];
+        int[] nextChild = new int[blocks.size()];
+        ILOCBasicBlock entry = func.getEntryBlock();
+        stack.push(entry);
+        pushed.push(renameBlock(entry));
+        kids[entry.index] = dom.getChildren(entry);
+        while (!stack.isEmpty()) {
+            ILOCBasicBlock b = stack.peek();
+            if (nextChild[b.index] < kids[b.index].length) {
+                ILOCBasicBlock c = blocks.get(kids[b.index][nextChild[b.index]++]);
+                stack.push(c);
+                pushed.push(renameBlock(c));
+                kids[c.index] = dom.getChildren(c);
+            } else {
+                stack.pop();
+                for (Integer id : pushed.pop()) {
+                    stacks.get(id).pop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Rename the registers in a single block and fill in the corresponding
+     * phi operands of its successors
+     * @return Original IDs of all registers defined in the block (one per
+     *         definition, so that their stacks can be popped afterwards)
+     */
+    private List<Integer> renameBlock(ILOCBasicBlock b)
+    {
+        List<Integer> defined = new ArrayList<Integer>();
+        for (ILOCInstruction insn : b.instructions) {
+            ILOCOperand[] ops = insn.operands;
+            if (insn.form != ILOCInstruction.Form.PHI) {
+                // register reads always come first in the operand list
+                int numReads = insn.getReadOperands().size();
+                for (int i = 0; i < numReads; i++) {
+                    ILOCOperand current = currentName(ops[i]);
+                    if (current != null) {
+                        ops[i] = current;
+                    }
+                }
+            }
+            List<ILOCOperand> writes = insn.getWriteOperands();
+            if (writes.size() == 1 && ILOCRegisterIndex.isVirtual(writes.get(0))) {
+                ILOCOperand old = writes.get(0);
+                int pos = ops.length - 1;
+                while (ops[pos] != old) {
+                    pos--;
+                }
+                ILOCOperand fresh = ILOCOperand.newVirtualReg();
+                ops[pos] = fresh;
+                if (!stacks.containsKey(old.id)) {
+                    stacks.put(old.id, new ArrayDeque<ILOCOperand>());
+                }
+                stacks.get(old.id).push(fresh);
+                defined.add(old.id);
+            }
+        }
+
+        // fill in phi operands along each outgoing edge
+        Set<ILOCBasicBlock> handled = new HashSet<ILOCBasicBlock>();
+        for (ILOCBasicBlock s : b.targets) {
+            if (!handled.add(s)) {
+                continue;
+            }
+            for (ILOCInstruction insn : s.instructions) {
+                ILOCOperand var = phiVariable.get(insn);
+                if (var == null) {
+                    if (insn.form == ILOCInstruction.Form.LABEL) {
+                        continue;
+                    }
+                    break;      // phis are always at the top of the block
+                }
+                ILOCOperand current = currentName(var);
+                for (int j = 0; j < s.sources.size(); j++) {
+                    if (s.sources.get(j) == b && current != null) {
+                        insn.operands[j] = current;
+                    }
+                }
+            }
+        }
+        return defined;
+    }
+
+    /**
+     * Returns the current SSA name of a register
+     * @return Current name, or null if the operand is not a virtual register
+     *         or has no reaching definition
+     */
+    private ILOCOperand currentName(ILOCOperand reg)
+    {
+        if (!ILOCRegisterIndex.isVirtual(reg)) {
+            return null;
+        }
+        Deque<ILOCOperand> names = stacks.get(reg.id);
+        return (names == null || names.isEmpty() ? null : names.peek());
+    }
+}
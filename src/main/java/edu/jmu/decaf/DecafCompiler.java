@@ -8,7 +8,18 @@ import java.util.*;
  */
 class DecafCompiler
 {
+    /**
+     * Maximum number of instructions run for a profile (the layout uses the
+     * partial profile if a program runs longer or does not terminate)
+     */
+    private static final long TRAINING_STEP_LIMIT = 100000000L;
+
     private File mainFile;
+    private int optLevel;
+    private boolean timePasses;
+    private int numRegisters;
+    private String allocator;
+    private boolean profileLayout;
 
     /**
      * Program entry point.
@@ -36,6 +47,11 @@ class DecafCompiler
     public DecafCompiler(String[] args)
     {
     	mainFile = null;
+        optLevel = 0;
+        timePasses = false;
+        numRegisters = 0;
+        allocator = null;
+        profileLayout = false;
         parseCompilerArguments(args);
     }
 
@@ -91,6 +107,46 @@ class DecafCompiler
         ast.traverse(codegen);
         ILOCProgram ir = codegen.getProgram();
 
+        // PHASE 5 - OPTIMIZATION
+
+        // run the pass pipeline for the requested level (ILOCProgram => ILOCProgram)
+        ILOCPassManager passes = ILOCPassManager.forOptLevel(optLevel);
+        if (numRegisters > 0) {
+            // graph coloring produces better code, but linear scan is faster
+            if (allocator == null) {
+                allocator = (optLevel >= ILOCPassManager.MAX_OPT_LEVEL ?
+                        "coloring" : "linear");
+            }
+            if (allocator.equals("coloring")) {
+                passes.add(new AllocateRegistersGraphColoring(numRegisters));
+            } else {
+                passes.add(new AllocateRegistersLinearScan(numRegisters));
+            }
+        }
+        passes.process(ir);
+
+        // re-arrange blocks using the profile of a training run (with its
+        // output discarded)
+        if (profileLayout) {
+            ILOCProfile profile = new ILOCProfile();
+            ILOCInterpreter trainer = new ILOCInterpreter();
+            trainer.setOutput(new PrintStream(new OutputStream() {
+                public void write(int b) { }
+            }));
+            trainer.setProfile(profile);
+            trainer.setStepLimit(TRAINING_STEP_LIMIT);
+            trainer.process(ir);
+            if (trainer.isStopped()) {
+                System.err.println("warning: training run stopped after " +
+                        TRAINING_STEP_LIMIT + " instructions");
+            }
+            new LayoutBlocks(profile).process(ir);
+        }
+        if (timePasses) {
+            System.out.println(passes.getStatsString());
+            System.out.println();
+        }
+
         // print ILOC
         System.out.println(ir.toString());
 
@@ -107,12 +163,36 @@ class DecafCompiler
      */
     private void parseCompilerArguments(String[] args)
     {
-        if (args.length != 1) {
-            System.out.println("Usage: ./decaf.sh <file>");
-            System.exit(-1);
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.matches("-O[0-9]+")) {
+                optLevel = Math.min(Integer.parseInt(arg.substring(2)),
+                        ILOCPassManager.MAX_OPT_LEVEL);
+            } else if (arg.equals("--ftime-passes")) {
+                timePasses = true;
+            } else if (arg.equals("--fprofile-layout")) {
+                profileLayout = true;
+            } else if (arg.matches("--fregalloc=(linear|coloring)")) {
+                allocator = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.equals("-r") && i + 1 < args.length &&
+                    args[i + 1].matches("[0-9]+") &&
+                    Integer.parseInt(args[i + 1]) >=
+                        AllocateRegistersLinearScan.MIN_REGISTERS) {
+                // perform register allocation with N physical registers
+                numRegisters = Integer.parseInt(args[++i]);
+            } else if (mainFile == null && !arg.startsWith("-")) {
+                mainFile = new File(arg);
+            } else {
+                mainFile = null;
+                break;
+            }
         }
 
-        mainFile = new File(args[0]);
+        if (mainFile == null) {
+            System.out.println("Usage: ./decaf.sh [-O<level>] [-r <N>] " +
+                    "[--fregalloc=linear|coloring] [--fprofile-layout] [--ftime-passes] <file>");
+            System.exit(-1);
+        }
     }
 
     /**
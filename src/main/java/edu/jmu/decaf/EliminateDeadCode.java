@@ -0,0 +1,138 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Liveness-based dead code elimination. Removes every instruction whose only
+ * effect is to write virtual registers that are never read afterwards.
+ *
+ * Instructions with side effects are always kept: stores, stack operations
+ * (PUSH/POP), calls, prints, control flow, and anything that writes a special
+ * register (sp, bp, ret). Division is kept as well because it may fault.
+ *
+ * Removing an instruction can make the instructions that computed its operands
+ * dead, so the analysis is repeated until nothing else can be removed.
+ *
+ * Control flow is never changed, so the CFG (and everything computed from its
+ * shape) is preserved.
+ */
+public class EliminateDeadCode extends ILOCManagedPass
+{
+    public EliminateDeadCode()
+    {
+    }
+
+    public Set<ILOCAnalysisManager.Analysis> getPreservedAnalyses()
+    {
+        return ILOCAnalysisManager.CFG_ONLY;
+    }
+
+    protected void transform(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            while (removeDeadInstructions(func)) { }
+        }
+    }
+
+    /**
+     * Run a single round of dead code elimination
+     * @param func Function to optimize
+     * @return True if any instructions were removed
+     */
+    private boolean removeDeadInstructions(ILOCFunction func)
+    {
+        ILOCLiveness liveness = analyses.getLiveness(func);
+        ILOCRegisterIndex registers = liveness.getRegisterIndex();
+        boolean changed = false;
+
+        // walk each block backwards, tracking the registers that are live
+        // after each instruction
+        BitSet live = new BitSet(registers.size());
+        for (ILOCBasicBlock b : func.allBlocks) {
+            live.clear();
+            live.or(liveness.getLiveOut(b));
+            for (int i = b.instructions.size() - 1; i >= 0; i--) {
+                ILOCInstruction insn = b.instructions.get(i);
+                if (isRemovable(insn, live, registers)) {
+                    b.instructions.remove(i);
+                    changed = true;
+                    continue;
+                }
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    int r = registers.indexOf(op);
+                    if (r >= 0) {
+                        live.clear(r);
+                    }
+                }
+                for (ILOCOperand op : insn.getReadOperands()) {
+                    int r = registers.indexOf(op);
+                    if (r >= 0) {
+                        live.set(r);
+                    }
+                }
+            }
+        }
+
+        if (changed) {
+            func.updateInstructionsFromCFG();
+            analyses.invalidate(func, ILOCAnalysisManager.Analysis.LIVENESS);
+        }
+        return changed;
+    }
+
+    /**
+     * Checks whether an instruction can be removed, i.e., it has no side
+     * effects and none of the registers it writes are live afterwards
+     */
+    private static boolean isRemovable(ILOCInstruction insn, BitSet live,
+            ILOCRegisterIndex registers)
+    {
+        if (!hasNoSideEffects(insn.form)) {
+            return false;
+        }
+        for (ILOCOperand op : insn.getWriteOperands()) {
+            int r = registers.indexOf(op);
+            if (r < 0 || live.get(r)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Instruction forms whose only effect is writing their destination
+     * register(s)
+     * @param form Instruction form
+     * @return True if the form has no other side effects
+     */
+    public static boolean hasNoSideEffects(ILOCInstruction.Form form)
+    {
+        switch (form) {
+        case ADD:
+        case SUB:
+        case MULT:
+        case ADD_I:
+        case MULT_I:
+        case AND:
+        case OR:
+        case LOAD_I:
+        case LOAD:
+        case LOAD_AI:
+        case LOAD_AO:
+        case I2I:
+        case CMP_LT:
+        case CMP_LE:
+        case CMP_EQ:
+        case CMP_GE:
+        case CMP_GT:
+        case CMP_NE:
+        case NOT:
+        case NEG:
+        case NOP:
+        case PHI:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
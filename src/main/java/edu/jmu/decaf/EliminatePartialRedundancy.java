@@ -0,0 +1,536 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Partial redundancy elimination by lazy code motion (Knoop, Ruething, and
+ * Steffen, in the formulation of Cooper and Torczon). Moves each pure
+ * computation to the latest point where it is still computed on every path
+ * that needs it (so that values are not held in registers longer than
+ * necessary) and removes computations that are redundant on all paths after
+ * the motion. This covers global common subexpressions and computations
+ * that are redundant along some paths only (e.g., after an if without an
+ * else), and it moves loop-invariant computations out of loops whose body
+ * always runs at least once.
+ *
+ * An expression is an operator applied to virtual registers (and possibly a
+ * constant), like {@code add r1, r2}; the operands of commutative operators
+ * are ordered, and loads, constants, and division (which may fault) are not
+ * moved. An expression is killed by every definition of one of its
+ * operands. Four dataflow problems are solved over the CFG (after splitting
+ * critical edges so that every edge has a place for new code):
+ *
+ * <pre>
+ * AvailOut(b) = DEExpr(b) + (AvailIn(b) - ExprKill(b))    (forward, all paths)
+ * AntIn(b)    = UEExpr(b) + (AntOut(b) - ExprKill(b))     (backward, all paths)
+ * Earliest(i,j) = AntIn(j) - AvailOut(i) - (AntOut(i) - ExprKill(i))
+ * LaterIn(j)    = intersection of Later(i,j) for all predecessors i
+ * Later(i,j)    = Earliest(i,j) + (LaterIn(i) - UEExpr(i))
+ * </pre>
+ *
+ * The expression is then inserted on every edge (i,j) in Later(i,j) -
+ * LaterIn(j), and its first upward-exposed computation in every block b in
+ * UEExpr(b) - LaterIn(b) is deleted. Since each computation writes a
+ * different register, every expression that is moved gets a new register:
+ * all of its remaining computations write that register (followed by a copy
+ * to the original destination) and deleted computations become copies from
+ * it. The copies are left for {@link NumberLocalValues} and
+ * {@link EliminateDeadCode}, and the blocks created by splitting edges for
+ * {@link SimplifyCFG}.
+ */
+public class EliminatePartialRedundancy implements ILOCProcessor
+{
+    /**
+     * Availability: expressions computed on every path to a point (and not
+     * killed since)
+     */
+    private static class Availability extends ILOCDataflow
+    {
+        private BitSet[] deExpr;
+        private BitSet[] exprKill;
+
+        Availability(ILOCFunction func, int universe, BitSet[] deExpr, BitSet[] exprKill)
+        {
+            super(func, universe, Direction.FORWARD, Meet.INTERSECTION);
+            this.deExpr = deExpr;
+            this.exprKill = exprKill;
+            solve();
+        }
+
+        @Override
+        protected void initBlock(ILOCBasicBlock b, BitSet gen, BitSet kill)
+        {
+            gen.or(deExpr[b.index]);
+            kill.or(exprKill[b.index]);
+        }
+    }
+
+    /**
+     * Anticipability: expressions computed on every path from a point
+     * (before any of their operands change)
+     */
+    private static class Anticipability extends ILOCDataflow
+    {
+        private BitSet[] ueExpr;
+        private BitSet[] exprKill;
+
+        Anticipability(ILOCFunction func, int universe, BitSet[] ueExpr, BitSet[] exprKill)
+        {
+            super(func, universe, Direction.BACKWARD, Meet.INTERSECTION);
+            this.ueExpr = ueExpr;
+            this.exprKill = exprKill;
+            solve();
+        }
+
+        @Override
+        protected void initBlock(ILOCBasicBlock b, BitSet gen, BitSet kill)
+        {
+            gen.or(ueExpr[b.index]);
+            kill.or(exprKill[b.index]);
+        }
+    }
+
+    private int deleted;
+
+    // per-function state
+    private Map<String, Integer> exprIndex;
+    private List<ILOCInstruction> exprSample;   // one computation of each
+    private Map<Integer, BitSet> exprsUsing;    // register ID => expressions
+
+    public EliminatePartialRedundancy()
+    {
+        this.deleted = 0;
+    }
+
+    /**
+     * Returns the number of computations deleted so far
+     * @return Number of deleted computations
+     */
+    public int getDeletedCount()
+    {
+        return deleted;
+    }
+
+    public void process(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            if (!func.getInstructions().isEmpty()) {
+                optimize(func);
+            }
+        }
+    }
+
+    /**
+     * Perform lazy code motion on a single function
+     * @param func Function to transform
+     */
+    private void optimize(ILOCFunction func)
+    {
+        numberExpressions(func);
+        int universe = exprSample.size();
+        if (universe == 0) {
+            return;
+        }
+        List<ILOCInstruction> original = func.getInstructions();
+        if (!splitCriticalEdges(func)) {
+            return;
+        }
+        List<ILOCBasicBlock> blocks = func.allBlocks;
+        ILOCBasicBlock entry = func.getEntryBlock();
+        int n = blocks.size();
+
+        // local sets
+        BitSet[] ueExpr = new BitSet[n];
+        BitSet[] deExpr = new BitSet[n];
+        BitSet[] exprKill = new BitSet[n];
+        for (ILOCBasicBlock b : blocks) {
+            BitSet ue = new BitSet(universe);
+            BitSet de = new BitSet(universe);
+            BitSet killed = new BitSet(universe);
+            for (ILOCInstruction insn : b.instructions) {
+                int e = indexOf(insn);
+                if (e >= 0) {
+                    if (!killed.get(e)) {
+                        ue.set(e);
+                    }
+                    de.set(e);
+                }
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    BitSet using = exprsUsing.get(op.id);
+                    if (ILOCRegisterIndex.isVirtual(op) && using != null) {
+                        killed.or(using);
+                        de.andNot(using);
+                    }
+                }
+            }
+            ueExpr[b.index] = ue;
+            deExpr[b.index] = de;
+            exprKill[b.index] = killed;
+        }
+
+        // global sets
+        Availability avail = new Availability(func, universe, deExpr, exprKill);
+        Anticipability ant = new Anticipability(func, universe, ueExpr, exprKill);
+
+        Map<ILOCBasicBlock, BitSet[]> earliest = new HashMap<ILOCBasicBlock, BitSet[]>();
+        for (ILOCBasicBlock i : blocks) {
+            BitSet[] edges = new BitSet[i.targets.size()];
+            for (int k = 0; k < edges.length; k++) {
+                BitSet e = (BitSet)ant.getIn(i.targets.get(k)).clone();
+                e.andNot(avail.getOut(i));
+                if (i != entry) {
+                    BitSet notKilledAnt = (BitSet)ant.getOut(i).clone();
+                    notKilledAnt.andNot(exprKill[i.index]);
+                    e.andNot(notKilledAnt);
+                }
+                edges[k] = e;
+            }
+            earliest.put(i, edges);
+        }
+
+        BitSet[] laterIn = new BitSet[n];
+        for (ILOCBasicBlock b : blocks) {
+            laterIn[b.index] = new BitSet(universe);
+            if (b != entry) {
+                laterIn[b.index].set(0, universe);
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (ILOCBasicBlock j : blocks) {
+                if (j == entry || j.sources.isEmpty()) {
+                    continue;
+                }
+                BitSet value = null;
+                for (ILOCBasicBlock i : j.sources) {
+                    for (int k = 0; k < i.targets.size(); k++) {
+                        if (i.targets.get(k) != j) {
+                            continue;
+                        }
+                        BitSet later = later(i, k, earliest, laterIn, ueExpr);
+                        if (value == null) {
+                            value = later;
+                        } else {
+                            value.and(later);
+                        }
+                    }
+                }
+                if (!value.equals(laterIn[j.index])) {
+                    laterIn[j.index] = value;
+                    changed = true;
+                }
+            }
+        }
+
+        // find the insertions and deletions
+        BitSet moved = new BitSet(universe);
+        Map<ILOCBasicBlock, BitSet> insertAtEnd = new HashMap<ILOCBasicBlock, BitSet>();
+        Map<ILOCBasicBlock, BitSet> insertAtStart = new HashMap<ILOCBasicBlock, BitSet>();
+        for (ILOCBasicBlock i : blocks) {
+            for (int k = 0; k < i.targets.size(); k++) {
+                ILOCBasicBlock j = i.targets.get(k);
+                BitSet insert = later(i, k, earliest, laterIn, ueExpr);
+                insert.andNot(laterIn[j.index]);
+                if (insert.isEmpty()) {
+                    continue;
+                }
+                moved.or(insert);
+                if (i.targets.size() == 1) {
+                    addAll(insertAtEnd, i, insert);
+                } else {
+                    assert(j.sources.size() == 1);
+                    addAll(insertAtStart, j, insert);
+                }
+            }
+        }
+        BitSet[] delete = new BitSet[n];
+        for (ILOCBasicBlock b : blocks) {
+            delete[b.index] = (BitSet)ueExpr[b.index].clone();
+            delete[b.index].andNot(laterIn[b.index]);
+            if (b == entry) {
+                delete[b.index].clear();
+            }
+            moved.or(delete[b.index]);
+        }
+        if (moved.isEmpty()) {
+            // keep the original code (without the split edges)
+            func.setInstructions(original);
+            return;
+        }
+
+        // rewrite the moved expressions to use their new registers
+        ILOCOperand[] temps = new ILOCOperand[universe];
+        for (int e = moved.nextSetBit(0); e >= 0; e = moved.nextSetBit(e + 1)) {
+            temps[e] = ILOCOperand.newVirtualReg();
+        }
+        for (ILOCBasicBlock b : blocks) {
+            List<ILOCInstruction> code = new ArrayList<ILOCInstruction>();
+            BitSet killed = new BitSet(universe);
+            BitSet seen = new BitSet(universe);
+            for (ILOCInstruction insn : b.instructions) {
+                int e = indexOf(insn);
+                if (e >= 0 && moved.get(e)) {
+                    ILOCOperand dest = insn.getWriteOperand();
+                    if (delete[b.index].get(e) && !killed.get(e) && !seen.get(e)) {
+                        deleted++;
+                    } else {
+                        code.add(compute(insn, temps[e]));
+                    }
+                    ILOCInstruction copy = new ILOCInstruction(ILOCInstruction.Form.I2I,
+                            new ILOCOperand[] { temps[e], dest }, insn.comment);
+                    copy.variableName = insn.variableName;
+                    code.add(copy);
+                    seen.set(e);
+                } else {
+                    code.add(insn);
+                }
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    BitSet using = exprsUsing.get(op.id);
+                    if (ILOCRegisterIndex.isVirtual(op) && using != null) {
+                        killed.or(using);
+                    }
+                }
+            }
+            insert(code, insertAtStart.get(b), temps, true);
+            insert(code, insertAtEnd.get(b), temps, false);
+            b.instructions = code;
+        }
+        func.updateInstructionsFromCFG();
+        func.invalidateCFG();
+    }
+
+    /**
+     * Returns a new set Later(i,j) for the k-th outgoing edge of block i
+     */
+    private static BitSet later(ILOCBasicBlock i, int k, Map<ILOCBasicBlock, BitSet[]> earliest,
+            BitSet[] laterIn, BitSet[] ueExpr)
+    {
+        BitSet later = (BitSet)laterIn[i.index].clone();
+        later.andNot(ueExpr[i.index]);
+        later.or(earliest.get(i)[k]);
+        return later;
+    }
+
+    private static void addAll(Map<ILOCBasicBlock, BitSet> sets, ILOCBasicBlock b, BitSet exprs)
+    {
+        if (!sets.containsKey(b)) {
+            sets.put(b, new BitSet());
+        }
+        sets.get(b).or(exprs);
+    }
+
+    /**
+     * Insert computations of expressions at the start of a block (after its
+     * label) or at its end (before its branch)
+     */
+    private void insert(List<ILOCInstruction> code, BitSet exprs, ILOCOperand[] temps,
+            boolean atStart)
+    {
+        if (exprs == null) {
+            return;
+        }
+        int index;
+        if (atStart) {
+            index = 0;
+            while (index < code.size() && code.get(index).form == ILOCInstruction.Form.LABEL) {
+                index++;
+            }
+        } else {
+            index = code.size();
+            if (index > 0 && (code.get(index - 1).form == ILOCInstruction.Form.JUMP ||
+                        code.get(index - 1).isConditionalBranch())) {
+                index--;
+            }
+        }
+        for (int e = exprs.nextSetBit(0); e >= 0; e = exprs.nextSetBit(e + 1)) {
+            ILOCInstruction insn = compute(exprSample.get(e), temps[e]);
+            insn.comment = "moved computation";
+            code.add(index++, insn);
+        }
+    }
+
+    /**
+     * Returns a copy of a computation that writes a different register
+     */
+    private static ILOCInstruction compute(ILOCInstruction insn, ILOCOperand dest)
+    {
+        ILOCOperand[] ops = insn.operands.clone();
+        ops[ops.length - 1] = dest;
+        ILOCInstruction copy = new ILOCInstruction(insn.form, ops, insn.comment);
+        copy.variableName = insn.variableName;
+        return copy;
+    }
+
+    /**
+     * Assign dense numbers to all expressions in a function and record which
+     * registers they read
+     */
+    private void numberExpressions(ILOCFunction func)
+    {
+        exprIndex = new HashMap<String, Integer>();
+        exprSample = new ArrayList<ILOCInstruction>();
+        exprsUsing = new HashMap<Integer, BitSet>();
+        for (ILOCInstruction insn : func.getInstructions()) {
+            String key = keyOf(insn);
+            if (key == null || exprIndex.containsKey(key)) {
+                continue;
+            }
+            int e = exprSample.size();
+            exprIndex.put(key, e);
+            exprSample.add(insn);
+            for (ILOCOperand op : insn.getReadOperands()) {
+                if (!exprsUsing.containsKey(op.id)) {
+                    exprsUsing.put(op.id, new BitSet());
+                }
+                exprsUsing.get(op.id).set(e);
+            }
+        }
+    }
+
+    private int indexOf(ILOCInstruction insn)
+    {
+        String key = keyOf(insn);
+        Integer e = (key == null ? null : exprIndex.get(key));
+        return (e == null ? -1 : e);
+    }
+
+    /**
+     * Build the lexical key of a movable computation
+     * @return Key, or null if the instruction should not be moved
+     */
+    private static String keyOf(ILOCInstruction insn)
+    {
+        ILOCOperand[] ops = insn.operands;
+        switch (insn.form) {
+        case ADD_I:
+        case MULT_I:
+            if (!ILOCRegisterIndex.isVirtual(ops[0])) {
+                return null;
+            }
+            return insn.form + " r" + ops[0].id + " " + ops[1].intConstant;
+        case NOT:
+        case NEG:
+            if (!ILOCRegisterIndex.isVirtual(ops[0])) {
+                return null;
+            }
+            return insn.form + " r" + ops[0].id;
+        case ADD:
+        case MULT:
+        case AND:
+        case OR:
+        case CMP_EQ:
+        case CMP_NE:
+        case SUB:
+        case CMP_LT:
+        case CMP_LE:
+        case CMP_GE:
+        case CMP_GT:
+            if (!ILOCRegisterIndex.isVirtual(ops[0]) || !ILOCRegisterIndex.isVirtual(ops[1])) {
+                return null;
+            }
+            int left = ops[0].id;
+            int right = ops[1].id;
+            if (isCommutative(insn.form) && left > right) {
+                int tmp = left;
+                left = right;
+                right = tmp;
+            }
+            return insn.form + " r" + left + " r" + right;
+        default:
+            return null;
+        }
+    }
+
+    private static boolean isCommutative(ILOCInstruction.Form form)
+    {
+        switch (form) {
+        case ADD:
+        case MULT:
+        case AND:
+        case OR:
+        case CMP_EQ:
+        case CMP_NE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Give every edge from a block with several successors to a block with
+     * several predecessors a block of its own (containing only a label and a
+     * jump), and remove unreachable blocks. Rebuilds the CFG. Branches that
+     * are redirected are replaced by copies, so the original instruction list
+     * is left unchanged.
+     * @return False if the function does not end with a branch (so that no
+     *         blocks can be added at the end)
+     */
+    private static boolean splitCriticalEdges(ILOCFunction func)
+    {
+        List<ILOCInstruction> original = func.getInstructions();
+        ILOCInstruction.Form end = original.get(original.size() - 1).form;
+        if (end != ILOCInstruction.Form.JUMP && end != ILOCInstruction.Form.RETURN) {
+            return false;
+        }
+        func.buildCFG();
+        BitSet reachable = new BitSet();
+        Deque<ILOCBasicBlock> stack = new ArrayDeque<ILOCBasicBlock>();
+        stack.push(func.entryBlock);
+        reachable.set(func.entryBlock.index);
+        while (!stack.isEmpty()) {
+            for (ILOCBasicBlock s : stack.pop().targets) {
+                if (!reachable.get(s.index)) {
+                    reachable.set(s.index);
+                    stack.push(s);
+                }
+            }
+        }
+
+        List<ILOCInstruction> code = new ArrayList<ILOCInstruction>();
+        List<ILOCInstruction> edges = new ArrayList<ILOCInstruction>();
+        for (ILOCBasicBlock b : func.allBlocks) {
+            if (!reachable.get(b.index)) {
+                continue;
+            }
+            code.addAll(b.instructions);
+            ILOCInstruction last = b.instructions.get(b.instructions.size() - 1);
+            if (!last.isConditionalBranch()) {
+                continue;
+            }
+            ILOCInstruction branch = null;
+            int n = last.operands.length;
+            for (int k = 0; k < 2; k++) {
+                if (countReachable(b.targets.get(k).sources, reachable) < 2) {
+                    continue;
+                }
+                if (branch == null) {
+                    branch = new ILOCInstruction(last.form, last.operands.clone(),
+                            last.comment);
+                    code.set(code.size() - 1, branch);
+                }
+                ILOCOperand label = ILOCOperand.newAnonymousLabel();
+                edges.add(new ILOCInstruction(ILOCInstruction.Form.LABEL,
+                            new ILOCOperand[] { label }, "split edge"));
+                edges.add(new ILOCInstruction(ILOCInstruction.Form.JUMP,
+                            new ILOCOperand[] { last.operands[n - 2 + k] }));
+                branch.operands[n - 2 + k] = label;
+            }
+        }
+        code.addAll(edges);
+        func.setInstructions(code);
+        func.buildCFG();
+        return true;
+    }
+
+    private static int countReachable(List<ILOCBasicBlock> blocks, BitSet reachable)
+    {
+        int count = 0;
+        for (ILOCBasicBlock b : blocks) {
+            if (reachable.get(b.index)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
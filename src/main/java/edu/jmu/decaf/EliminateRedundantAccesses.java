@@ -0,0 +1,339 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Redundant load and dead store elimination. Within each basic block, keeps
+ * track of the memory locations whose current value is known to be in a
+ * register (because it was just loaded or stored) and of the stores whose
+ * value has not been read yet:
+ *
+ * <ul>
+ * <li>A load from a location with a known value becomes a copy from the
+ * register holding it.</li>
+ * <li>A store of the value that the location already holds is removed.</li>
+ * <li>A store is removed if the same location is stored to again later in
+ * the block without being read in between.</li>
+ * </ul>
+ *
+ * Locations are keyed by {@link ILOCFunction.Variable}. Stack slots
+ * ({@code [bp+c]}) and fixed addresses (a register that only ever holds one
+ * {@code loadI} constant plus a constant) are exact; other addresses (array
+ * elements, with {@code loadAO} or {@code storeAO}) are keyed by their
+ * registers and are only valid until one of them changes. Accesses with
+ * unknown addresses may alias anything in the same area (the stack frame or
+ * global memory), except for accesses to other variables (by
+ * {@link ILOCInstruction#variableName}), since array indices are assumed to
+ * be in bounds. Calls may read and write any global memory but not the
+ * caller's frame. Since stores are only removed if they are overwritten in
+ * the same block, this pass is safe even though values are not tracked
+ * across blocks.
+ */
+public class EliminateRedundantAccesses extends ILOCManagedPass
+{
+    /**
+     * A memory access: its location and what may alias it
+     */
+    private static class Access
+    {
+        ILOCFunction.Variable key;
+        boolean exact;      // key is a fixed address
+        Boolean stack;      // in the stack frame (null if unknown)
+        String name;
+
+        Access(ILOCFunction.Variable key, boolean exact, Boolean stack, String name)
+        {
+            this.key = key;
+            this.exact = exact;
+            this.stack = stack;
+            this.name = name;
+        }
+
+        boolean mayAlias(Access other)
+        {
+            if (exact && other.exact) {
+                return key.equals(other.key);
+            }
+            if (stack != null && other.stack != null && !stack.equals(other.stack)) {
+                return false;
+            }
+            return name == null || other.name == null || name.equals(other.name);
+        }
+
+        boolean uses(ILOCOperand reg)
+        {
+            return (key.base.type == ILOCOperand.Type.VIRTUAL_REG && key.base.id == reg.id) ||
+                (key.offset.type == ILOCOperand.Type.VIRTUAL_REG && key.offset.id == reg.id);
+        }
+    }
+
+    private int removed;
+
+    // per-function state
+    private Map<Integer, Integer> constants;    // register ID => loadI value
+
+    // per-block state
+    private Map<ILOCFunction.Variable, Access> accesses;
+    private Map<ILOCFunction.Variable, ILOCOperand> available;
+    private Map<ILOCFunction.Variable, Integer> unread;     // store indices
+    private Map<ILOCFunction.Variable, Access> unreadAccesses;
+
+    public EliminateRedundantAccesses()
+    {
+        this.removed = 0;
+    }
+
+    public Set<ILOCAnalysisManager.Analysis> getPreservedAnalyses()
+    {
+        return ILOCAnalysisManager.CFG_ONLY;
+    }
+
+    /**
+     * Returns the number of loads and stores removed or replaced so far
+     * @return Number of eliminated memory accesses
+     */
+    public int getRemovedCount()
+    {
+        return removed;
+    }
+
+    protected void transform(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            constants = HoistLoopInvariants.findConstants(func);
+            func.getEntryBlock();
+            for (ILOCBasicBlock b : func.allBlocks) {
+                optimizeBlock(b);
+            }
+            func.updateInstructionsFromCFG();
+        }
+    }
+
+    /**
+     * Forward values and remove stores in a single basic block
+     * @param b Block to optimize (instructions are replaced in place)
+     */
+    private void optimizeBlock(ILOCBasicBlock b)
+    {
+        accesses = new HashMap<ILOCFunction.Variable, Access>();
+        available = new HashMap<ILOCFunction.Variable, ILOCOperand>();
+        unread = new HashMap<ILOCFunction.Variable, Integer>();
+        unreadAccesses = new HashMap<ILOCFunction.Variable, Access>();
+
+        List<ILOCInstruction> code = b.instructions;
+        BitSet dead = new BitSet(code.size());
+        for (int i = 0; i < code.size(); i++) {
+            ILOCInstruction insn = code.get(i);
+            Access access = classify(insn);
+            if (access != null && isLoad(insn)) {
+                ILOCOperand dest = insn.getWriteOperand();
+                ILOCOperand value = available.get(access.key);
+                if (value != null) {
+                    ILOCInstruction copy = new ILOCInstruction(ILOCInstruction.Form.I2I,
+                            new ILOCOperand[] { value, dest }, insn.comment);
+                    copy.variableName = insn.variableName;
+                    code.set(i, copy);
+                    removed++;
+                } else {
+                    killUnread(access);
+                }
+                killDefinition(dest);
+                if (ILOCRegisterIndex.isVirtual(dest) && !access.uses(dest)) {
+                    remember(access, dest);
+                }
+            } else if (access != null) {
+                ILOCOperand value = insn.operands[0];
+                ILOCOperand known = available.get(access.key);
+                if (known != null && known.type == value.type && known.id == value.id) {
+                    dead.set(i);    // the location already holds this value
+                    removed++;
+                    continue;
+                }
+                Integer previous = unread.get(access.key);
+                if (previous != null) {
+                    dead.set(previous);
+                    removed++;
+                }
+                killAliases(access);
+                if (access.exact) {
+                    unread.put(access.key, i);
+                    unreadAccesses.put(access.key, access);
+                }
+                if (ILOCRegisterIndex.isVirtual(value)) {
+                    remember(access, value);
+                }
+            } else if (insn.form == ILOCInstruction.Form.CALL) {
+                killGlobals();
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    killDefinition(op);
+                }
+            } else {
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    killDefinition(op);
+                }
+            }
+        }
+
+        if (!dead.isEmpty()) {
+            List<ILOCInstruction> result = new ArrayList<ILOCInstruction>();
+            for (int i = 0; i < code.size(); i++) {
+                if (!dead.get(i)) {
+                    result.add(code.get(i));
+                }
+            }
+            b.instructions.clear();
+            b.instructions.addAll(result);
+        }
+    }
+
+    private void remember(Access access, ILOCOperand value)
+    {
+        accesses.put(access.key, access);
+        available.put(access.key, value);
+    }
+
+    /**
+     * Forget every location that a store may change
+     */
+    private void killAliases(Access store)
+    {
+        Iterator<Map.Entry<ILOCFunction.Variable, Access>> it = accesses.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ILOCFunction.Variable, Access> e = it.next();
+            if (e.getValue().mayAlias(store)) {
+                available.remove(e.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Keep all stores that a load may read
+     */
+    private void killUnread(Access load)
+    {
+        Iterator<Map.Entry<ILOCFunction.Variable, Access>> it =
+            unreadAccesses.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ILOCFunction.Variable, Access> e = it.next();
+            if (e.getValue().mayAlias(load)) {
+                unread.remove(e.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget global memory (which a call may read and write)
+     */
+    private void killGlobals()
+    {
+        Iterator<Map.Entry<ILOCFunction.Variable, Access>> it = accesses.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ILOCFunction.Variable, Access> e = it.next();
+            if (!Boolean.TRUE.equals(e.getValue().stack)) {
+                available.remove(e.getKey());
+                it.remove();
+            }
+        }
+        Iterator<Map.Entry<ILOCFunction.Variable, Access>> stores =
+            unreadAccesses.entrySet().iterator();
+        while (stores.hasNext()) {
+            Map.Entry<ILOCFunction.Variable, Access> e = stores.next();
+            if (!Boolean.TRUE.equals(e.getValue().stack)) {
+                unread.remove(e.getKey());
+                stores.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget everything that depends on the old value of a register
+     */
+    private void killDefinition(ILOCOperand reg)
+    {
+        if (reg.type == ILOCOperand.Type.BASE_REG) {
+            accesses.clear();
+            available.clear();
+            unread.clear();
+            unreadAccesses.clear();
+            return;
+        }
+        if (!ILOCRegisterIndex.isVirtual(reg)) {
+            return;
+        }
+        Iterator<Map.Entry<ILOCFunction.Variable, Access>> it = accesses.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ILOCFunction.Variable, Access> e = it.next();
+            ILOCOperand value = available.get(e.getKey());
+            if (e.getValue().uses(reg) || value.id == reg.id) {
+                available.remove(e.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    private static boolean isLoad(ILOCInstruction insn)
+    {
+        return insn.form == ILOCInstruction.Form.LOAD ||
+            insn.form == ILOCInstruction.Form.LOAD_AI ||
+            insn.form == ILOCInstruction.Form.LOAD_AO;
+    }
+
+    /**
+     * Determine the location accessed by a load or store
+     * @return Accessed location, or null if the instruction is not a load or
+     *         store
+     */
+    private Access classify(ILOCInstruction insn)
+    {
+        ILOCOperand[] ops = insn.operands;
+        switch (insn.form) {
+        case LOAD:
+            return classify(ops[0], ILOCOperand.ZERO, insn.variableName);
+        case LOAD_AI:
+        case LOAD_AO:
+            return classify(ops[0], ops[1], insn.variableName);
+        case STORE:
+            return classify(ops[1], ILOCOperand.ZERO, insn.variableName);
+        case STORE_AI:
+        case STORE_AO:
+            return classify(ops[1], ops[2], insn.variableName);
+        default:
+            return null;
+        }
+    }
+
+    private Access classify(ILOCOperand base, ILOCOperand offset, String name)
+    {
+        Integer offsetValue = valueOf(offset);
+        if (base.type == ILOCOperand.Type.BASE_REG) {
+            if (offsetValue != null) {
+                return new Access(new ILOCFunction.Variable(ILOCOperand.REG_BP,
+                            ILOCOperand.newIntConstant(offsetValue)), true, true, name);
+            }
+            return new Access(new ILOCFunction.Variable(base, offset), false, true, name);
+        }
+        Integer baseValue = valueOf(base);
+        if (baseValue != null && offsetValue != null) {
+            return new Access(new ILOCFunction.Variable(ILOCOperand.ZERO,
+                        ILOCOperand.newIntConstant(baseValue + offsetValue)), true, false, name);
+        }
+        return new Access(new ILOCFunction.Variable(base, offset), false,
+                (baseValue != null ? Boolean.FALSE : null), name);
+    }
+
+    /**
+     * Returns the constant value of an operand, or null if it may vary
+     */
+    private Integer valueOf(ILOCOperand op)
+    {
+        if (op.type == ILOCOperand.Type.INT_CONST) {
+            return op.intConstant;
+        }
+        if (ILOCRegisterIndex.isVirtual(op)) {
+            return constants.get(op.id);
+        }
+        return null;
+    }
+}
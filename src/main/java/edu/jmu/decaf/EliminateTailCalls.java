@@ -0,0 +1,311 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Tail call elimination. Finds calls in tail position (a CALL followed only by
+ * parameter de-allocation, moving the result into ret, and the epilogue) and
+ * rewrites them so that they do not consume any additional stack space.
+ *
+ * Self-recursive tail calls become a jump back to the start of the function
+ * body after the new argument values are stored into the current parameter
+ * slots. Other tail calls store the arguments into the caller's parameter
+ * slots, tear down the caller's frame, and jump directly to the callee; this
+ * is only done if the callee's parameters fit in the caller's parameter area,
+ * because the caller's caller will de-allocate exactly that much space.
+ *
+ * This pass expects the call sequences and the single shared epilogue emitted
+ * by {@link MyILOCGenerator}, and it should run before any pass that moves
+ * memory accesses around.
+ */
+public class EliminateTailCalls implements ILOCProcessor
+{
+    private ILOCProgram program;
+
+    /**
+     * Labels inserted at the very beginning of functions (i.e., before the
+     * prologue), used as targets of general tail calls
+     */
+    private Map<String, ILOCOperand> functionEntryLabels;
+
+    public EliminateTailCalls()
+    {
+    }
+
+    public void process(ILOCProgram program)
+    {
+        this.program = program;
+        this.functionEntryLabels = new HashMap<String, ILOCOperand>();
+        for (ILOCFunction func : program.functions) {
+            process(func);
+        }
+    }
+
+    /**
+     * Eliminate all tail calls in a single function
+     * @param func Function to optimize
+     */
+    private void process(ILOCFunction func)
+    {
+        List<ILOCInstruction> code = func.getInstructions();
+        int numParams = func.functionSymbol.paramTypes.size();
+        ILOCOperand bodyLabel = null;
+
+        for (int i = 0; i < code.size(); i++) {
+            ILOCInstruction insn = code.get(i);
+            if (insn.form != ILOCInstruction.Form.CALL) {
+                continue;
+            }
+
+            // only calls to known functions with their arguments pushed
+            // immediately before the call are candidates
+            ILOCFunction callee = program.getFunction(insn.operands[0].strConstant);
+            if (callee == null) {
+                continue;
+            }
+            int numArgs = callee.functionSymbol.paramTypes.size();
+            if (!argumentsPushedBefore(code, i, numArgs)) {
+                continue;
+            }
+
+            // the call must be followed by nothing but the epilogue
+            int tailEnd = findTailSequenceEnd(code, i, numArgs);
+            if (tailEnd < 0) {
+                continue;
+            }
+
+            boolean selfCall = (callee == func);
+            if (!selfCall && numArgs > numParams) {
+                continue;
+            }
+
+            // store the new argument values over the current parameters
+            // (all of them are already evaluated into registers)
+            for (int p = 0; p < numArgs; p++) {
+                ILOCInstruction push = code.get(i - 1 - p);
+                ILOCOperand[] ops = { push.operands[0], ILOCOperand.REG_BP,
+                    ILOCOperand.newIntConstant(Symbol.WORD_SIZE * (2 + p)) };
+                code.set(i - 1 - p, new ILOCInstruction(
+                            ILOCInstruction.Form.STORE_AI, ops, "tail call argument"));
+            }
+
+            // replace the call sequence with a jump
+            List<ILOCInstruction> jump = new ArrayList<ILOCInstruction>();
+            if (selfCall) {
+                if (bodyLabel == null) {
+                    bodyLabel = insertBodyLabel(func);
+                    i++;
+                    tailEnd++;
+                }
+                jump.add(newJump(bodyLabel, "tail recursion to " +
+                            func.functionSymbol.name));
+            } else {
+                ILOCOperand[] restoreSP = { ILOCOperand.REG_BP, ILOCOperand.REG_SP };
+                ILOCOperand[] restoreBP = { ILOCOperand.REG_BP };
+                jump.add(new ILOCInstruction(ILOCInstruction.Form.I2I, restoreSP,
+                            "tail call: release frame"));
+                jump.add(new ILOCInstruction(ILOCInstruction.Form.POP, restoreBP));
+                jump.add(newJump(getEntryLabel(callee), "tail call to " +
+                            callee.functionSymbol.name));
+            }
+            code.subList(i, tailEnd).clear();
+            code.addAll(i, jump);
+            i += jump.size() - 1;
+        }
+        func.invalidateCFG();
+    }
+
+    /**
+     * Checks whether the given number of PUSH instructions immediately
+     * precede the call at the given index.
+     */
+    private static boolean argumentsPushedBefore(List<ILOCInstruction> code,
+            int callIndex, int numArgs)
+    {
+        if (callIndex - numArgs < 0) {
+            return false;
+        }
+        for (int p = 1; p <= numArgs; p++) {
+            if (code.get(callIndex - p).form != ILOCInstruction.Form.PUSH) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether the call at the given index is in tail position:
+     * after the parameter de-allocation, the only things that may happen on
+     * the way to the epilogue are copying ret into a temporary and back,
+     * labels, and unconditional jumps.
+     *
+     * @return Index of the first instruction after the call that is not part
+     *         of the call's own fall-through sequence (i.e., the first label
+     *         reached), or -1 if the call is not in tail position
+     */
+    private static int findTailSequenceEnd(List<ILOCInstruction> code,
+            int callIndex, int numArgs)
+    {
+        int i = callIndex + 1;
+        if (numArgs > 0) {
+            if (i >= code.size() || !isStackAdjustment(code.get(i), numArgs)) {
+                return -1;
+            }
+            i++;
+        }
+
+        // the returned value may be copied into a temporary; that temporary
+        // may then only be copied back into ret
+        ILOCOperand resultReg = null;
+        if (i < code.size() && code.get(i).form == ILOCInstruction.Form.I2I &&
+                code.get(i).operands[0].type == ILOCOperand.Type.RETURN_REG &&
+                code.get(i).operands[1].type == ILOCOperand.Type.VIRTUAL_REG) {
+            resultReg = code.get(i).operands[1];
+            i++;
+        }
+        int resultReads = 0;
+        int tailEnd = -1;
+
+        // follow the path to the epilogue
+        Set<Integer> visited = new HashSet<Integer>();
+        while (i < code.size() && visited.add(Integer.valueOf(i))) {
+            ILOCInstruction insn = code.get(i);
+            if (insn.form == ILOCInstruction.Form.LABEL) {
+                if (tailEnd < 0) {
+                    tailEnd = i;
+                }
+                i++;
+            } else if (insn.form == ILOCInstruction.Form.NOP) {
+                i++;
+            } else if (insn.form == ILOCInstruction.Form.JUMP) {
+                if (tailEnd < 0) {
+                    tailEnd = i + 1;
+                }
+                i = findLabel(code, insn.operands[0]);
+                if (i < 0) {
+                    return -1;
+                }
+            } else if (insn.form == ILOCInstruction.Form.I2I &&
+                    resultReg != null &&
+                    insn.operands[0].equals(resultReg) &&
+                    insn.operands[1].type == ILOCOperand.Type.RETURN_REG) {
+                if (tailEnd >= 0) {
+                    return -1;      // copy is shared with other paths
+                }
+                resultReads++;
+                i++;
+            } else if (isEpilogue(code, i)) {
+                break;
+            } else {
+                return -1;
+            }
+        }
+        if (!isEpilogue(code, i)) {
+            return -1;
+        }
+        if (tailEnd < 0) {
+            tailEnd = i;
+        }
+
+        // the result temporary must not be used anywhere else
+        if (resultReg != null && countReads(code, resultReg) != resultReads) {
+            return -1;
+        }
+        return tailEnd;
+    }
+
+    private static boolean isStackAdjustment(ILOCInstruction insn, int numArgs)
+    {
+        return insn.form == ILOCInstruction.Form.ADD_I &&
+            insn.operands[0].type == ILOCOperand.Type.STACK_REG &&
+            insn.operands[1].intConstant == numArgs * Symbol.WORD_SIZE &&
+            insn.operands[2].type == ILOCOperand.Type.STACK_REG;
+    }
+
+    /**
+     * Checks for the standard epilogue ({@code i2i bp => sp; pop bp; return})
+     * at the given index.
+     */
+    private static boolean isEpilogue(List<ILOCInstruction> code, int i)
+    {
+        if (i + 2 >= code.size()) {
+            return false;
+        }
+        ILOCInstruction restoreSP = code.get(i);
+        ILOCInstruction restoreBP = code.get(i + 1);
+        return restoreSP.form == ILOCInstruction.Form.I2I &&
+            restoreSP.operands[0].type == ILOCOperand.Type.BASE_REG &&
+            restoreSP.operands[1].type == ILOCOperand.Type.STACK_REG &&
+            restoreBP.form == ILOCInstruction.Form.POP &&
+            restoreBP.operands[0].type == ILOCOperand.Type.BASE_REG &&
+            code.get(i + 2).form == ILOCInstruction.Form.RETURN;
+    }
+
+    private static int findLabel(List<ILOCInstruction> code, ILOCOperand label)
+    {
+        for (int i = 0; i < code.size(); i++) {
+            ILOCInstruction insn = code.get(i);
+            if (insn.form == ILOCInstruction.Form.LABEL &&
+                    insn.operands[0].type == ILOCOperand.Type.JUMP_LABEL &&
+                    insn.operands[0].id == label.id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int countReads(List<ILOCInstruction> code, ILOCOperand reg)
+    {
+        int count = 0;
+        for (ILOCInstruction insn : code) {
+            for (ILOCOperand op : insn.getReadOperands()) {
+                if (op.type == ILOCOperand.Type.VIRTUAL_REG && op.id == reg.id) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Inserts a label directly after the prologue (i.e., after the local
+     * variable stack adjustment) to serve as the target of self-recursive
+     * tail calls.
+     * @return The new label
+     */
+    private static ILOCOperand insertBodyLabel(ILOCFunction func)
+    {
+        List<ILOCInstruction> code = func.getInstructions();
+        int index = code.indexOf(func.frameAllocation);
+        assert(index >= 0);
+        ILOCOperand label = ILOCOperand.newAnonymousLabel();
+        ILOCOperand[] ops = { label };
+        code.add(index + 1, new ILOCInstruction(ILOCInstruction.Form.LABEL, ops,
+                    "tail recursion target"));
+        return label;
+    }
+
+    /**
+     * Returns a label at the very beginning of the given function (before the
+     * prologue), inserting it if necessary.
+     */
+    private ILOCOperand getEntryLabel(ILOCFunction func)
+    {
+        String name = func.functionSymbol.name;
+        if (!functionEntryLabels.containsKey(name)) {
+            ILOCOperand label = ILOCOperand.newAnonymousLabel();
+            ILOCOperand[] ops = { label };
+            func.getInstructions().add(0, new ILOCInstruction(
+                        ILOCInstruction.Form.LABEL, ops, "tail call target"));
+            func.invalidateCFG();
+            functionEntryLabels.put(name, label);
+        }
+        return functionEntryLabels.get(name);
+    }
+
+    private static ILOCInstruction newJump(ILOCOperand label, String comment)
+    {
+        ILOCOperand[] ops = { label };
+        return new ILOCInstruction(ILOCInstruction.Form.JUMP, ops, comment);
+    }
+}
@@ -0,0 +1,163 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Instruction selection for conditional branches. A comparison whose result
+ * is only used by the {@code cbr} at the end of its block is fused with the
+ * branch:
+ *
+ * <pre>
+ *   cmp_LT r1, r2 => r3
+ *   ...
+ *   cbr r3 => l1, l2              ==>     cbr_LT r1, r2 => l1, l2
+ * </pre>
+ *
+ * This saves one instruction and one register per branch. The comparison
+ * is moved down to the branch, so neither of its operands may be written in
+ * between, and its result must not be read anywhere else (it must not be
+ * live after the block or read by another instruction in it).
+ *
+ * Since the other passes only know about {@code cbr}, this pass should run
+ * at the end of the optimization pipeline (register allocation and block
+ * layout handle the fused forms).
+ */
+public class FuseCompareBranches extends ILOCManagedPass
+{
+    private int fused;
+
+    public FuseCompareBranches()
+    {
+        this.fused = 0;
+    }
+
+    public Set<ILOCAnalysisManager.Analysis> getPreservedAnalyses()
+    {
+        return ILOCAnalysisManager.CFG_ONLY;
+    }
+
+    /**
+     * Returns the number of compare-and-branch pairs fused so far
+     * @return Number of fused branches
+     */
+    public int getFusedCount()
+    {
+        return fused;
+    }
+
+    protected void transform(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            if (func.getInstructions().isEmpty()) {
+                continue;
+            }
+            ILOCLiveness liveness = analyses.getLiveness(func);
+            boolean changed = false;
+            for (ILOCBasicBlock b : func.allBlocks) {
+                changed |= fuse(b, liveness);
+            }
+            if (changed) {
+                func.updateInstructionsFromCFG();
+                analyses.invalidate(func);
+            }
+        }
+    }
+
+    /**
+     * Fuse the branch at the end of a block with the comparison that
+     * computes its condition
+     * @return True if the block was changed
+     */
+    private boolean fuse(ILOCBasicBlock b, ILOCLiveness liveness)
+    {
+        List<ILOCInstruction> code = b.instructions;
+        if (code.isEmpty()) {
+            return false;
+        }
+        ILOCInstruction cbr = code.get(code.size() - 1);
+        if (cbr.form != ILOCInstruction.Form.CBR) {
+            return false;
+        }
+        ILOCOperand cond = cbr.operands[0];
+        int r = liveness.getRegisterIndex().indexOf(cond);
+        if (!ILOCRegisterIndex.isVirtual(cond) || r < 0 || liveness.getLiveOut(b).get(r)) {
+            return false;
+        }
+
+        // find the comparison, making sure nothing in between reads its
+        // result or writes its operands
+        for (int i = code.size() - 2; i >= 0; i--) {
+            ILOCInstruction insn = code.get(i);
+            ILOCInstruction.Form form = fusedForm(insn.form);
+            if (form != null && insn.operands[2].id == cond.id &&
+                    ILOCRegisterIndex.isVirtual(insn.operands[2])) {
+                if (insn.operands[0].equals(cond) || insn.operands[1].equals(cond) ||
+                        writesAny(code.subList(i + 1, code.size() - 1),
+                            insn.operands[0], insn.operands[1])) {
+                    return false;
+                }
+                ILOCInstruction branch = new ILOCInstruction(form, new ILOCOperand[] {
+                            insn.operands[0], insn.operands[1],
+                            cbr.operands[1], cbr.operands[2] }, cbr.comment);
+                code.set(code.size() - 1, branch);
+                code.remove(i);
+                fused++;
+                return true;
+            }
+            if (insn.getReadOperands().contains(cond) || insn.getWriteOperands().contains(cond)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether any of the given instructions writes one of the given
+     * registers
+     */
+    private static boolean writesAny(List<ILOCInstruction> code, ILOCOperand a, ILOCOperand b)
+    {
+        for (ILOCInstruction insn : code) {
+            for (ILOCOperand op : insn.getWriteOperands()) {
+                if (op.equals(a) || op.equals(b)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the fused compare-and-branch form for a comparison, or null if
+     * the form is not a comparison
+     */
+    private static ILOCInstruction.Form fusedForm(ILOCInstruction.Form form)
+    {
+        switch (form) {
+        case CMP_LT:    return ILOCInstruction.Form.CBR_LT;
+        case CMP_LE:    return ILOCInstruction.Form.CBR_LE;
+        case CMP_EQ:    return ILOCInstruction.Form.CBR_EQ;
+        case CMP_GE:    return ILOCInstruction.Form.CBR_GE;
+        case CMP_GT:    return ILOCInstruction.Form.CBR_GT;
+        case CMP_NE:    return ILOCInstruction.Form.CBR_NE;
+        default:        return null;
+        }
+    }
+
+    /**
+     * Returns the comparison performed by a fused compare-and-branch form, or
+     * null if the form is not a fused branch
+     */
+    static ILOCInstruction.Form comparisonOf(ILOCInstruction.Form form)
+    {
+        switch (form) {
+        case CBR_LT:    return ILOCInstruction.Form.CMP_LT;
+        case CBR_LE:    return ILOCInstruction.Form.CMP_LE;
+        case CBR_EQ:    return ILOCInstruction.Form.CMP_EQ;
+        case CBR_GE:    return ILOCInstruction.Form.CMP_GE;
+        case CBR_GT:    return ILOCInstruction.Form.CMP_GT;
+        case CBR_NE:    return ILOCInstruction.Form.CMP_NE;
+        default:        return null;
+        }
+    }
+}
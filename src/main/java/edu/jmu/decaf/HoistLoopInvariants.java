@@ -0,0 +1,364 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Loop-invariant code motion. Moves instructions whose result is the same on
+ * every iteration of a natural loop into the loop's preheader (inserting
+ * preheaders first, see {@link InsertLoopPreheaders}). Loops are handled
+ * innermost first, so an invariant of several nested loops moves out of all
+ * of them.
+ *
+ * An instruction is invariant if each register that it reads is either
+ * defined only outside the loop or defined by another invariant instruction
+ * (bp counts as invariant unless the loop writes it). A hoisted instruction
+ * must be the only definition of its register in the loop, and that register
+ * must not be live on entry to the header, which guarantees that every use
+ * sees the hoisted value (even if the loop body never runs).
+ *
+ * Loads are invariant if the loop does not write the memory they read.
+ * Addresses are classified as stack slots (bp plus a constant), fixed
+ * addresses (a register that only ever holds one {@code loadI} constant plus
+ * a constant), or unknown addresses in the stack frame or in global memory;
+ * calls may write any global memory but not the caller's frame. Accesses to
+ * different global variables (by {@link ILOCInstruction#variableName}) never
+ * overlap, since array indices are assumed to be in bounds.
+ *
+ * Hoisting makes instructions run even when the loop body would not have, so
+ * instructions that might fault (division, and loads from unknown addresses)
+ * are only hoisted from blocks that dominate every exit of the loop (and never
+ * from loops without exits).
+ */
+public class HoistLoopInvariants extends ILOCManagedPass
+{
+    // per-function state
+    private ILOCRegisterIndex registers;
+    private Map<Integer, Integer> constants;    // register ID => loadI value
+
+    // per-loop state
+    private int[] defs;                 // definitions in the loop (by index)
+    private boolean writesBP;
+    private boolean writesUnknownStack;
+    private boolean writesUnknownGlobal;
+    private Set<Integer> writtenSlots;
+    private Set<Integer> writtenAddresses;
+    private Set<String> writtenGlobals;         // all named global writes
+    private Set<String> writtenUnknownGlobals;  // ... with unknown addresses
+
+    public HoistLoopInvariants()
+    {
+    }
+
+    public Set<ILOCAnalysisManager.Analysis> getPreservedAnalyses()
+    {
+        return ILOCAnalysisManager.CFG_ONLY;
+    }
+
+    protected void transform(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            ILOCLoops loops = analyses.getLoops(func);
+            if (loops.getLoops().isEmpty()) {
+                continue;
+            }
+            if (InsertLoopPreheaders.insertPreheaders(func, loops)) {
+                analyses.invalidate(func);
+                loops = analyses.getLoops(func);
+            }
+            constants = findConstants(func);
+
+            boolean changed = false;
+            for (ILOCLoops.Loop loop : loops.getLoops()) {
+                ILOCBasicBlock preheader = loop.getPreheader();
+                if (preheader == null) {
+                    continue;
+                }
+                if (hoist(func, loop, preheader)) {
+                    analyses.invalidate(func, ILOCAnalysisManager.Analysis.LIVENESS);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                func.updateInstructionsFromCFG();
+            }
+        }
+    }
+
+    /**
+     * Find the registers whose every definition loads the same constant
+     * @param func Function to search
+     * @return Map from register ID to constant value
+     */
+    static Map<Integer, Integer> findConstants(ILOCFunction func)
+    {
+        Map<Integer, Integer> constants = new HashMap<Integer, Integer>();
+        Set<Integer> varying = new HashSet<Integer>();
+        for (ILOCInstruction insn : func.getInstructions()) {
+            for (ILOCOperand op : insn.getWriteOperands()) {
+                if (!ILOCRegisterIndex.isVirtual(op) || varying.contains(op.id)) {
+                    continue;
+                }
+                Integer value = constants.get(op.id);
+                if (insn.form == ILOCInstruction.Form.LOAD_I &&
+                        (value == null || value == insn.operands[0].intConstant)) {
+                    constants.put(op.id, insn.operands[0].intConstant);
+                } else {
+                    constants.remove(op.id);
+                    varying.add(op.id);
+                }
+            }
+        }
+        return constants;
+    }
+
+    /**
+     * Move all invariant instructions of a loop into its preheader
+     * @return True if anything was moved
+     */
+    private boolean hoist(ILOCFunction func, ILOCLoops.Loop loop,
+            ILOCBasicBlock preheader)
+    {
+        ILOCLiveness liveness = analyses.getLiveness(func);
+        ILOCDominators dom = analyses.getDominators(func);
+        registers = liveness.getRegisterIndex();
+        BitSet liveIn = liveness.getLiveIn(loop.header);
+
+        // loop blocks in reverse postorder (definitions before uses)
+        List<ILOCBasicBlock> body = new ArrayList<ILOCBasicBlock>();
+        for (int b : dom.getReversePostorder()) {
+            if (loop.blocks.get(b)) {
+                body.add(func.allBlocks.get(b));
+            }
+        }
+        summarize(body);
+
+        // blocks that dominate every exit are executed on every iteration
+        // (in a loop without exits, no block qualifies: a guarded division
+        // must not be hoisted out of an infinite loop)
+        List<ILOCBasicBlock> exits = new ArrayList<ILOCBasicBlock>();
+        for (ILOCBasicBlock b : body) {
+            boolean exiting = b.targets.isEmpty();
+            for (ILOCBasicBlock s : b.targets) {
+                exiting |= !loop.contains(s);
+            }
+            if (exiting) {
+                exits.add(b);
+            }
+        }
+
+        // insert before the preheader's jump (if any)
+        int pos = preheader.instructions.size();
+        if (pos > 0 && preheader.instructions.get(pos - 1).form ==
+                ILOCInstruction.Form.JUMP) {
+            pos--;
+        }
+
+        boolean hoisted = false;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (ILOCBasicBlock b : body) {
+                boolean dominatesExits = !exits.isEmpty();
+                for (ILOCBasicBlock e : exits) {
+                    dominatesExits &= dom.dominates(b, e);
+                }
+                Iterator<ILOCInstruction> it = b.instructions.iterator();
+                while (it.hasNext()) {
+                    ILOCInstruction insn = it.next();
+                    if (!isInvariant(insn, liveIn, dominatesExits)) {
+                        continue;
+                    }
+                    it.remove();
+                    preheader.instructions.add(pos++, insn);
+                    defs[registers.indexOf(insn.getWriteOperand())]--;
+                    changed = true;
+                    hoisted = true;
+                }
+            }
+        }
+        return hoisted;
+    }
+
+    /**
+     * Count register definitions and classify the memory written in a loop
+     */
+    private void summarize(List<ILOCBasicBlock> body)
+    {
+        defs = new int[registers.size()];
+        writesBP = false;
+        writesUnknownStack = false;
+        writesUnknownGlobal = false;
+        writtenSlots = new HashSet<Integer>();
+        writtenAddresses = new HashSet<Integer>();
+        writtenGlobals = new HashSet<String>();
+        writtenUnknownGlobals = new HashSet<String>();
+        for (ILOCBasicBlock b : body) {
+            for (ILOCInstruction insn : b.instructions) {
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    int r = registers.indexOf(op);
+                    if (r >= 0) {
+                        defs[r]++;
+                    } else if (op.type == ILOCOperand.Type.BASE_REG) {
+                        writesBP = true;
+                    }
+                }
+                switch (insn.form) {
+                case STORE:
+                    recordWrite(insn.operands[1], null, insn.variableName);
+                    break;
+                case STORE_AI:
+                case STORE_AO:
+                    recordWrite(insn.operands[1], insn.operands[2], insn.variableName);
+                    break;
+                case CALL:
+                    writesUnknownGlobal = true;
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+        if (writesBP) {
+            writesUnknownStack = true;
+        }
+    }
+
+    private void recordWrite(ILOCOperand base, ILOCOperand offset, String name)
+    {
+        Integer address = fixedAddress(base, offset);
+        if (base.type == ILOCOperand.Type.BASE_REG) {
+            if (offset != null && offset.type == ILOCOperand.Type.INT_CONST) {
+                writtenSlots.add(offset.intConstant);
+            } else {
+                writesUnknownStack = true;
+            }
+        } else if (name == null) {
+            writesUnknownGlobal = true;
+        } else {
+            writtenGlobals.add(name);
+            if (address != null) {
+                writtenAddresses.add(address);
+            } else {
+                writtenUnknownGlobals.add(name);
+            }
+        }
+    }
+
+    /**
+     * Returns the address of a memory operand if it is a fixed global
+     * address (i.e., the base register always holds the same constant)
+     */
+    private Integer fixedAddress(ILOCOperand base, ILOCOperand offset)
+    {
+        if (!ILOCRegisterIndex.isVirtual(base) || !constants.containsKey(base.id)) {
+            return null;
+        }
+        if (offset == null) {
+            return constants.get(base.id);
+        }
+        if (offset.type == ILOCOperand.Type.INT_CONST) {
+            return constants.get(base.id) + offset.intConstant;
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether an instruction can be moved to the preheader
+     */
+    private boolean isInvariant(ILOCInstruction insn, BitSet liveIn,
+            boolean dominatesExits)
+    {
+        boolean mayFault = false;
+        switch (insn.form) {
+        case ADD:
+        case SUB:
+        case MULT:
+        case ADD_I:
+        case MULT_I:
+        case AND:
+        case OR:
+        case CMP_LT:
+        case CMP_LE:
+        case CMP_EQ:
+        case CMP_NE:
+        case CMP_GE:
+        case CMP_GT:
+        case NOT:
+        case NEG:
+        case LOAD_I:
+        case I2I:
+            break;
+        case DIV:
+            mayFault = true;
+            break;
+        case LOAD:
+            if (!readsUnwritten(insn.operands[0], null, insn.variableName)) {
+                return false;
+            }
+            mayFault = (fixedAddress(insn.operands[0], null) == null);
+            break;
+        case LOAD_AI:
+            if (!readsUnwritten(insn.operands[0], insn.operands[1], insn.variableName)) {
+                return false;
+            }
+            mayFault = (insn.operands[0].type != ILOCOperand.Type.BASE_REG &&
+                    fixedAddress(insn.operands[0], insn.operands[1]) == null);
+            break;
+        case LOAD_AO:
+            if (!readsUnwritten(insn.operands[0], insn.operands[1], insn.variableName)) {
+                return false;
+            }
+            mayFault = true;
+            break;
+        default:
+            return false;
+        }
+        if (mayFault && !dominatesExits) {
+            return false;
+        }
+
+        // the result must be a register defined only here and not live
+        // around the loop's back edges
+        int d = registers.indexOf(insn.getWriteOperand());
+        if (d < 0 || defs[d] != 1 || liveIn.get(d)) {
+            return false;
+        }
+
+        // all operands must be invariant
+        for (ILOCOperand op : insn.getReadOperands()) {
+            int r = registers.indexOf(op);
+            if (r >= 0) {
+                if (defs[r] != 0) {
+                    return false;
+                }
+            } else if (op.type != ILOCOperand.Type.BASE_REG || writesBP) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the loop leaves the memory read by a load unchanged
+     */
+    private boolean readsUnwritten(ILOCOperand base, ILOCOperand offset, String name)
+    {
+        if (base.type == ILOCOperand.Type.BASE_REG) {
+            if (offset != null && offset.type == ILOCOperand.Type.INT_CONST) {
+                return !writesUnknownStack && !writtenSlots.contains(offset.intConstant);
+            }
+            return !writesUnknownStack && writtenSlots.isEmpty();
+        }
+        if (writesUnknownGlobal) {
+            return false;
+        }
+        Integer address = fixedAddress(base, offset);
+        if (name == null) {
+            return writtenGlobals.isEmpty();
+        } else if (address != null) {
+            return !writtenAddresses.contains(address) &&
+                !writtenUnknownGlobals.contains(name);
+        }
+        return !writtenGlobals.contains(name);
+    }
+}
@@ -0,0 +1,213 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Per-function cache of analysis results (liveness, dominators, and loops) so
+ * that consecutive passes do not recompute them. The CFG itself is cached by
+ * {@link ILOCFunction}.
+ *
+ * Results are invalidated in two ways. Every cached result remembers the
+ * {@link ILOCFunction#getCFGVersion} it was computed for and is dropped
+ * automatically once the CFG has been discarded. Changes that keep the CFG but
+ * edit instructions must be reported explicitly, either directly through
+ * {@link #invalidate} or (when running under an {@link ILOCPassManager}) by
+ * not listing the affected analyses in
+ * {@link ILOCManagedPass#getPreservedAnalyses}.
+ */
+public class ILOCAnalysisManager
+{
+    /**
+     * Cached analyses
+     */
+    public enum Analysis
+    {
+        CFG,            // ILOCFunction's basic blocks and edges
+        LIVENESS,       // ILOCLiveness (and its ILOCRegisterIndex)
+        DOMINATORS,     // ILOCDominators
+        LOOPS           // ILOCLoops
+    }
+
+    /**
+     * Set of all analyses (for passes that preserve everything)
+     */
+    public static final Set<Analysis> ALL =
+        Collections.unmodifiableSet(EnumSet.allOf(Analysis.class));
+
+    /**
+     * Set of the analyses that only depend on the shape of the CFG (for passes
+     * that edit instructions but not control flow)
+     */
+    public static final Set<Analysis> CFG_ONLY =
+        Collections.unmodifiableSet(EnumSet.of(Analysis.CFG,
+                    Analysis.DOMINATORS, Analysis.LOOPS));
+
+    /**
+     * Set of no analyses
+     */
+    public static final Set<Analysis> NONE =
+        Collections.unmodifiableSet(EnumSet.noneOf(Analysis.class));
+
+    private static class Results
+    {
+        int cfgVersion;
+        ILOCLiveness liveness;
+        ILOCDominators dominators;
+        ILOCLoops loops;
+    }
+
+    private Map<ILOCFunction, Results> cache;
+    private int computed;
+    private int reused;
+
+    public ILOCAnalysisManager()
+    {
+        this.cache = new IdentityHashMap<ILOCFunction, Results>();
+        this.computed = 0;
+        this.reused = 0;
+    }
+
+    /**
+     * Returns the (possibly cached) liveness results for a function
+     * @param func Function to analyze
+     * @return Liveness for the current CFG
+     */
+    public ILOCLiveness getLiveness(ILOCFunction func)
+    {
+        Results r = lookup(func);
+        if (r.liveness == null) {
+            r.liveness = new ILOCLiveness(func);
+            computed++;
+        } else {
+            reused++;
+        }
+        return r.liveness;
+    }
+
+    /**
+     * Returns the (possibly cached) dominators of a function
+     * @param func Function to analyze
+     * @return Dominators for the current CFG
+     */
+    public ILOCDominators getDominators(ILOCFunction func)
+    {
+        Results r = lookup(func);
+        if (r.dominators == null) {
+            r.dominators = new ILOCDominators(func);
+            computed++;
+        } else {
+            reused++;
+        }
+        return r.dominators;
+    }
+
+    /**
+     * Returns the (possibly cached) loop nest of a function
+     * @param func Function to analyze
+     * @return Loops for the current CFG
+     */
+    public ILOCLoops getLoops(ILOCFunction func)
+    {
+        ILOCDominators dom = getDominators(func);
+        Results r = lookup(func);
+        if (r.loops == null) {
+            r.loops = new ILOCLoops(func, dom);
+            computed++;
+        } else {
+            reused++;
+        }
+        return r.loops;
+    }
+
+    /**
+     * Find the cache entry for a function, dropping it first if the CFG has
+     * changed since its results were computed
+     */
+    private Results lookup(ILOCFunction func)
+    {
+        func.getEntryBlock();
+        Results r = cache.get(func);
+        if (r == null || r.cfgVersion != func.getCFGVersion()) {
+            r = new Results();
+            r.cfgVersion = func.getCFGVersion();
+            cache.put(func, r);
+        }
+        return r;
+    }
+
+    /**
+     * Discard a single cached analysis of a function
+     * @param func Function that was changed
+     * @param analysis Analysis to discard ({@code CFG} discards everything)
+     */
+    public void invalidate(ILOCFunction func, Analysis analysis)
+    {
+        if (analysis == Analysis.CFG) {
+            invalidate(func);
+            return;
+        }
+        Results r = cache.get(func);
+        if (r == null) {
+            return;
+        }
+        switch (analysis) {
+        case LIVENESS:
+            r.liveness = null;
+            break;
+        case DOMINATORS:
+            r.dominators = null;
+            r.loops = null;         // loops depend on dominators
+            break;
+        case LOOPS:
+            r.loops = null;
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Discard all cached analyses of a function (including its CFG)
+     * @param func Function that was changed
+     */
+    public void invalidate(ILOCFunction func)
+    {
+        func.invalidateCFG();
+        cache.remove(func);
+    }
+
+    /**
+     * Discard all analyses that are not preserved, for every function in a
+     * program
+     * @param program Program that was changed
+     * @param preserved Analyses that are still valid
+     */
+    public void invalidateAllExcept(ILOCProgram program, Set<Analysis> preserved)
+    {
+        for (ILOCFunction func : program.functions) {
+            for (Analysis a : Analysis.values()) {
+                if (!preserved.contains(a)) {
+                    invalidate(func, a);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of analyses that were actually computed
+     * @return Computation count
+     */
+    public int getComputedCount()
+    {
+        return computed;
+    }
+
+    /**
+     * Returns the number of requests that were answered from the cache
+     * @return Cache hit count
+     */
+    public int getReusedCount()
+    {
+        return reused;
+    }
+}
@@ -7,6 +7,12 @@ public class ILOCBasicBlock
     public static int nextID = 1;
     public int id;
 
+    /**
+     * Position of this block in its function's list of blocks (i.e., a dense
+     * block number suitable for indexing arrays in analyses)
+     */
+    public int index;
+
     public List<ILOCBasicBlock> sources;
     public List<ILOCBasicBlock> targets;
     
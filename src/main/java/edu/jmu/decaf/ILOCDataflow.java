@@ -0,0 +1,219 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Generic iterative bit-vector dataflow solver over the CFG of a single
+ * {@link ILOCFunction}. Concrete analyses choose a direction, a meet operator,
+ * and the size of the bit-vector universe, and then describe each block with
+ * a GEN and a KILL set. The solver computes the fixpoint of
+ *
+ * <pre>
+ * forward:   In(b)  = meet of Out(p) for all predecessors p
+ *            Out(b) = Gen(b) + (In(b) - Kill(b))
+ *
+ * backward:  Out(b) = meet of In(s) for all successors s
+ *            In(b)  = Gen(b) + (Out(b) - Kill(b))
+ * </pre>
+ *
+ * Blocks are processed with a worklist seeded in reverse postorder (forward
+ * problems) or postorder (backward problems), so most problems converge in
+ * very few passes. Blocks are identified by {@link ILOCBasicBlock#index}.
+ *
+ * Register-based problems should use {@link ILOCRegisterIndex} to map virtual
+ * registers to bit positions.
+ */
+public abstract class ILOCDataflow
+{
+    public enum Direction { FORWARD, BACKWARD }
+    public enum Meet { UNION, INTERSECTION }
+
+    protected ILOCFunction func;
+    protected List<ILOCBasicBlock> blocks;
+    protected int universe;
+    private Direction direction;
+    private Meet meet;
+
+    protected BitSet[] gen;
+    protected BitSet[] kill;
+    protected BitSet[] in;
+    protected BitSet[] out;
+
+    /**
+     * Set up a new problem for the current CFG of a function. Subclasses
+     * should call {@link #solve} once their own fields are initialized.
+     * @param func Function to analyze
+     * @param universe Number of bits in each set
+     * @param direction Direction of information flow
+     * @param meet Confluence operator
+     */
+    protected ILOCDataflow(ILOCFunction func, int universe,
+            Direction direction, Meet meet)
+    {
+        this.func = func;
+        func.getEntryBlock();
+        this.blocks = func.allBlocks;
+        this.universe = universe;
+        this.direction = direction;
+        this.meet = meet;
+    }
+
+    /**
+     * Fill in the GEN and KILL sets for a block (both initially empty)
+     * @param b Basic block
+     * @param gen GEN set to fill in
+     * @param kill KILL set to fill in
+     */
+    protected abstract void initBlock(ILOCBasicBlock b, BitSet gen, BitSet kill);
+
+    /**
+     * Returns the value at the boundary of the CFG: In(entry) for forward
+     * problems and Out(exit) for backward problems. The default is empty.
+     * @return Boundary value (will not be modified)
+     */
+    protected BitSet boundary()
+    {
+        return new BitSet(universe);
+    }
+
+    /**
+     * Compute the fixpoint solution
+     */
+    protected void solve()
+    {
+        int n = blocks.size();
+        gen = new BitSet[n];
+        kill = new BitSet[n];
+        in = new BitSet[n];
+        out = new BitSet[n];
+        BitSet boundary = boundary();
+        for (ILOCBasicBlock b : blocks) {
+            gen[b.index] = new BitSet(universe);
+            kill[b.index] = new BitSet(universe);
+            initBlock(b, gen[b.index], kill[b.index]);
+            in[b.index] = initialValue();
+            out[b.index] = initialValue();
+        }
+
+        boolean forward = (direction == Direction.FORWARD);
+        int[] order = postorder();
+        Deque<ILOCBasicBlock> worklist = new ArrayDeque<ILOCBasicBlock>();
+        boolean[] queued = new boolean[n];
+        for (int i = 0; i < order.length; i++) {
+            int idx = forward ? order[order.length - 1 - i] : order[i];
+            worklist.add(blocks.get(idx));
+            queued[idx] = true;
+        }
+
+        BitSet scratch = new BitSet(universe);
+        while (!worklist.isEmpty()) {
+            ILOCBasicBlock b = worklist.poll();
+            queued[b.index] = false;
+
+            // meet over all incoming edges (in the direction of flow)
+            List<ILOCBasicBlock> incoming = forward ? b.sources : b.targets;
+            BitSet merged = forward ? in[b.index] : out[b.index];
+            if (incoming.isEmpty()) {
+                merged.clear();
+                merged.or(boundary);
+            } else {
+                boolean first = true;
+                for (ILOCBasicBlock p : incoming) {
+                    BitSet other = forward ? out[p.index] : in[p.index];
+                    if (first) {
+                        merged.clear();
+                        merged.or(other);
+                        first = false;
+                    } else if (meet == Meet.UNION) {
+                        merged.or(other);
+                    } else {
+                        merged.and(other);
+                    }
+                }
+            }
+
+            // apply the transfer function
+            scratch.clear();
+            scratch.or(merged);
+            scratch.andNot(kill[b.index]);
+            scratch.or(gen[b.index]);
+            BitSet result = forward ? out[b.index] : in[b.index];
+            if (!scratch.equals(result)) {
+                result.clear();
+                result.or(scratch);
+                for (ILOCBasicBlock s : (forward ? b.targets : b.sources)) {
+                    if (!queued[s.index]) {
+                        queued[s.index] = true;
+                        worklist.add(s);
+                    }
+                }
+            }
+        }
+    }
+
+    private BitSet initialValue()
+    {
+        BitSet value = new BitSet(universe);
+        if (meet == Meet.INTERSECTION) {
+            value.set(0, universe);
+        }
+        return value;
+    }
+
+    /**
+     * Computes a postorder of all blocks (iteratively, so that huge functions
+     * do not overflow the Java stack). Blocks unreachable from the entry are
+     * appended at the end.
+     */
+    private int[] postorder()
+    {
+        int n = blocks.size();
+        int[] order = new int[n];
+        int count = 0;
+        boolean[] visited = new boolean[n];
+        int[] nextChild = new int[n];
+        Deque<ILOCBasicBlock> stack = new ArrayDeque<ILOCBasicBlock>();
+        ILOCBasicBlock entry = func.getEntryBlock();
+        stack.push(entry);
+        visited[entry.index] = true;
+        while (!stack.isEmpty()) {
+            ILOCBasicBlock b = stack.peek();
+            if (nextChild[b.index] < b.targets.size()) {
+                ILOCBasicBlock s = b.targets.get(nextChild[b.index]++);
+                if (!visited[s.index]) {
+                    visited[s.index] = true;
+                    stack.push(s);
+                }
+            } else {
+                stack.pop();
+                order[count++] = b.index;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (!visited[i]) {
+                order[count++] = i;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Returns the solution on entry to a block
+     * @param b Basic block
+     * @return Set of facts (do not modify)
+     */
+    public BitSet getIn(ILOCBasicBlock b)
+    {
+        return in[b.index];
+    }
+
+    /**
+     * Returns the solution on exit from a block
+     * @param b Basic block
+     * @return Set of facts (do not modify)
+     */
+    public BitSet getOut(ILOCBasicBlock b)
+    {
+        return out[b.index];
+    }
+}
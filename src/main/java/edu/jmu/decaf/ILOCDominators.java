@@ -0,0 +1,285 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Dominator analysis for the CFG of a single {@link ILOCFunction}, using the
+ * iterative algorithm of Cooper, Harvey, and Kennedy ("A Simple, Fast
+ * Dominance Algorithm"). Immediate dominators are stored in an int array
+ * indexed by {@link ILOCBasicBlock#index}; blocks that are unreachable from the
+ * entry have no immediate dominator (-1).
+ *
+ * The dominator tree is stored in compressed form (children of each block are
+ * a contiguous slice of a single int array), and each reachable block is
+ * numbered on entry to and exit from a depth-first walk of the tree, so that
+ * {@link #dominates} takes constant time. Dominance frontiers are computed on
+ * demand from the immediate dominators.
+ */
+public class ILOCDominators
+{
+    private List<ILOCBasicBlock> blocks;
+    private int entry;
+    private int[] idom;
+    private int[] postorder;
+    private int[] postorderNumber;
+    private int[] childStart;
+    private int[] children;
+    private int[] treeEnter;
+    private int[] treeExit;
+    private int[][] frontiers;
+
+    /**
+     * Compute dominators for the current CFG of a function
+     * @param func Function to analyze
+     */
+    public ILOCDominators(ILOCFunction func)
+    {
+        entry = func.getEntryBlock().index;
+        blocks = func.allBlocks;
+        computePostorder();
+        computeDominators();
+        buildTree();
+    }
+
+    /**
+     * Numbers the reachable blocks in postorder (iteratively, so that huge
+     * functions do not overflow the Java stack)
+     */
+    private void computePostorder()
+    {
+        int n = blocks.size();
+        int[] order = new int[n];
+        int count = 0;
+        postorderNumber = new int[n];
+        Arrays.fill(postorderNumber, -1);
+        boolean[] visited = new boolean[n];
+        int[] nextChild = new int[n];
+        int[] stack = new int[n];
+        int top = 0;
+        stack[top++] = entry;
+        visited[entry] = true;
+        while (top > 0) {
+            ILOCBasicBlock b = blocks.get(stack[top - 1]);
+            if (nextChild[b.index] < b.targets.size()) {
+                int s = b.targets.get(nextChild[b.index]++).index;
+                if (!visited[s]) {
+                    visited[s] = true;
+                    stack[top++] = s;
+                }
+            } else {
+                top--;
+                postorderNumber[b.index] = count;
+                order[count++] = b.index;
+            }
+        }
+        postorder = Arrays.copyOf(order, count);
+    }
+
+    private void computeDominators()
+    {
+        idom = new int[blocks.size()];
+        Arrays.fill(idom, -1);
+        idom[entry] = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+
+            // reverse postorder, skipping the entry
+            for (int i = postorder.length - 2; i >= 0; i--) {
+                ILOCBasicBlock b = blocks.get(postorder[i]);
+                int newIdom = -1;
+                for (ILOCBasicBlock p : b.sources) {
+                    if (idom[p.index] == -1) {
+                        continue;       // not yet processed (or unreachable)
+                    }
+                    newIdom = (newIdom == -1 ? p.index : intersect(p.index, newIdom));
+                }
+                if (idom[b.index] != newIdom) {
+                    idom[b.index] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Build the compressed child lists of the dominator tree and number each
+     * node on entry and exit of a (non-recursive) depth-first walk
+     */
+    private void buildTree()
+    {
+        int n = blocks.size();
+        childStart = new int[n + 1];
+        for (int b : postorder) {
+            if (b != entry) {
+                childStart[idom[b] + 1]++;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            childStart[i + 1] += childStart[i];
+        }
+        children = new int[Math.max(postorder.length - 1, 0)];
+        int[] fill = Arrays.copyOf(childStart, n);
+        for (int i = postorder.length - 1; i >= 0; i--) {
+            int b = postorder[i];
+            if (b != entry) {
+                children[fill[idom[b]]++] = b;
+            }
+        }
+
+        treeEnter = new int[n];
+        treeExit = new int[n];
+        Arrays.fill(treeEnter, -1);
+        Arrays.fill(treeExit, -1);
+        int[] stack = new int[n];
+        int[] next = Arrays.copyOf(childStart, n);
+        int top = 0;
+        int clock = 0;
+        stack[top++] = entry;
+        treeEnter[entry] = clock++;
+        while (top > 0) {
+            int b = stack[top - 1];
+            if (next[b] < childStart[b + 1]) {
+                int c = children[next[b]++];
+                treeEnter[c] = clock++;
+                stack[top++] = c;
+            } else {
+                treeExit[b] = clock++;
+                top--;
+            }
+        }
+    }
+
+    /**
+     * Walks up the (partial) dominator tree from two blocks to their nearest
+     * common dominator
+     */
+    private int intersect(int b1, int b2)
+    {
+        while (b1 != b2) {
+            while (postorderNumber[b1] < postorderNumber[b2]) {
+                b1 = idom[b1];
+            }
+            while (postorderNumber[b2] < postorderNumber[b1]) {
+                b2 = idom[b2];
+            }
+        }
+        return b1;
+    }
+
+    /**
+     * Returns the immediate dominator of a block
+     * @param b Basic block
+     * @return Immediate dominator, or {@code null} for the entry block and
+     *         unreachable blocks
+     */
+    public ILOCBasicBlock getIdom(ILOCBasicBlock b)
+    {
+        int d = idom[b.index];
+        return (d == -1 || b.index == entry ? null : blocks.get(d));
+    }
+
+    /**
+     * Checks whether a block is reachable from the entry
+     * @param b Basic block
+     * @return True if the block is reachable
+     */
+    public boolean isReachable(ILOCBasicBlock b)
+    {
+        return idom[b.index] != -1;
+    }
+
+    /**
+     * Checks whether one block dominates another (every block dominates
+     * itself)
+     * @param a Potential dominator
+     * @param b Basic block
+     * @return True if {@code a} dominates {@code b}
+     */
+    public boolean dominates(ILOCBasicBlock a, ILOCBasicBlock b)
+    {
+        if (!isReachable(a) || !isReachable(b)) {
+            return false;
+        }
+        return treeEnter[a.index] <= treeEnter[b.index] &&
+               treeExit[b.index] <= treeExit[a.index];
+    }
+
+    /**
+     * Returns the children of a block in the dominator tree (in reverse
+     * postorder of the CFG)
+     * @param b Basic block
+     * @return Dense block indices
+     */
+    public int[] getChildren(ILOCBasicBlock b)
+    {
+        return Arrays.copyOfRange(children, childStart[b.index], childStart[b.index + 1]);
+    }
+
+    /**
+     * Returns the reachable blocks in reverse postorder (the entry first)
+     * @return Dense block indices
+     */
+    public int[] getReversePostorder()
+    {
+        int[] rpo = new int[postorder.length];
+        for (int i = 0; i < postorder.length; i++) {
+            rpo[i] = postorder[postorder.length - 1 - i];
+        }
+        return rpo;
+    }
+
+    /**
+     * Returns the dominance frontier of a block, i.e., the blocks where its
+     * dominance ends
+     * @param b Basic block
+     * @return Dense block indices (do not modify)
+     */
+    public int[] getFrontier(ILOCBasicBlock b)
+    {
+        if (frontiers == null) {
+            computeFrontiers();
+        }
+        return frontiers[b.index];
+    }
+
+    private void computeFrontiers()
+    {
+        int n = blocks.size();
+        int[][] df = new int[n][];
+        int[] size = new int[n];
+        for (int i = 0; i < n; i++) {
+            df[i] = new int[0];
+        }
+        for (int bi : postorder) {
+            ILOCBasicBlock b = blocks.get(bi);
+            if (b.sources.size() < 2) {
+                continue;
+            }
+            for (ILOCBasicBlock p : b.sources) {
+                int runner = p.index;
+                if (idom[runner] == -1) {
+                    continue;       // unreachable predecessor
+                }
+                while (runner != idom[bi]) {
+                    // all additions for b happen consecutively, so checking
+                    // the last entry suffices to avoid duplicates
+                    if (size[runner] == 0 || df[runner][size[runner] - 1] != bi) {
+                        if (size[runner] == df[runner].length) {
+                            df[runner] = Arrays.copyOf(df[runner], size[runner] * 2 + 1);
+                        }
+                        df[runner][size[runner]++] = bi;
+                    }
+                    if (runner == entry) {
+                        break;
+                    }
+                    runner = idom[runner];
+                }
+            }
+        }
+        frontiers = new int[n][];
+        for (int i = 0; i < n; i++) {
+            frontiers[i] = Arrays.copyOf(df[i], size[i]);
+        }
+    }
+}
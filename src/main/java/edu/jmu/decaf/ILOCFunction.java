@@ -12,7 +12,7 @@ public class ILOCFunction
     /**
      * Helper wrapper class for debug variable information (useful for data flow analysis)
      */
-    public class Variable
+    public static class Variable
     {
         public ILOCOperand base;
         public ILOCOperand offset;
@@ -51,6 +51,12 @@ public class ILOCFunction
      */
     public int localSize;
 
+    /**
+     * The prologue's stack adjustment ({@code addI sp, -N => sp}) that
+     * allocates {@link #localSize} bytes, or null if there is no prologue
+     */
+    public ILOCInstruction frameAllocation;
+
     /**
      * List of ILOC instructions
      */
@@ -66,6 +72,12 @@ public class ILOCFunction
      */
     public List<ILOCBasicBlock> allBlocks;
 
+    /**
+     * Incremented every time the CFG is discarded (so that cached analyses
+     * can detect that they are stale)
+     */
+    private int cfgVersion;
+
     /**
      * Create a new (empty) ILOC function
      *
@@ -75,9 +87,11 @@ public class ILOCFunction
     {
         this.functionSymbol = symbol;
         this.localSize = 0;
+        this.frameAllocation = null;
         this.instructions = new ArrayList<ILOCInstruction>();
         this.entryBlock = null;
         this.allBlocks = new ArrayList<ILOCBasicBlock>();
+        this.cfgVersion = 0;
     }
 
     /**
@@ -91,23 +105,68 @@ public class ILOCFunction
     }
 
     /**
-     * Replace all instructions with a new sequence.
+     * Replace all instructions with a new sequence. This discards the CFG.
      *
      * @param instructions Replacement instructions
      */
     public void setInstructions(List<ILOCInstruction> instructions)
     {
         this.instructions = instructions;
+        invalidateCFG();
     }
 
     /**
-     * Append a new instruction to the function.
+     * Append a new instruction to the function. This discards the CFG.
      *
      * @param insn New instruction
      */
     public void addInstruction(ILOCInstruction insn)
     {
         this.instructions.add(insn);
+        invalidateCFG();
+    }
+
+    /**
+     * Rebuild the instruction list by concatenating the instructions of all
+     * blocks (in their original order) while keeping the current CFG. This is
+     * only valid for passes that edit instructions inside blocks without
+     * changing any control flow (labels, jumps, and branches).
+     */
+    public void updateInstructionsFromCFG()
+    {
+        assert(this.entryBlock != null);
+        List<ILOCInstruction> code = new ArrayList<ILOCInstruction>();
+        for (ILOCBasicBlock b : allBlocks) {
+            code.addAll(b.instructions);
+        }
+        this.instructions = code;
+    }
+
+    /**
+     * Reserve additional space for local data in the stack frame (e.g., for
+     * register spill slots) and update the prologue's stack adjustment to
+     * match. The new space is at the bottom of the frame.
+     *
+     * @param size Number of bytes to reserve
+     * @return Offset of the new space from the base pointer (negative)
+     */
+    public int allocateLocal(int size)
+    {
+        localSize += size;
+        updateFrameSize();
+        return -localSize;
+    }
+
+    /**
+     * Rewrite the prologue's stack adjustment ({@link #frameAllocation}) to
+     * match the current {@link #localSize}.
+     */
+    public void updateFrameSize()
+    {
+        assert(frameAllocation != null);       // no prologue
+        frameAllocation.operands[1] = ILOCOperand.newIntConstant(-localSize);
+        frameAllocation.comment = "allocate space for local variables (" +
+            localSize + " bytes)";
     }
 
     /**
@@ -124,6 +183,56 @@ public class ILOCFunction
         return this.entryBlock;
     }
 
+    /**
+     * Discards the current control flow graph (if any), so that the next call
+     * to {@link #getEntryBlock} rebuilds it from the current instructions.
+     * {@link #setInstructions} does this automatically; passes that modify the
+     * instruction list (or the instructions of blocks) in place should call
+     * this afterwards.
+     */
+    public void invalidateCFG()
+    {
+        if (this.entryBlock != null) {
+            this.entryBlock = null;
+            this.allBlocks = new ArrayList<ILOCBasicBlock>();
+            this.cfgVersion++;
+        }
+    }
+
+    /**
+     * Checks whether the current CFG (if any) still holds exactly the
+     * instructions of the instruction list, in order. A CFG can go stale if
+     * the list was edited in place without calling {@link #invalidateCFG}.
+     *
+     * @return True if there is a CFG and it matches the instruction list
+     */
+    public boolean isCFGCurrent()
+    {
+        if (this.entryBlock == null) {
+            return false;
+        }
+        Iterator<ILOCInstruction> it = instructions.iterator();
+        for (ILOCBasicBlock b : allBlocks) {
+            for (ILOCInstruction insn : b.instructions) {
+                if (!it.hasNext() || it.next() != insn) {
+                    return false;
+                }
+            }
+        }
+        return !it.hasNext();
+    }
+
+    /**
+     * Returns a counter that changes whenever the CFG is discarded. Analysis
+     * results computed for one version of the CFG are stale once it changes.
+     *
+     * @return CFG version
+     */
+    public int getCFGVersion()
+    {
+        return this.cfgVersion;
+    }
+
     /**
      * Builds the control flow graph for this function.
      *
@@ -134,6 +243,9 @@ public class ILOCFunction
         Map<Integer, ILOCBasicBlock> blockByLabelID = new HashMap<Integer, ILOCBasicBlock>();
         ILOCBasicBlock curBlock;
 
+        // discard any previous CFG (rather than appending to it)
+        invalidateCFG();
+
         // create entry point
         curBlock = ILOCBasicBlock.newBasicBlock();
         this.entryBlock = curBlock;
@@ -148,7 +260,7 @@ public class ILOCFunction
             // if it's a leader (i.e., a label or it directly follows a branch)
             if (insn.form == ILOCInstruction.Form.LABEL
                     || (i > 0 && instructions.get(i - 1).form == ILOCInstruction.Form.JUMP)
-                    || (i > 0 && instructions.get(i - 1).form == ILOCInstruction.Form.CBR)) {
+                    || (i > 0 && instructions.get(i - 1).isConditionalBranch())) {
 
                 if (i > 0) {
                     // don't create a new block if this is the first instruction
@@ -165,6 +277,11 @@ public class ILOCFunction
             curBlock.instructions.add(insn);
         }
 
+        // number blocks densely for analyses
+        for (int i = 0; i < allBlocks.size(); i++) {
+            allBlocks.get(i).index = i;
+        }
+
         // PHASE 2 - detect control flow edges between basic blocks
 
         // for each basic block
@@ -175,14 +292,19 @@ public class ILOCFunction
             for (ILOCInstruction inst : sourceBlock.instructions) {
                 if (inst.form == ILOCInstruction.Form.JUMP) {
                     ILOCBasicBlock targetBlock = blockByLabelID.get(inst.operands[0].id);
-                    sourceBlock.targets.add(targetBlock);
-                    targetBlock.sources.add(sourceBlock);
+                    if (targetBlock != null) {
+                        sourceBlock.targets.add(targetBlock);
+                        targetBlock.sources.add(sourceBlock);
+                    }
+                    // otherwise it is a jump into another function (e.g., a
+                    // tail call), which leaves this CFG
                 }
-                if (inst.form == ILOCInstruction.Form.CBR) {
-                    ILOCBasicBlock targetBlock = blockByLabelID.get(inst.operands[1].id);
+                if (inst.isConditionalBranch()) {
+                    int n = inst.operands.length;
+                    ILOCBasicBlock targetBlock = blockByLabelID.get(inst.operands[n - 2].id);
                     sourceBlock.targets.add(targetBlock);
                     targetBlock.sources.add(sourceBlock);
-                    targetBlock = blockByLabelID.get(inst.operands[2].id);
+                    targetBlock = blockByLabelID.get(inst.operands[n - 1].id);
                     sourceBlock.targets.add(targetBlock);
                     targetBlock.sources.add(sourceBlock);
                 }
@@ -192,7 +314,8 @@ public class ILOCFunction
             if (sourceBlock.instructions.size() > 0 && i < allBlocks.size() - 1) {
                 ILOCInstruction lastInsn = sourceBlock.instructions.get(sourceBlock.instructions.size() - 1);
                 ILOCBasicBlock nextBlock = allBlocks.get(i + 1);
-                if (lastInsn.form != ILOCInstruction.Form.JUMP && lastInsn.form != ILOCInstruction.Form.CBR) {
+                if (lastInsn.form != ILOCInstruction.Form.JUMP && !lastInsn.isConditionalBranch() &&
+                        lastInsn.form != ILOCInstruction.Form.RETURN) {
                     sourceBlock.targets.add(nextBlock);
                     nextBlock.sources.add(sourceBlock);
                 }
@@ -204,17 +327,16 @@ public class ILOCFunction
 
     /**
      * Flattens the control-flow graph into linear form (presumably after
-     * modifications have been made to the CFG).
+     * modifications have been made to the CFG), placing the blocks that are
+     * reachable from the entry in breadth-first order.
      */
     public void flattenCFG()
     {
         Set<ILOCBasicBlock> handled = new HashSet<ILOCBasicBlock>();
         Queue<ILOCBasicBlock> workQueue = new ArrayDeque<ILOCBasicBlock>();
+        List<ILOCBasicBlock> order = new ArrayList<ILOCBasicBlock>();
 
-        // create new instruction list
-        this.instructions = new ArrayList<ILOCInstruction>();
-
-        // start at entry block
+        // start at entry block (building the CFG first if necessary)
         workQueue.add(getEntryBlock());
 
         // for each block in the work queue
@@ -225,14 +347,53 @@ public class ILOCFunction
             if (handled.contains(b)) {
                 continue;
             }
+            order.add(b);
+
+            // add any unhandled targets to the work queue
+            handled.add(b);
+            for (ILOCBasicBlock bb : b.targets) {
+                if (!handled.contains(bb)) {
+                    workQueue.add(bb);
+                }
+            }
+        }
+        flattenCFG(order);
+    }
+
+    /**
+     * Flattens the control-flow graph into linear form with the blocks in
+     * the given order (e.g., as chosen by {@link LayoutBlocks}). The entry
+     * block must come first, and blocks that are not listed are dropped.
+     * Jumps to the block that comes next are left out, and explicit jumps
+     * are added wherever a fall-through edge is broken.
+     *
+     * @param order Blocks in their new order
+     */
+    public void flattenCFG(List<ILOCBasicBlock> order)
+    {
+        assert(order.get(0) == getEntryBlock());
+
+        // create new instruction list
+        this.instructions = new ArrayList<ILOCInstruction>();
+
+        for (int i = 0; i < order.size(); i++) {
+            ILOCBasicBlock b = order.get(i);
+            ILOCBasicBlock next = (i + 1 < order.size() ? order.get(i + 1) : null);
 
             // add all instructions, tracking whether the most recently-added
             // was a branch
             boolean lastWasBranch = false;
-            for (ILOCInstruction insn : b.instructions) {
+            int n = b.instructions.size();
+            for (int j = 0; j < n; j++) {
+                ILOCInstruction insn = b.instructions.get(j);
+                if (j == n - 1 && insn.form == ILOCInstruction.Form.JUMP &&
+                        b.targets.size() == 1 && b.targets.get(0) == next) {
+                    break;
+                }
                 this.instructions.add(insn);
                 if (insn.form == ILOCInstruction.Form.JUMP ||
-                    insn.form == ILOCInstruction.Form.CBR) {
+                    insn.isConditionalBranch() ||
+                    insn.form == ILOCInstruction.Form.RETURN) {
                     lastWasBranch = true;
                 } else {
                     lastWasBranch = false;
@@ -241,27 +402,22 @@ public class ILOCFunction
 
             // if the last instruction was not a branch but there is a target,
             // there must have been a fallthrough edge; the only safe thing to
-            // do in this case is to insert an explicit jump to the target
-            if (!lastWasBranch && b.targets.size() > 0) {
+            // do in this case (unless the target comes next) is to insert an
+            // explicit jump to the target
+            if (!lastWasBranch && b.targets.size() > 0 && b.targets.get(0) != next) {
                 assert(b.targets.size() == 1);
                 assert(b.targets.get(0).instructions.size() > 0);
                 ILOCInstruction target = b.targets.get(0).instructions.get(0);
                 assert(target.form == ILOCInstruction.Form.LABEL);
                 ILOCOperand ops[] = new ILOCOperand[1];
-                ops[0] = ILOCOperand.newAnonymousLabel();
-                ops[0].id = target.operands[0].id;
+                ops[0] = ILOCOperand.newJumpLabel(target.operands[0].id);
                 this.instructions.add(new ILOCInstruction(
                         ILOCInstruction.Form.JUMP, ops, "new jump"));
             }
-
-            // add any unhandled targets to the work queue
-            handled.add(b);
-            for (ILOCBasicBlock bb : b.targets) {
-                if (!handled.contains(bb)) {
-                    workQueue.add(bb);
-                }
-            }
         }
+
+        // the new jumps are not part of any block
+        invalidateCFG();
     }
 
     /**
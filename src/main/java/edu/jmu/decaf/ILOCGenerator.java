@@ -51,6 +51,7 @@ public abstract class ILOCGenerator extends DefaultASTVisitor
         {
             ILOCFunction ilocFunc = new ILOCFunction(DecafAnalysis.lookupSymbol(node, func.name));
             ilocFunc.localSize = ((Integer)func.attributes.get("localSize")).intValue();
+            ilocFunc.frameAllocation = (ILOCInstruction)func.attributes.get("frameAllocation");
             program.functions.add(ilocFunc);
             for (ILOCInstruction insn : getCode(func)) {
                 ilocFunc.getInstructions().add(insn);
@@ -307,7 +308,9 @@ public abstract class ILOCGenerator extends DefaultASTVisitor
      * variables of a function. Note that this space does not need to be
      * explicitly de-allocated at the end of the function if the standard
      * calling conventions are used, because the base pointer already stores
-     * the original stack pointer at the point of control transfer.
+     * the original stack pointer at the point of control transfer. The
+     * instruction is saved as the "frameAllocation" attribute of the function
+     * (see {@link ILOCFunction#frameAllocation}).
      * @param node Destination AST node
      */
     public void emitLocalVarStackAdjustment(ASTFunction node)
@@ -316,6 +319,8 @@ public abstract class ILOCGenerator extends DefaultASTVisitor
         emit(node, ILOCInstruction.Form.ADD_I, ILOCOperand.REG_SP,
                 ILOCOperand.newIntConstant(-localSize), ILOCOperand.REG_SP);
         addComment(node, "allocate space for local variables (" + localSize + " bytes)");
+        List<ILOCInstruction> code = getCode(node);
+        node.attributes.put("frameAllocation", code.get(code.size() - 1));
     }
 
     /**
@@ -4,10 +4,12 @@ import java.util.*;
 
 /**
  * Represents a single ILOC instruction in a pseudo-triple format, including a
- * "form" indicator (enum) and up to three operands, which can
- * represent virtual register IDs, special registers, constants, or jump/call
- * targets. Boolean constants are represented using zero for false and any
- * other value for true.
+ * "form" indicator (enum) and its operands (up to three, except for the fused
+ * compare-and-branch forms, which have four, and phi functions, which have
+ * one per predecessor plus the destination). Operands can represent virtual
+ * register IDs, special registers, constants, or jump/call targets. Boolean
+ * constants are represented using zero for false and any other value for
+ * true.
  */
 public class ILOCInstruction implements Cloneable
 {
@@ -62,7 +64,14 @@ public class ILOCInstruction implements Cloneable
         CMP_GT,         //  r1 >  r2    =>      r3
         CMP_NE,         //  r1 != r2    =>      r3
 
-        // missing: COMP, CBR_LT, CBR_LE, CBR_EQ, CBR_GE, CBR_GT, CBR_NE
+        CBR_LT,         //  r1 <  r2    =>      PC=l3 || PC=l4
+        CBR_LE,         //  r1 <= r2    =>      PC=l3 || PC=l4
+        CBR_EQ,         //  r1 == r2    =>      PC=l3 || PC=l4
+        CBR_GE,         //  r1 >= r2    =>      PC=l3 || PC=l4
+        CBR_GT,         //  r1 >  r2    =>      PC=l3 || PC=l4
+        CBR_NE,         //  r1 != r2    =>      PC=l3 || PC=l4
+
+        // missing: COMP
 
         // new (not in EAC):
 
@@ -77,7 +86,7 @@ public class ILOCInstruction implements Cloneable
         NOP,
 
         // SSA
-        PHI             //  phi(r1, r2) =>      r3
+        PHI             //  phi(r1, ..., rn) => rd   (one source per predecessor)
 
     }
 
@@ -141,6 +150,29 @@ public class ILOCInstruction implements Cloneable
         return insn;
     }
 
+    /**
+     * Checks whether this instruction is a conditional branch ({@code cbr} or
+     * one of the fused compare-and-branch forms). The two targets of a
+     * conditional branch are always its last two operands (taken if the
+     * condition is true, then taken if it is false).
+     * @return True if this is a conditional branch
+     */
+    public boolean isConditionalBranch()
+    {
+        switch (form) {
+        case CBR:
+        case CBR_LT:
+        case CBR_LE:
+        case CBR_EQ:
+        case CBR_GE:
+        case CBR_GT:
+        case CBR_NE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
     /**
      * Returns a list of ILOCOperands read by this instruction. Reports only
      * register or memory operands.
@@ -179,13 +211,23 @@ public class ILOCInstruction implements Cloneable
         case CMP_NE:
         case CMP_GE:
         case CMP_GT:
+        case CBR_LT:
+        case CBR_LE:
+        case CBR_EQ:
+        case CBR_NE:
+        case CBR_GE:
+        case CBR_GT:
         case LOAD_AO:
         case STORE:
         case STORE_AI:
-        case PHI:
             ops.add(operands[0]);
             ops.add(operands[1]);
             break;
+        case PHI:
+            for (int i = 0; i < operands.length - 1; i++) {
+                ops.add(operands[i]);
+            }
+            break;
         case ADD_I:
         case MULT_I:
         case LOAD:
@@ -243,9 +285,11 @@ public class ILOCInstruction implements Cloneable
         case MULT_I:
         case LOAD_AI:
         case LOAD_AO:
-        case PHI:
             ops.add(operands[2]);
             break;
+        case PHI:
+            ops.add(operands[operands.length - 1]);
+            break;
         case LOAD:
         case LOAD_I:
         case I2I:
@@ -260,6 +304,12 @@ public class ILOCInstruction implements Cloneable
         case STORE_AI:
         case STORE_AO:
         case CBR:
+        case CBR_LT:
+        case CBR_LE:
+        case CBR_EQ:
+        case CBR_NE:
+        case CBR_GE:
+        case CBR_GT:
         case LABEL:
         case JUMP:
         case CALL:
@@ -420,6 +470,17 @@ public class ILOCInstruction implements Cloneable
             str.append(", " + operands[1].toString());
             str.append(" => " + operands[2].toString());
             break;
+        case CBR_LT:
+        case CBR_LE:
+        case CBR_EQ:
+        case CBR_GE:
+        case CBR_GT:
+        case CBR_NE:
+            str.append("cbr_" + form.name().substring(4) + " " + operands[0].toString());
+            str.append(", " + operands[1].toString());
+            str.append(" => " + operands[2].toString());
+            str.append(", " + operands[3].toString());
+            break;
         case NOT:
             str.append("not " + operands[0].toString());
             str.append(" => " + operands[1].toString());
@@ -451,8 +512,10 @@ public class ILOCInstruction implements Cloneable
             break;
         case PHI:
             str.append("phi " + operands[0].toString());
-            str.append(", " + operands[1].toString());
-            str.append(" => " + operands[2].toString());
+            for (int i = 1; i < operands.length - 1; i++) {
+                str.append(", " + operands[i].toString());
+            }
+            str.append(" => " + operands[operands.length - 1].toString());
             break;
         }
         if (variableName != null) {
@@ -1,5 +1,6 @@
 package edu.jmu.decaf;
 
+import java.io.*;
 import java.util.*;
 
 /**
@@ -8,7 +9,8 @@ import java.util.*;
  * Features:
  * <ul>
  * <li>32-bit word</li>
- * <li>Unlimited 32-bit integer virtual registers</li>
+ * <li>Unlimited 32-bit integer virtual registers (local to each function
+ *   activation: CALL saves the caller's registers and RETURN restores them)</li>
  * <li>Four special-purpose 32-bit integer registers:<ul>
  *   <li>IP - instruction pointer</li>
  *   <li>SP - stack pointer</li>
@@ -51,6 +53,7 @@ import java.util.*;
 public class ILOCInterpreter implements ILOCProcessor
 {
     private Map<Integer, Integer> virtualRegs;
+    private Deque<Map<Integer, Integer>> savedRegs;
     private int ip, sp, bp, ret;
     private byte memory[];
     private static final int MEM_SIZE = 65536;
@@ -61,6 +64,12 @@ public class ILOCInterpreter implements ILOCProcessor
     private Map<String, Integer> callTargets;
     private int returnValue;
     private boolean trace;
+    private PrintStream output;
+    private ILOCProfile profile;
+    private long[] counts;          // executions by code index (if profiling)
+    private long[] takenCounts;     // cbr to the first target (if profiling)
+    private long stepLimit;         // maximum instructions to run (0 = none)
+    private boolean stopped;        // stopped by the step limit
 
     public ILOCInterpreter()
     {
@@ -70,6 +79,7 @@ public class ILOCInterpreter implements ILOCProcessor
     public ILOCInterpreter(boolean trace)
     {
         this.virtualRegs = new TreeMap<Integer, Integer>();
+        this.savedRegs = new ArrayDeque<Map<Integer, Integer>>();
         this.memory = new byte[MEM_SIZE];
         this.currentProgram = null;
         this.allCode = new ArrayList<ILOCInstruction>();
@@ -77,6 +87,48 @@ public class ILOCInterpreter implements ILOCProcessor
         this.callTargets = new HashMap<String, Integer>();
         this.returnValue = -1;
         this.trace = trace;
+        this.output = System.out;
+        this.profile = null;
+        this.stepLimit = 0;
+        this.stopped = false;
+    }
+
+    /**
+     * Send the output of PRINT instructions to a different stream
+     * @param output Output stream (standard output by default)
+     */
+    public void setOutput(PrintStream output)
+    {
+        this.output = output;
+    }
+
+    /**
+     * Record instruction and branch counts of the next run into a profile
+     * @param profile Profile to add the counts to (or null to stop profiling)
+     */
+    public void setProfile(ILOCProfile profile)
+    {
+        this.profile = profile;
+    }
+
+    /**
+     * Stop runs after a given number of instructions (e.g., for training runs
+     * of programs that might not terminate)
+     * @param stepLimit Maximum number of instructions to run (0 for no limit)
+     */
+    public void setStepLimit(long stepLimit)
+    {
+        this.stepLimit = stepLimit;
+    }
+
+    /**
+     * Checks whether the last run was stopped by the step limit (see
+     * {@link #setStepLimit}) instead of returning from main
+     * @return True if the run was stopped early
+     */
+    public boolean isStopped()
+    {
+        return stopped;
     }
 
     public void process(ILOCProgram program)
@@ -113,6 +165,11 @@ public class ILOCInterpreter implements ILOCProcessor
 
         if (trace) dumpSystemState();
 
+        if (profile != null) {
+            counts = new long[allCode.size()];
+            takenCounts = new long[allCode.size()];
+        }
+
         // begin execution by calling main
         if (trace) System.out.println("Calling main()\n");
         push(ip);
@@ -121,12 +178,21 @@ public class ILOCInterpreter implements ILOCProcessor
         // debug info
         if (trace) dumpSystemState();
 
+        stopped = false;
+        long steps = 0;
         boolean done = false;
         while (!done) {
+            if (stepLimit > 0 && steps++ == stepLimit) {
+                stopped = true;
+                break;
+            }
 
             // fetch & execute
             ILOCInstruction insn = allCode.get(Integer.valueOf(ip));
             if (trace) System.out.println("Executing: " + insn.toString());
+            if (profile != null) {
+                counts[ip]++;
+            }
 
             // increment instruction pointer
             ip++;
@@ -145,6 +211,14 @@ public class ILOCInterpreter implements ILOCProcessor
 
         // set return value
         returnValue = ret;
+
+        if (profile != null) {
+            for (int i = 0; i < allCode.size(); i++) {
+                profile.record(allCode.get(i), counts[i], takenCounts[i]);
+            }
+            counts = null;
+            takenCounts = null;
+        }
     }
 
     public void assertNumOperands(ILOCInstruction insn, int ops) throws InvalidInstructionException
@@ -226,10 +300,22 @@ public class ILOCInterpreter implements ILOCProcessor
             case CMP_NE:
             case LOAD_AO:
             case STORE_AO:
-            case PHI:
                 assertAllRegOperands(insn, 3);
                 break;
 
+            // reg, ..., reg (one source per predecessor, then the destination)
+            case PHI:
+                if (insn.operands.length < 2) {
+                    throw new InvalidInstructionException(
+                            "Invalid instruction (expected at least 2" +
+                            " operands but found " + insn.operands.length +
+                            "): " + insn.toString());
+                }
+                for (ILOCOperand op : insn.operands) {
+                    assertOperandIsRegister(insn, op);
+                }
+                break;
+
             // int, reg
             case LOAD_I:
                 assertNumOperands(insn, 2);
@@ -273,6 +359,20 @@ public class ILOCInterpreter implements ILOCProcessor
                 assertOperandType(insn, insn.operands[2], ILOCOperand.Type.JUMP_LABEL);
                 break;
 
+            // reg, reg, lbl, lbl
+            case CBR_LT:
+            case CBR_LE:
+            case CBR_EQ:
+            case CBR_GE:
+            case CBR_GT:
+            case CBR_NE:
+                assertNumOperands(insn, 4);
+                assertOperandIsRegister(insn, insn.operands[0]);
+                assertOperandIsRegister(insn, insn.operands[1]);
+                assertOperandType(insn, insn.operands[2], ILOCOperand.Type.JUMP_LABEL);
+                assertOperandType(insn, insn.operands[3], ILOCOperand.Type.JUMP_LABEL);
+                break;
+
             // lbl
             case LABEL:
                 assertNumOperands(insn, 1);
@@ -371,14 +471,34 @@ public class ILOCInterpreter implements ILOCProcessor
             break;
 
         case JUMP:
-            ip = findJumpTarget(insn.operands[0]) + 1;
+            jumpTo(insn.operands[0]);
             break;
         case CBR:
-            if (getBool(insn.operands[0])) {
-                ip = findJumpTarget(insn.operands[1]) + 1;
-            } else {
-                ip = findJumpTarget(insn.operands[2]) + 1;
-            }
+            branch(getBool(insn.operands[0]), insn.operands[1], insn.operands[2]);
+            break;
+        case CBR_LT:
+            branch(getInt(insn.operands[0]) < getInt(insn.operands[1]),
+                    insn.operands[2], insn.operands[3]);
+            break;
+        case CBR_LE:
+            branch(getInt(insn.operands[0]) <= getInt(insn.operands[1]),
+                    insn.operands[2], insn.operands[3]);
+            break;
+        case CBR_EQ:
+            branch(getInt(insn.operands[0]) == getInt(insn.operands[1]),
+                    insn.operands[2], insn.operands[3]);
+            break;
+        case CBR_GE:
+            branch(getInt(insn.operands[0]) >= getInt(insn.operands[1]),
+                    insn.operands[2], insn.operands[3]);
+            break;
+        case CBR_GT:
+            branch(getInt(insn.operands[0]) > getInt(insn.operands[1]),
+                    insn.operands[2], insn.operands[3]);
+            break;
+        case CBR_NE:
+            branch(getInt(insn.operands[0]) != getInt(insn.operands[1]),
+                    insn.operands[2], insn.operands[3]);
             break;
 
         case CMP_LT:
@@ -417,6 +537,8 @@ public class ILOCInterpreter implements ILOCProcessor
         case CALL:
             push(ip);
             ip = callTargets.get(insn.operands[0].strConstant).intValue() + 1;
+            savedRegs.push(virtualRegs);
+            virtualRegs = new TreeMap<Integer, Integer>();
             break;
 
         case RETURN:
@@ -424,15 +546,16 @@ public class ILOCInterpreter implements ILOCProcessor
             if (ip == -1) {
                 return true;
             }
+            virtualRegs = savedRegs.pop();
             break;
 
         case PRINT:
             switch (insn.operands[0].type) {
             case VIRTUAL_REG:
-                System.out.print(getInt(insn.operands[0]));
+                output.print(getInt(insn.operands[0]));
                 break;
             case STR_CONST:
-                System.out.print(insn.operands[0].strConstant);
+                output.print(insn.operands[0].strConstant);
                 break;
             default:
                 System.out.println("WARNING: Invalid PRINT operand: " + insn.toString());
@@ -494,6 +617,39 @@ public class ILOCInterpreter implements ILOCProcessor
         setInt(dst, value ? 1 : 0);
     }
 
+    /**
+     * Continue at one of the targets of a conditional branch (the instruction
+     * just executed), counting taken branches if profiling
+     * @param condition Branch condition
+     * @param ifTrue Target if the condition is true
+     * @param ifFalse Target if the condition is false
+     */
+    private void branch(boolean condition, ILOCOperand ifTrue, ILOCOperand ifFalse)
+    {
+        if (condition) {
+            if (profile != null) {
+                takenCounts[ip - 1]++;
+            }
+            jumpTo(ifTrue);
+        } else {
+            jumpTo(ifFalse);
+        }
+    }
+
+    /**
+     * Continue after the given label; the label counts as executed (as it
+     * does when control falls through to it) if profiling
+     * @param targ Jump target
+     */
+    private void jumpTo(ILOCOperand targ)
+    {
+        int target = findJumpTarget(targ);
+        if (profile != null) {
+            counts[target]++;
+        }
+        ip = target + 1;
+    }
+
     public int findJumpTarget(ILOCOperand targ)
     {
         assert(targ.type == ILOCOperand.Type.JUMP_LABEL);
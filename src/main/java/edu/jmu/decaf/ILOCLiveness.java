@@ -0,0 +1,94 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Global liveness analysis for the virtual registers of a single
+ * {@link ILOCFunction}. Computes the set of registers that are live on entry
+ * to and exit from every basic block using the standard backward dataflow
+ * equations:
+ *
+ * <pre>
+ * LiveOut(b) = union of LiveIn(s) for all successors s of b
+ * LiveIn(b)  = UEVar(b) + (LiveOut(b) - VarKill(b))
+ * </pre>
+ *
+ * Only virtual registers are tracked; special registers (sp, bp, ret) are
+ * considered to be always live. Sets are indexed by the dense register
+ * numbers of {@link #getRegisterIndex}; only global registers can ever be live
+ * across a block boundary, so the sets are limited to those.
+ */
+public class ILOCLiveness extends ILOCDataflow
+{
+    private ILOCRegisterIndex registers;
+
+    /**
+     * Compute liveness for the current CFG of a function
+     * @param func Function to analyze
+     */
+    public ILOCLiveness(ILOCFunction func)
+    {
+        this(func, new ILOCRegisterIndex(func));
+    }
+
+    /**
+     * Compute liveness for the current CFG of a function using an existing
+     * register numbering
+     * @param func Function to analyze
+     * @param registers Register numbering for the function
+     */
+    public ILOCLiveness(ILOCFunction func, ILOCRegisterIndex registers)
+    {
+        super(func, registers.globalCount(), Direction.BACKWARD, Meet.UNION);
+        this.registers = registers;
+        solve();
+    }
+
+    @Override
+    protected void initBlock(ILOCBasicBlock b, BitSet ueVar, BitSet varKill)
+    {
+        for (ILOCInstruction insn : b.instructions) {
+            for (ILOCOperand op : insn.getReadOperands()) {
+                int r = registers.indexOf(op);
+                if (r >= 0 && r < universe && !varKill.get(r)) {
+                    ueVar.set(r);
+                }
+            }
+            for (ILOCOperand op : insn.getWriteOperands()) {
+                int r = registers.indexOf(op);
+                if (r >= 0 && r < universe) {
+                    varKill.set(r);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the register numbering used by this analysis
+     * @return Register numbering
+     */
+    public ILOCRegisterIndex getRegisterIndex()
+    {
+        return registers;
+    }
+
+    /**
+     * Returns the registers live on entry to a block
+     * @param b Basic block
+     * @return Set of dense register indices (do not modify)
+     */
+    public BitSet getLiveIn(ILOCBasicBlock b)
+    {
+        return getIn(b);
+    }
+
+    /**
+     * Returns the registers live on exit from a block
+     * @param b Basic block
+     * @return Set of dense register indices (do not modify)
+     */
+    public BitSet getLiveOut(ILOCBasicBlock b)
+    {
+        return getOut(b);
+    }
+}
@@ -0,0 +1,260 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Natural loop nest of a single {@link ILOCFunction}. A back edge is a CFG
+ * edge whose target (the loop header) dominates its source (a latch); the
+ * natural loop of a header is the header plus every block that can reach one
+ * of its latches without passing through the header. All back edges to the
+ * same header form a single loop.
+ *
+ * Loops are nested into a tree: a loop's parent is the smallest loop that
+ * strictly contains it. The innermost loop and the loop depth (0 outside of
+ * any loop) of every block are kept in int arrays indexed by
+ * {@link ILOCBasicBlock#index}.
+ *
+ * Decaf only has structured control flow, so every CFG is reducible;
+ * irreducible cycles (which have no dominating header) would not be
+ * reported as loops.
+ */
+public class ILOCLoops
+{
+    /**
+     * A single natural loop
+     */
+    public static class Loop
+    {
+        /**
+         * Loop header (the target of all back edges)
+         */
+        public ILOCBasicBlock header;
+
+        /**
+         * Sources of back edges
+         */
+        public List<ILOCBasicBlock> latches;
+
+        /**
+         * All blocks in the loop (including nested loops), by dense index
+         */
+        public BitSet blocks;
+
+        /**
+         * Smallest enclosing loop (null for outermost loops)
+         */
+        public Loop parent;
+
+        /**
+         * Loops directly nested inside this one
+         */
+        public List<Loop> children;
+
+        /**
+         * Nesting depth (1 for outermost loops)
+         */
+        public int depth;
+
+        Loop(ILOCBasicBlock header)
+        {
+            this.header = header;
+            this.latches = new ArrayList<ILOCBasicBlock>();
+            this.blocks = new BitSet();
+            this.parent = null;
+            this.children = new ArrayList<Loop>();
+            this.depth = 0;
+        }
+
+        /**
+         * Checks whether a block is part of this loop
+         * @param b Basic block
+         * @return True if the block is in the loop (or a nested loop)
+         */
+        public boolean contains(ILOCBasicBlock b)
+        {
+            return blocks.get(b.index);
+        }
+
+        /**
+         * Returns the loop's preheader: the only predecessor of the header
+         * from outside the loop, if the header is its only successor (see
+         * {@link InsertLoopPreheaders})
+         * @return Preheader block, or null if the loop does not have one
+         */
+        public ILOCBasicBlock getPreheader()
+        {
+            ILOCBasicBlock preheader = null;
+            for (ILOCBasicBlock p : header.sources) {
+                if (!contains(p)) {
+                    if (preheader != null) {
+                        return null;
+                    }
+                    preheader = p;
+                }
+            }
+            return (preheader != null && preheader.targets.size() == 1 ?
+                    preheader : null);
+        }
+    }
+
+    private List<ILOCBasicBlock> blocks;
+    private List<Loop> loops;
+    private List<Loop> topLevel;
+    private int[] innermost;
+    private int[] depth;
+
+    /**
+     * Find the loops in the current CFG of a function
+     * @param func Function to analyze
+     */
+    public ILOCLoops(ILOCFunction func)
+    {
+        this(func, new ILOCDominators(func));
+    }
+
+    /**
+     * Find the loops in the current CFG of a function using existing
+     * dominator information
+     * @param func Function to analyze
+     * @param dom Dominators of the current CFG
+     */
+    public ILOCLoops(ILOCFunction func, ILOCDominators dom)
+    {
+        blocks = func.allBlocks;
+        int n = blocks.size();
+        loops = new ArrayList<Loop>();
+        topLevel = new ArrayList<Loop>();
+        innermost = new int[n];
+        depth = new int[n];
+        Arrays.fill(innermost, -1);
+
+        // discover loops from the inside out: an inner header is dominated
+        // by (and thus comes after) its outer header in reverse postorder
+        int[] rpo = dom.getReversePostorder();
+        Deque<Integer> stack = new ArrayDeque<Integer>();
+        for (int i = rpo.length - 1; i >= 0; i--) {
+            ILOCBasicBlock h = blocks.get(rpo[i]);
+            Loop loop = null;
+            for (ILOCBasicBlock p : h.sources) {
+                if (dom.dominates(h, p)) {
+                    if (loop == null) {
+                        loop = new Loop(h);
+                        innermost[h.index] = loops.size();
+                        loops.add(loop);
+                    }
+                    loop.latches.add(p);
+                    stack.push(p.index);
+                }
+            }
+            if (loop == null) {
+                continue;
+            }
+            int self = innermost[h.index];
+            for (int x : stack) {
+                if (innermost[x] == -1) {
+                    innermost[x] = self;
+                }
+            }
+
+            // walk backwards from the latches, marking blocks as they are
+            // pushed; nested loops that were already found are collapsed into
+            // their headers
+            while (!stack.isEmpty()) {
+                int x = stack.pop();
+                if (innermost[x] != self) {
+                    Loop outer = outermost(innermost[x]);
+                    if (outer == loop) {
+                        continue;
+                    }
+                    outer.parent = loop;
+                    loop.children.add(outer);
+                    x = outer.header.index;
+                }
+                if (x == h.index) {
+                    continue;
+                }
+                for (ILOCBasicBlock p : blocks.get(x).sources) {
+                    if (!dom.isReachable(p)) {
+                        continue;
+                    }
+                    if (innermost[p.index] == -1) {
+                        innermost[p.index] = self;
+                        stack.push(p.index);
+                    } else if (outermost(innermost[p.index]) != loop) {
+                        stack.push(p.index);
+                    }
+                }
+            }
+        }
+
+        // fill in block sets and depths from the outside in
+        for (Loop loop : loops) {
+            if (loop.parent == null) {
+                topLevel.add(loop);
+            }
+        }
+        Deque<Loop> worklist = new ArrayDeque<Loop>(topLevel);
+        while (!worklist.isEmpty()) {
+            Loop loop = worklist.poll();
+            loop.depth = (loop.parent == null ? 1 : loop.parent.depth + 1);
+            worklist.addAll(loop.children);
+        }
+        for (int b = 0; b < n; b++) {
+            if (innermost[b] != -1) {
+                Loop loop = loops.get(innermost[b]);
+                depth[b] = loop.depth;
+                for (; loop != null; loop = loop.parent) {
+                    loop.blocks.set(b);
+                }
+            }
+        }
+    }
+
+    private Loop outermost(int loop)
+    {
+        Loop l = loops.get(loop);
+        while (l.parent != null) {
+            l = l.parent;
+        }
+        return l;
+    }
+
+    /**
+     * Returns all loops, innermost loops before the loops that contain them
+     * @return List of loops
+     */
+    public List<Loop> getLoops()
+    {
+        return loops;
+    }
+
+    /**
+     * Returns the outermost loops
+     * @return List of loops
+     */
+    public List<Loop> getTopLevelLoops()
+    {
+        return topLevel;
+    }
+
+    /**
+     * Returns the innermost loop containing a block
+     * @param b Basic block
+     * @return Innermost loop, or null if the block is not in a loop
+     */
+    public Loop getLoopFor(ILOCBasicBlock b)
+    {
+        int l = innermost[b.index];
+        return (l == -1 ? null : loops.get(l));
+    }
+
+    /**
+     * Returns the loop nesting depth of a block
+     * @param b Basic block
+     * @return Number of loops containing the block (0 if none)
+     */
+    public int getDepth(ILOCBasicBlock b)
+    {
+        return depth[b.index];
+    }
+}
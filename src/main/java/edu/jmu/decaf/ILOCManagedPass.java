@@ -0,0 +1,60 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * ILOC passes that obtain their analyses from a shared
+ * {@link ILOCAnalysisManager} (instead of recomputing them) should extend
+ * this class. The {@link ILOCPassManager} hands its analysis manager to
+ * every such pass before running it, and afterwards discards every cached
+ * result that the pass does not declare as preserved.
+ *
+ * A pass that is run on its own (without a pass manager) gets a new private
+ * analysis manager for every run, since nobody reports changes made to the
+ * program between runs.
+ *
+ * Passes that do not extend this class are assumed to preserve nothing.
+ */
+public abstract class ILOCManagedPass implements ILOCProcessor
+{
+    /**
+     * Analysis manager for the current run
+     */
+    protected ILOCAnalysisManager analyses;
+
+    private ILOCAnalysisManager shared;
+
+    protected ILOCManagedPass()
+    {
+        this.analyses = null;
+        this.shared = null;
+    }
+
+    /**
+     * Set the analysis manager to use for subsequent runs
+     * @param analyses Analysis manager
+     */
+    public void setAnalysisManager(ILOCAnalysisManager analyses)
+    {
+        this.shared = analyses;
+    }
+
+    /**
+     * Returns the analyses whose results remain valid after this pass runs
+     * @return Set of preserved analyses
+     */
+    public abstract Set<ILOCAnalysisManager.Analysis> getPreservedAnalyses();
+
+    public final void process(ILOCProgram program)
+    {
+        analyses = (shared != null ? shared : new ILOCAnalysisManager());
+        transform(program);
+    }
+
+    /**
+     * Perform the pass on the given ILOC program, getting analyses from
+     * {@link #analyses}
+     * @param program {@link ILOCProgram} to process
+     */
+    protected abstract void transform(ILOCProgram program);
+}
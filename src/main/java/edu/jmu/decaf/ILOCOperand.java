@@ -84,6 +84,20 @@ public class ILOCOperand implements Cloneable
         return new ILOCOperand(Type.VIRTUAL_REG, ++numTempRegisters, "", 0);
     }
 
+    /**
+     * Return a reference to a physical register. After register allocation,
+     * each function uses only physical registers 0 through k-1, which are
+     * represented as virtual registers with those IDs (the interpreter keeps
+     * a separate register file for each activation). No new virtual
+     * registers should be created after allocation.
+     * @param number Physical register number
+     * @return Register operand
+     */
+    public static ILOCOperand newPhysicalReg(int number)
+    {
+        return new ILOCOperand(Type.VIRTUAL_REG, number, "", 0);
+    }
+
     /**
      * Allocate and return a new anonymous jump label
      * @return Jump label operand
@@ -93,6 +107,17 @@ public class ILOCOperand implements Cloneable
         return new ILOCOperand(Type.JUMP_LABEL, ++numAnonLabels, "", 0);
     }
 
+    /**
+     * Return a reference to an existing jump label (e.g., for a new jump to a
+     * label that is already in the code)
+     * @param id Label ID
+     * @return Jump label operand
+     */
+    public static ILOCOperand newJumpLabel(int id)
+    {
+        return new ILOCOperand(Type.JUMP_LABEL, id, "", 0);
+    }
+
     /**
      * Return an operand for the given call target
      * @param name Target function name
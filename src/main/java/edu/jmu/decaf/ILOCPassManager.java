@@ -0,0 +1,317 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Runs an ordered pipeline of {@link ILOCProcessor} passes over an ILOC
+ * program. Groups of passes can be iterated until they stop changing the
+ * program (or until an iteration limit is reached). For every pass, the
+ * manager records the number of times it ran, the total wall time it took,
+ * and the total change in (static) instruction count that it caused. A pass
+ * that appears more than once gets one record per instance, labeled with its
+ * position among them (e.g., "SimplifyCFG #2").
+ *
+ * The manager also owns an {@link ILOCAnalysisManager} that is shared by all
+ * passes extending {@link ILOCManagedPass}. After each pass, all cached
+ * analyses that the pass does not declare as preserved are discarded (for
+ * other passes, that is everything).
+ *
+ * Use {@link #forOptLevel} to get the standard pipeline for a given
+ * optimization level (-O0 through -O3).
+ */
+public class ILOCPassManager implements ILOCProcessor
+{
+    /**
+     * Highest supported optimization level
+     */
+    public static final int MAX_OPT_LEVEL = 3;
+
+    /**
+     * Default iteration limit for fixpoint groups
+     */
+    public static final int DEFAULT_MAX_ITERATIONS = 10;
+
+    /**
+     * Accumulated statistics for a single pass
+     */
+    public static class PassStats
+    {
+        public String name;
+        public int runs;
+        public long nanos;
+        public int instructionDelta;
+
+        public PassStats(String name)
+        {
+            this.name = name;
+            this.runs = 0;
+            this.nanos = 0;
+            this.instructionDelta = 0;
+        }
+    }
+
+    /**
+     * Pipeline step: a group of passes that is run in order once, or
+     * repeatedly until the program reaches a fixpoint
+     */
+    private static class Step
+    {
+        List<ILOCProcessor> passes;
+        int maxIterations;
+
+        Step(List<ILOCProcessor> passes, int maxIterations)
+        {
+            this.passes = passes;
+            this.maxIterations = maxIterations;
+        }
+    }
+
+    private List<Step> steps;
+    private Map<ILOCProcessor, PassStats> stats;
+    private ILOCAnalysisManager analyses;
+
+    /**
+     * Create a new (empty) pass pipeline
+     */
+    public ILOCPassManager()
+    {
+        this.steps = new ArrayList<Step>();
+        this.stats = new LinkedHashMap<ILOCProcessor, PassStats>();
+        this.analyses = new ILOCAnalysisManager();
+    }
+
+    /**
+     * Build the standard optimization pipeline for the given level; -O3 adds
+     * a fixpoint group of cleanup passes to the -O2 pipeline
+     * @param level Optimization level (0 = no optimization)
+     * @return Pass manager for the given level
+     */
+    public static ILOCPassManager forOptLevel(int level)
+    {
+        ILOCPassManager pm = new ILOCPassManager();
+        if (level >= 2) {
+            pm.add(new InlineFunctions());
+            pm.add(new EliminateTailCalls());
+        }
+        if (level >= 1) {
+            pm.add(new SimplifyCFG());
+            pm.add(new PromoteLocals());
+            pm.add(new PropagateConstants());
+            pm.add(new EliminateRedundantAccesses());
+            pm.add(new NumberLocalValues());
+        }
+        if (level >= 2) {
+            pm.add(new HoistLoopInvariants());
+            pm.add(new ReduceStrength());
+            pm.add(new EliminatePartialRedundancy());
+            pm.add(new UnrollLoops());
+        }
+        if (level >= 1) {
+            pm.add(new RotateLoops());
+            pm.add(new SimplifyCFG());
+        }
+        if (level >= 3) {
+            // each cleanup pass can expose more work for the others
+            pm.addFixpoint(new PropagateConstants(), new SimplifyCFG(),
+                    new EliminateDeadCode());
+        }
+        if (level >= 2) {
+            pm.add(new LayoutBlocks());
+        }
+        if (level >= 1) {
+            pm.add(new OptimizePeephole());
+            pm.add(new EliminateDeadCode());
+            pm.add(new FuseCompareBranches());
+        }
+        return pm;
+    }
+
+    /**
+     * Append a single pass to the pipeline
+     * @param pass Pass to run
+     * @return This pass manager (for chaining)
+     */
+    public ILOCPassManager add(ILOCProcessor pass)
+    {
+        List<ILOCProcessor> passes = new ArrayList<ILOCProcessor>();
+        passes.add(pass);
+        steps.add(new Step(passes, 1));
+        register(pass);
+        return this;
+    }
+
+    /**
+     * Append a group of passes that will be run repeatedly (in order) until
+     * an entire iteration leaves the program unchanged
+     * @param passes Passes in the group
+     * @return This pass manager (for chaining)
+     */
+    public ILOCPassManager addFixpoint(ILOCProcessor... passes)
+    {
+        return addFixpoint(DEFAULT_MAX_ITERATIONS, passes);
+    }
+
+    /**
+     * Append a group of passes that will be run repeatedly (in order) until
+     * an entire iteration leaves the program unchanged or the given number of
+     * iterations is reached
+     * @param maxIterations Iteration limit
+     * @param passes Passes in the group
+     * @return This pass manager (for chaining)
+     */
+    public ILOCPassManager addFixpoint(int maxIterations, ILOCProcessor... passes)
+    {
+        assert(maxIterations > 0);
+        steps.add(new Step(Arrays.asList(passes), maxIterations));
+        for (ILOCProcessor pass : passes) {
+            register(pass);
+        }
+        return this;
+    }
+
+    private void register(ILOCProcessor pass)
+    {
+        if (!stats.containsKey(pass)) {
+            // number the instances of a pass that appears more than once in
+            // the pipeline (in pipeline order) so that every row has its own
+            // label
+            String name = pass.getClass().getSimpleName();
+            int count = 1;
+            for (PassStats ps : stats.values()) {
+                if (ps.name.equals(name)) {
+                    ps.name = name + " #1";
+                    count++;
+                } else if (ps.name.startsWith(name + " #")) {
+                    count++;
+                }
+            }
+            stats.put(pass, new PassStats(count == 1 ? name : name + " #" + count));
+        }
+        if (pass instanceof ILOCManagedPass) {
+            ((ILOCManagedPass)pass).setAnalysisManager(analyses);
+        }
+    }
+
+    /**
+     * Run the whole pipeline on the given program
+     * @param program {@link ILOCProgram} to process
+     */
+    public void process(ILOCProgram program)
+    {
+        for (Step step : steps) {
+            long before = fingerprint(program);
+            for (int i = 0; i < step.maxIterations; i++) {
+                for (ILOCProcessor pass : step.passes) {
+                    runPass(pass, program);
+                }
+                if (step.maxIterations == 1) {
+                    break;
+                }
+                long after = fingerprint(program);
+                if (after == before) {
+                    break;
+                }
+                before = after;
+            }
+        }
+    }
+
+    /**
+     * Run a single pass and record its statistics
+     */
+    private void runPass(ILOCProcessor pass, ILOCProgram program)
+    {
+        PassStats ps = stats.get(pass);
+        int sizeBefore = countInstructions(program);
+        long start = System.nanoTime();
+        pass.process(program);
+        if (pass instanceof ILOCManagedPass) {
+            analyses.invalidateAllExcept(program,
+                    ((ILOCManagedPass)pass).getPreservedAnalyses());
+        } else {
+            analyses.invalidateAllExcept(program, ILOCAnalysisManager.NONE);
+        }
+        ps.nanos += System.nanoTime() - start;
+        ps.instructionDelta += countInstructions(program) - sizeBefore;
+        ps.runs++;
+    }
+
+    /**
+     * Returns the analysis manager shared by the passes in this pipeline
+     * @return Analysis manager
+     */
+    public ILOCAnalysisManager getAnalysisManager()
+    {
+        return analyses;
+    }
+
+    /**
+     * Returns the statistics for all passes (in pipeline order)
+     * @return List of statistics records
+     */
+    public List<PassStats> getStats()
+    {
+        return new ArrayList<PassStats>(stats.values());
+    }
+
+    /**
+     * Builds a human-readable table of per-pass statistics
+     * @return Statistics table
+     */
+    public String getStatsString()
+    {
+        StringBuilder str = new StringBuilder();
+        str.append(String.format("%-32s %6s %12s %12s%n",
+                    "pass", "runs", "time (ms)", "insn delta"));
+        long totalNanos = 0;
+        int totalDelta = 0;
+        for (PassStats ps : stats.values()) {
+            str.append(String.format("%-32s %6d %12.3f %+12d%n",
+                        ps.name, ps.runs, ps.nanos / 1.0e6, ps.instructionDelta));
+            totalNanos += ps.nanos;
+            totalDelta += ps.instructionDelta;
+        }
+        str.append(String.format("%-32s %6s %12.3f %+12d%n",
+                    "total", "", totalNanos / 1.0e6, totalDelta));
+        str.append(String.format("analyses: %d computed, %d reused from cache",
+                    analyses.getComputedCount(), analyses.getReusedCount()));
+        return str.toString();
+    }
+
+    /**
+     * Counts the (static) instructions in an entire program
+     * @param program Program to inspect
+     * @return Total instruction count
+     */
+    public static int countInstructions(ILOCProgram program)
+    {
+        int count = 0;
+        for (ILOCFunction func : program.functions) {
+            count += func.getInstructions().size();
+        }
+        return count;
+    }
+
+    /**
+     * Computes a structural hash of the whole program, used to detect when a
+     * fixpoint group stops making changes. This is much cheaper than
+     * comparing string representations.
+     */
+    private static long fingerprint(ILOCProgram program)
+    {
+        long hash = 17;
+        for (ILOCFunction func : program.functions) {
+            hash = hash * 31 + func.localSize;
+            for (ILOCInstruction insn : func.getInstructions()) {
+                hash = hash * 31 + insn.form.ordinal();
+                for (ILOCOperand op : insn.operands) {
+                    hash = hash * 31 + op.type.ordinal();
+                    hash = hash * 31 + op.id;
+                    hash = hash * 31 + op.intConstant;
+                    hash = hash * 31 + op.strConstant.hashCode();
+                }
+            }
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,151 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Execution profile of an {@link ILOCProgram}, recorded by an
+ * {@link ILOCInterpreter} (see {@link ILOCInterpreter#setProfile}). For
+ * every instruction that ran, the profile stores how often it was executed
+ * and, for conditional branches ({@code cbr} and the fused forms such as
+ * {@code cbr_LT}), how often the branch went to its first (true) target.
+ * Labels are counted both when control falls through to them and when it
+ * jumps to them, so every instruction of a basic block (including a block
+ * that only holds a label) has the block's execution count. Labels do not
+ * do any work, so they are left out of the total counts.
+ *
+ * Counts are keyed by instruction identity, so a profile only describes the
+ * exact program object that was run; instructions created later (e.g., by
+ * other passes) have a count of zero.
+ */
+public class ILOCProfile
+{
+    private Map<ILOCInstruction, Long> executions;
+    private Map<ILOCInstruction, Long> taken;
+    private long total;
+
+    /**
+     * Create an empty profile
+     */
+    public ILOCProfile()
+    {
+        this.executions = new IdentityHashMap<ILOCInstruction, Long>();
+        this.taken = new IdentityHashMap<ILOCInstruction, Long>();
+        this.total = 0;
+    }
+
+    /**
+     * Add execution counts for a single instruction
+     * @param insn Instruction
+     * @param count Number of executions
+     * @param takenCount Number of executions that branched to the first
+     *        target (only for conditional branches)
+     */
+    void record(ILOCInstruction insn, long count, long takenCount)
+    {
+        if (count == 0) {
+            return;
+        }
+        executions.put(insn, getCount(insn) + count);
+        if (takenCount > 0) {
+            taken.put(insn, getTakenCount(insn) + takenCount);
+        }
+        if (insn.form != ILOCInstruction.Form.LABEL) {
+            total += count;
+        }
+    }
+
+    /**
+     * Checks whether anything was recorded
+     * @return True if no instructions were executed
+     */
+    public boolean isEmpty()
+    {
+        return total == 0;
+    }
+
+    /**
+     * Returns the number of times an instruction was executed
+     * @param insn Instruction
+     * @return Execution count
+     */
+    public long getCount(ILOCInstruction insn)
+    {
+        Long count = executions.get(insn);
+        return (count == null ? 0 : count);
+    }
+
+    /**
+     * Returns the number of times a conditional branch went to its first
+     * (true) target
+     * @param insn Conditional branch instruction
+     * @return Count of taken branches
+     */
+    public long getTakenCount(ILOCInstruction insn)
+    {
+        Long count = taken.get(insn);
+        return (count == null ? 0 : count);
+    }
+
+    /**
+     * Returns the number of times a CFG edge was traversed
+     * @param from Source block
+     * @param to Target block (one of the source's targets)
+     * @return Edge count
+     */
+    public long getEdgeCount(ILOCBasicBlock from, ILOCBasicBlock to)
+    {
+        if (from.instructions.isEmpty()) {
+            return 0;
+        }
+        ILOCInstruction last = from.instructions.get(from.instructions.size() - 1);
+        long count = getCount(last);
+        if (!last.isConditionalBranch()) {
+            return count;
+        }
+        int n = last.operands.length;
+        long ifTrue = getTakenCount(last);
+        long edge = 0;
+        if (isLabelOf(last.operands[n - 2], to)) {
+            edge += ifTrue;
+        }
+        if (isLabelOf(last.operands[n - 1], to)) {
+            edge += count - ifTrue;
+        }
+        return edge;
+    }
+
+    private static boolean isLabelOf(ILOCOperand label, ILOCBasicBlock b)
+    {
+        if (b.instructions.isEmpty()) {
+            return false;
+        }
+        ILOCInstruction first = b.instructions.get(0);
+        return first.form == ILOCInstruction.Form.LABEL &&
+            first.operands[0].id == label.id;
+    }
+
+    /**
+     * Returns the total number of instructions executed (not counting labels)
+     * @return Dynamic instruction count
+     */
+    public long getTotalCount()
+    {
+        return total;
+    }
+
+    /**
+     * Returns the number of executed instructions of a given form
+     * @param form Instruction form
+     * @return Dynamic instruction count for that form
+     */
+    public long getTotalCount(ILOCInstruction.Form form)
+    {
+        long count = 0;
+        for (Map.Entry<ILOCInstruction, Long> e : executions.entrySet()) {
+            if (e.getKey().form == form) {
+                count += e.getValue();
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,122 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Dense per-function numbering of virtual registers. Virtual register IDs come
+ * from a program-wide counter, so they are sparse within any single function;
+ * analyses use the dense indices from this class to size their bit vectors.
+ *
+ * "Global" registers (those read in some block before being written in that
+ * block, i.e., the only registers that can be live across a block boundary)
+ * are numbered first, from 0 to {@link #globalCount}-1. All remaining virtual
+ * registers follow. Analyses that only care about values flowing between
+ * blocks can therefore restrict their vectors to the global prefix.
+ */
+public class ILOCRegisterIndex
+{
+    private Map<Integer, Integer> indexByID;
+    private int[] idByIndex;
+    private int numGlobals;
+
+    /**
+     * Number all virtual registers in the current CFG of a function
+     * @param func Function to number
+     */
+    public ILOCRegisterIndex(ILOCFunction func)
+    {
+        indexByID = new HashMap<Integer, Integer>();
+        List<Integer> ids = new ArrayList<Integer>();
+
+        // PHASE 1 - global names (upward-exposed in some block)
+        func.getEntryBlock();
+        Set<Integer> defined = new HashSet<Integer>();
+        for (ILOCBasicBlock b : func.allBlocks) {
+            defined.clear();
+            for (ILOCInstruction insn : b.instructions) {
+                for (ILOCOperand op : insn.getReadOperands()) {
+                    if (isVirtual(op) && !defined.contains(op.id) &&
+                            !indexByID.containsKey(op.id)) {
+                        indexByID.put(op.id, ids.size());
+                        ids.add(op.id);
+                    }
+                }
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    if (isVirtual(op)) {
+                        defined.add(op.id);
+                    }
+                }
+            }
+        }
+        numGlobals = ids.size();
+
+        // PHASE 2 - everything else
+        for (ILOCInstruction insn : func.getInstructions()) {
+            for (ILOCOperand op : insn.operands) {
+                if (isVirtual(op) && !indexByID.containsKey(op.id)) {
+                    indexByID.put(op.id, ids.size());
+                    ids.add(op.id);
+                }
+            }
+        }
+
+        idByIndex = new int[ids.size()];
+        for (int i = 0; i < idByIndex.length; i++) {
+            idByIndex[i] = ids.get(i).intValue();
+        }
+    }
+
+    /**
+     * Returns the total number of virtual registers in the function
+     * @return Register count
+     */
+    public int size()
+    {
+        return idByIndex.length;
+    }
+
+    /**
+     * Returns the number of global registers (which have indices
+     * 0 through globalCount()-1)
+     * @return Global register count
+     */
+    public int globalCount()
+    {
+        return numGlobals;
+    }
+
+    /**
+     * Returns the dense index of a register operand
+     * @param op Operand
+     * @return Dense index, or -1 if the operand is not a virtual register of
+     *         this function
+     */
+    public int indexOf(ILOCOperand op)
+    {
+        if (!isVirtual(op)) {
+            return -1;
+        }
+        Integer index = indexByID.get(op.id);
+        return (index == null ? -1 : index.intValue());
+    }
+
+    /**
+     * Returns the virtual register ID for a dense index
+     * @param index Dense index
+     * @return Virtual register ID (as in {@link ILOCOperand#id})
+     */
+    public int idAt(int index)
+    {
+        return idByIndex[index];
+    }
+
+    /**
+     * Checks whether an operand is a virtual register
+     * @param op Operand to check
+     * @return True if the operand is a virtual register
+     */
+    public static boolean isVirtual(ILOCOperand op)
+    {
+        return op.type == ILOCOperand.Type.VIRTUAL_REG;
+    }
+}
@@ -0,0 +1,456 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Function inlining. Replaces calls with a copy of the callee's body,
+ * removing the call overhead (argument pushes, prologue, epilogue, and stack
+ * adjustment) and exposing the callee's code to the caller's optimizations.
+ *
+ * The callee's parameters and locals get a new region in the caller's frame
+ * (see {@link ILOCFunction#allocateLocal}): the pushes of the arguments
+ * become stores into that region, and the callee's {@code [bp+c]} accesses
+ * are remapped to it. All registers and labels of the copy are renamed, and
+ * writes to ret become writes to a fresh register that replaces the caller's
+ * {@code i2i ret => r} after the call. Every epilogue becomes a jump to a new
+ * label after the inlined body.
+ *
+ * Cost model: a call is inlined if the callee's body (without prologue and
+ * epilogue) has at most {@link #TINY_SIZE} instructions, or at most
+ * {@link #HOT_SIZE} instructions and the call is hot (it ran at least
+ * {@link #HOT_FREQUENCY} times according to a profile, or it is inside a
+ * loop if there is no profile). Hotter call sites are inlined first, and
+ * inlining stops once the program has grown by {@link #MAX_GROWTH} percent.
+ * Calls that came from inlined code are considered as well (up to
+ * {@link #MAX_DEPTH} levels), but a function is never inlined into a copy of
+ * itself, so recursion is only unrolled by one level.
+ *
+ * Only callees with the standard prologue and epilogue of
+ * {@link MyILOCGenerator} whose only uses of bp are loads and stores at
+ * constant offsets can be inlined; this pass should run before
+ * {@link EliminateTailCalls}, which introduces jumps between functions.
+ */
+public class InlineFunctions extends ILOCManagedPass
+{
+    /**
+     * Callee body size that is always inlined
+     */
+    public static final int TINY_SIZE = 12;
+
+    /**
+     * Callee body size that is inlined at hot call sites
+     */
+    public static final int HOT_SIZE = 60;
+
+    /**
+     * Execution count above which a call site is hot
+     */
+    public static final long HOT_FREQUENCY = 10;
+
+    /**
+     * Limit on the growth of the whole program (in percent of its size)
+     */
+    public static final int MAX_GROWTH = 50;
+
+    /**
+     * Limit on nested inlining
+     */
+    public static final int MAX_DEPTH = 3;
+
+    /**
+     * A call that may be inlined
+     */
+    private static class Site
+    {
+        ILOCFunction caller;
+        ILOCInstruction call;
+        long frequency;
+        List<String> chain;     // functions inlined on the way to this call
+
+        Site(ILOCFunction caller, ILOCInstruction call, long frequency, List<String> chain)
+        {
+            this.caller = caller;
+            this.call = call;
+            this.frequency = frequency;
+            this.chain = chain;
+        }
+    }
+
+    private ILOCProfile profile;
+    private int inlined;
+
+    /**
+     * Inline using static frequency estimates
+     */
+    public InlineFunctions()
+    {
+        this(null);
+    }
+
+    /**
+     * Inline using the given profile
+     * @param profile Execution profile of the program being transformed (or
+     *        null to use static estimates)
+     */
+    public InlineFunctions(ILOCProfile profile)
+    {
+        this.profile = (profile == null || profile.isEmpty() ? null : profile);
+        this.inlined = 0;
+    }
+
+    public Set<ILOCAnalysisManager.Analysis> getPreservedAnalyses()
+    {
+        return ILOCAnalysisManager.NONE;
+    }
+
+    /**
+     * Returns the number of calls inlined so far
+     * @return Number of inlined calls
+     */
+    public int getInlinedCount()
+    {
+        return inlined;
+    }
+
+    protected void transform(ILOCProgram program)
+    {
+
+        // find the original call sites
+        PriorityQueue<Site> sites = new PriorityQueue<Site>(11, new Comparator<Site>() {
+            public int compare(Site a, Site b)
+            {
+                return Long.compare(b.frequency, a.frequency);
+            }
+        });
+        for (ILOCFunction func : program.functions) {
+            ILOCLoops loops = analyses.getLoops(func);
+            for (ILOCBasicBlock b : func.allBlocks) {
+                for (ILOCInstruction insn : b.instructions) {
+                    if (insn.form == ILOCInstruction.Form.CALL) {
+                        long frequency = (profile != null ? profile.getCount(insn) :
+                                estimate(loops.getDepth(b)));
+                        sites.add(new Site(func, insn, frequency,
+                                    Collections.singletonList(func.functionSymbol.name)));
+                    }
+                }
+            }
+        }
+
+        int budget = ILOCPassManager.countInstructions(program) * MAX_GROWTH / 100;
+        Set<ILOCFunction> changed = new HashSet<ILOCFunction>();
+        while (!sites.isEmpty() && budget > 0) {
+            Site site = sites.poll();
+            ILOCFunction callee = program.getFunction(site.call.operands[0].strConstant);
+            if (callee == null || site.chain.contains(callee.functionSymbol.name) ||
+                    site.chain.size() > MAX_DEPTH) {
+                continue;
+            }
+            int size = bodySize(callee);
+            if (size < 0 || !(size <= TINY_SIZE ||
+                        (size <= HOT_SIZE && site.frequency >= HOT_FREQUENCY))) {
+                continue;
+            }
+            List<ILOCInstruction> calls = inline(site.caller, site.call, callee);
+            if (calls == null) {
+                continue;
+            }
+            budget -= size;
+            inlined++;
+            changed.add(site.caller);
+
+            // calls in the copy inherit the frequency of this call site
+            List<String> chain = new ArrayList<String>(site.chain);
+            chain.add(callee.functionSymbol.name);
+            for (ILOCInstruction call : calls) {
+                sites.add(new Site(site.caller, call, site.frequency, chain));
+            }
+        }
+        for (ILOCFunction func : changed) {
+            analyses.invalidate(func);
+        }
+    }
+
+    private static long estimate(int depth)
+    {
+        long frequency = 1;
+        for (int d = Math.min(depth, 8); d > 0; d--) {
+            frequency *= 10;
+        }
+        return frequency;
+    }
+
+    /**
+     * Returns the index of the first instruction after the prologue, or -1
+     * if the function does not start with the standard prologue (possibly
+     * after labels)
+     */
+    private static int findBodyStart(List<ILOCInstruction> code)
+    {
+        int i = 0;
+        while (i < code.size() && code.get(i).form == ILOCInstruction.Form.LABEL) {
+            i++;
+        }
+        if (i + 2 >= code.size()) {
+            return -1;
+        }
+        ILOCInstruction push = code.get(i);
+        ILOCInstruction setBP = code.get(i + 1);
+        ILOCInstruction alloc = code.get(i + 2);
+        if (push.form == ILOCInstruction.Form.PUSH &&
+                push.operands[0].type == ILOCOperand.Type.BASE_REG &&
+                setBP.form == ILOCInstruction.Form.I2I &&
+                setBP.operands[0].type == ILOCOperand.Type.STACK_REG &&
+                setBP.operands[1].type == ILOCOperand.Type.BASE_REG &&
+                alloc.form == ILOCInstruction.Form.ADD_I &&
+                alloc.operands[0].type == ILOCOperand.Type.STACK_REG) {
+            return i + 3;
+        }
+        return -1;
+    }
+
+    /**
+     * Checks for the standard epilogue ({@code i2i bp => sp; pop bp; return})
+     * at the given index
+     */
+    private static boolean isEpilogue(List<ILOCInstruction> code, int i)
+    {
+        if (i + 2 >= code.size()) {
+            return false;
+        }
+        ILOCInstruction restoreSP = code.get(i);
+        ILOCInstruction restoreBP = code.get(i + 1);
+        return restoreSP.form == ILOCInstruction.Form.I2I &&
+            restoreSP.operands[0].type == ILOCOperand.Type.BASE_REG &&
+            restoreSP.operands[1].type == ILOCOperand.Type.STACK_REG &&
+            restoreBP.form == ILOCInstruction.Form.POP &&
+            restoreBP.operands[0].type == ILOCOperand.Type.BASE_REG &&
+            code.get(i + 2).form == ILOCInstruction.Form.RETURN;
+    }
+
+    /**
+     * Returns the number of instructions in a function's body (excluding
+     * labels), or -1 if the function cannot be inlined
+     */
+    private static int bodySize(ILOCFunction func)
+    {
+        List<ILOCInstruction> code = func.getInstructions();
+        int start = findBodyStart(code);
+        if (start < 0) {
+            return -1;
+        }
+        Set<Integer> labels = new HashSet<Integer>();
+        for (ILOCInstruction insn : code) {
+            if (insn.form == ILOCInstruction.Form.LABEL) {
+                labels.add(insn.operands[0].id);
+            }
+        }
+        int numParams = func.functionSymbol.paramTypes.size();
+        int size = 0;
+        for (int i = start; i < code.size(); i++) {
+            if (isEpilogue(code, i)) {
+                i += 2;
+                continue;
+            }
+            ILOCInstruction insn = code.get(i);
+            switch (insn.form) {
+            case LABEL:
+                continue;
+            case RETURN:
+            case PHI:
+                return -1;
+            case JUMP:
+                if (!labels.contains(insn.operands[0].id)) {
+                    return -1;      // tail call into another function
+                }
+                break;
+            case LOAD_AI:
+            case STORE_AI:
+                break;
+            default:
+                for (ILOCOperand op : insn.operands) {
+                    if (op.type == ILOCOperand.Type.BASE_REG) {
+                        return -1;
+                    }
+                }
+                break;
+            }
+            for (int j = 0; j < insn.operands.length; j++) {
+                ILOCOperand op = insn.operands[j];
+                if (op.type == ILOCOperand.Type.BASE_REG &&
+                        !isFrameOffset(insn.operands[j + 1], numParams)) {
+                    return -1;
+                }
+            }
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Checks whether an offset from bp refers to a local or a parameter
+     * (and not the saved bp or the return address)
+     */
+    private static boolean isFrameOffset(ILOCOperand offset, int numParams)
+    {
+        if (offset.type != ILOCOperand.Type.INT_CONST) {
+            return false;
+        }
+        int c = offset.intConstant;
+        return c < 0 || (c >= 2 * Symbol.WORD_SIZE &&
+                c < (2 + numParams) * Symbol.WORD_SIZE &&
+                c % Symbol.WORD_SIZE == 0);
+    }
+
+    /**
+     * Inline a single call
+     * @param caller Function containing the call
+     * @param call CALL instruction
+     * @param callee Called function (see {@link #bodySize})
+     * @return Calls in the inlined copy, or null if the call sequence was
+     *         not recognized
+     */
+    private static List<ILOCInstruction> inline(ILOCFunction caller,
+            ILOCInstruction call, ILOCFunction callee)
+    {
+        List<ILOCInstruction> code = caller.getInstructions();
+        int index = -1;
+        for (int i = 0; i < code.size(); i++) {
+            if (code.get(i) == call) {
+                index = i;
+                break;
+            }
+        }
+        int numArgs = callee.functionSymbol.paramTypes.size();
+        if (index < numArgs) {
+            return null;
+        }
+        for (int p = 1; p <= numArgs; p++) {
+            if (code.get(index - p).form != ILOCInstruction.Form.PUSH) {
+                return null;
+            }
+        }
+        int end = index + 1;
+        if (numArgs > 0) {
+            if (end >= code.size() || !isStackAdjustment(code.get(end), numArgs)) {
+                return null;
+            }
+            end++;
+        }
+        ILOCInstruction resultCopy = null;
+        if (end < code.size() && code.get(end).form == ILOCInstruction.Form.I2I &&
+                code.get(end).operands[0].type == ILOCOperand.Type.RETURN_REG) {
+            resultCopy = code.get(end);
+            end++;
+        }
+
+        // the new frame region holds the parameters, then the locals
+        List<ILOCInstruction> calleeCode = callee.getInstructions();
+        int localSize = callee.localSize;
+        int region = caller.allocateLocal(numArgs * Symbol.WORD_SIZE + localSize);
+        int paramBase = region - 2 * Symbol.WORD_SIZE;
+        int localBase = region + numArgs * Symbol.WORD_SIZE + localSize;
+
+        List<ILOCInstruction> copy = new ArrayList<ILOCInstruction>();
+        for (int p = 0; p < numArgs; p++) {
+            ILOCInstruction push = code.get(index - 1 - p);
+            ILOCInstruction store = new ILOCInstruction(ILOCInstruction.Form.STORE_AI,
+                    new ILOCOperand[] { push.operands[0], ILOCOperand.REG_BP,
+                        ILOCOperand.newIntConstant(region + p * Symbol.WORD_SIZE) },
+                    "argument " + (p + 1) + " of " + callee.functionSymbol.name);
+            copy.add(store);
+        }
+
+        // copy and rename the body
+        Map<Integer, ILOCOperand> regs = new HashMap<Integer, ILOCOperand>();
+        Map<Integer, ILOCOperand> labels = new HashMap<Integer, ILOCOperand>();
+        ILOCOperand result = ILOCOperand.newVirtualReg();
+        ILOCOperand exit = ILOCOperand.newAnonymousLabel();
+        boolean writesResult = false;
+        List<ILOCInstruction> calls = new ArrayList<ILOCInstruction>();
+        int start = findBodyStart(calleeCode);
+        for (int i = start; i < calleeCode.size(); i++) {
+            if (isEpilogue(calleeCode, i)) {
+                i += 2;
+                if (i + 1 < calleeCode.size()) {
+                    copy.add(new ILOCInstruction(ILOCInstruction.Form.JUMP,
+                                new ILOCOperand[] { rename(exit, labels) }));
+                }
+                continue;
+            }
+            ILOCInstruction insn = clone(calleeCode.get(i));
+            ILOCOperand[] ops = insn.operands;
+            for (int j = 0; j < ops.length; j++) {
+                switch (ops[j].type) {
+                case VIRTUAL_REG:
+                    ops[j] = rename(ops[j], regs);
+                    break;
+                case JUMP_LABEL:
+                    ops[j] = rename(ops[j], labels);
+                    break;
+                case BASE_REG:
+                    int c = ops[j + 1].intConstant;
+                    ops[j + 1] = ILOCOperand.newIntConstant(c < 0 ?
+                            localBase + c : paramBase + c);
+                    break;
+                default:
+                    break;
+                }
+            }
+            for (ILOCOperand op : insn.getWriteOperands()) {
+                if (op.type == ILOCOperand.Type.RETURN_REG && resultCopy != null) {
+                    ops[ops.length - 1] = result;
+                    writesResult = true;
+                }
+            }
+            if (insn.form == ILOCInstruction.Form.CALL) {
+                calls.add(insn);
+            }
+            copy.add(insn);
+        }
+        copy.add(new ILOCInstruction(ILOCInstruction.Form.LABEL,
+                    new ILOCOperand[] { exit }, "end of inlined " + callee.functionSymbol.name));
+        if (resultCopy != null) {
+            copy.add(writesResult ? new ILOCInstruction(ILOCInstruction.Form.I2I,
+                        new ILOCOperand[] { result, resultCopy.operands[1] }) : resultCopy);
+        }
+
+        List<ILOCInstruction> newCode = new ArrayList<ILOCInstruction>(
+                code.subList(0, index - numArgs));
+        newCode.addAll(copy);
+        newCode.addAll(code.subList(end, code.size()));
+        caller.setInstructions(newCode);
+        return calls;
+    }
+
+    private static boolean isStackAdjustment(ILOCInstruction insn, int numArgs)
+    {
+        return insn.form == ILOCInstruction.Form.ADD_I &&
+            insn.operands[0].type == ILOCOperand.Type.STACK_REG &&
+            insn.operands[1].intConstant == numArgs * Symbol.WORD_SIZE &&
+            insn.operands[2].type == ILOCOperand.Type.STACK_REG;
+    }
+
+    /**
+     * Returns the new register or label for an operand of the callee
+     * (creating it on first use)
+     */
+    private static ILOCOperand rename(ILOCOperand op, Map<Integer, ILOCOperand> names)
+    {
+        ILOCOperand name = names.get(op.id);
+        if (name == null) {
+            name = (op.type == ILOCOperand.Type.VIRTUAL_REG ?
+                    ILOCOperand.newVirtualReg() : ILOCOperand.newAnonymousLabel());
+            names.put(op.id, name);
+        }
+        return name;
+    }
+
+    private static ILOCInstruction clone(ILOCInstruction insn)
+    {
+        try {
+            return (ILOCInstruction)insn.clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Gives every natural loop a preheader: a block that runs exactly once each
+ * time the loop is entered, immediately before the header, and that has no
+ * other successor. Loop optimizations place code there that should run
+ * before the loop instead of on every iteration.
+ *
+ * A loop whose header is entered from a single block with a single successor
+ * already has one (see {@link ILOCLoops.Loop#getPreheader}). Otherwise a new
+ * labeled block is placed directly before the header so that it falls
+ * through into it, and every branch into the header from outside the loop is
+ * redirected to the new label. A block inside the loop that used to fall
+ * through into the header gets an explicit jump instead.
+ */
+public class InsertLoopPreheaders extends ILOCManagedPass
+{
+    public InsertLoopPreheaders()
+    {
+    }
+
+    public Set<ILOCAnalysisManager.Analysis> getPreservedAnalyses()
+    {
+        return ILOCAnalysisManager.NONE;
+    }
+
+    protected void transform(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            if (insertPreheaders(func, analyses.getLoops(func))) {
+                analyses.invalidate(func);
+            }
+        }
+    }
+
+    /**
+     * Insert preheaders for all loops of a function that do not have one.
+     * This replaces the function's instructions (discarding the CFG) if
+     * anything changed.
+     * @param func Function to transform
+     * @param loops Loops of the function's current CFG
+     * @return True if any preheaders were inserted
+     */
+    public static boolean insertPreheaders(ILOCFunction func, ILOCLoops loops)
+    {
+        Map<ILOCBasicBlock, ILOCLoops.Loop> needed =
+            new HashMap<ILOCBasicBlock, ILOCLoops.Loop>();
+        for (ILOCLoops.Loop loop : loops.getLoops()) {
+            if (loop.getPreheader() == null &&
+                    loop.header.instructions.size() > 0 &&
+                    loop.header.instructions.get(0).form == ILOCInstruction.Form.LABEL) {
+                needed.put(loop.header, loop);
+            }
+        }
+        if (needed.isEmpty()) {
+            return false;
+        }
+
+        List<ILOCInstruction> code = new ArrayList<ILOCInstruction>();
+        List<ILOCBasicBlock> blocks = func.allBlocks;
+        for (int i = 0; i < blocks.size(); i++) {
+            ILOCBasicBlock b = blocks.get(i);
+            ILOCLoops.Loop loop = needed.get(b);
+            if (loop != null) {
+                int headerID = b.instructions.get(0).operands[0].id;
+                ILOCOperand label = ILOCOperand.newAnonymousLabel();
+
+                // keep a fall-through edge from inside the loop
+                if (i > 0 && loop.contains(blocks.get(i - 1)) &&
+                        fallsThrough(blocks.get(i - 1))) {
+                    code.add(newJump(headerID));
+                }
+
+                // redirect branches from outside the loop
+                for (ILOCBasicBlock p : b.sources) {
+                    if (loop.contains(p) || p.instructions.isEmpty()) {
+                        continue;
+                    }
+                    ILOCInstruction last = p.instructions.get(p.instructions.size() - 1);
+                    if (last.form == ILOCInstruction.Form.JUMP &&
+                            last.operands[0].id == headerID) {
+                        last.operands[0] = label;
+                    } else if (last.isConditionalBranch()) {
+                        int n = last.operands.length;
+                        for (int j = n - 2; j < n; j++) {
+                            if (last.operands[j].id == headerID) {
+                                last.operands[j] = label;
+                            }
+                        }
+                    }
+                }
+                code.add(new ILOCInstruction(ILOCInstruction.Form.LABEL,
+                            new ILOCOperand[] { label }, "loop preheader"));
+            }
+            code.addAll(b.instructions);
+        }
+        func.setInstructions(code);
+        return true;
+    }
+
+    /**
+     * Returns true if control can fall off the end of a block into the next
+     */
+    private static boolean fallsThrough(ILOCBasicBlock b)
+    {
+        if (b.instructions.isEmpty()) {
+            return true;
+        }
+        ILOCInstruction last = b.instructions.get(b.instructions.size() - 1);
+        return last.form != ILOCInstruction.Form.JUMP && !last.isConditionalBranch() &&
+            last.form != ILOCInstruction.Form.RETURN;
+    }
+
+    private static ILOCInstruction newJump(int labelID)
+    {
+        return new ILOCInstruction(ILOCInstruction.Form.JUMP,
+                new ILOCOperand[] { ILOCOperand.newJumpLabel(labelID) });
+    }
+}
@@ -0,0 +1,199 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Basic block layout. Reorders the blocks of each function so that the most
+ * frequently taken CFG edges become fall-throughs (whose jumps
+ * {@link ILOCFunction#flattenCFG(List)} leaves out), using the bottom-up
+ * chaining algorithm of Pettis and Hansen: edges are visited from the
+ * heaviest to the lightest, and an edge joins two chains of blocks if it
+ * connects the tail of one to the head of the other. Since a {@code cbr}
+ * names both of its targets, only unconditional edges actually save a jump,
+ * so they are preferred over conditional edges of the same weight. The
+ * chain containing the entry block is placed first, followed by the other
+ * chains from the hottest to the coldest (keeping the original order for
+ * ties).
+ *
+ * Edge frequencies come from an {@link ILOCProfile} of a training run if one
+ * is given. Edges that never ran are not chained at all, so blocks that never
+ * ran end up at the end of the function. Without a profile, an edge's weight
+ * is estimated as 10 to the power of the loop depth of its shallower
+ * endpoint, so that edges inside loops (and especially inner loops) are
+ * preferred over loop entries and exits.
+ */
+public class LayoutBlocks extends ILOCManagedPass
+{
+    private ILOCProfile profile;
+
+    /**
+     * Lay out blocks using static frequency estimates
+     */
+    public LayoutBlocks()
+    {
+        this(null);
+    }
+
+    /**
+     * Lay out blocks using the given profile
+     * @param profile Execution profile of the program being transformed (or
+     *        null to use static estimates)
+     */
+    public LayoutBlocks(ILOCProfile profile)
+    {
+        this.profile = (profile == null || profile.isEmpty() ? null : profile);
+    }
+
+    public Set<ILOCAnalysisManager.Analysis> getPreservedAnalyses()
+    {
+        return ILOCAnalysisManager.NONE;
+    }
+
+    protected void transform(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            if (func.getInstructions().isEmpty()) {
+                continue;
+            }
+            ILOCLoops loops = (profile == null ? analyses.getLoops(func) : null);
+            func.flattenCFG(layout(func, loops));
+            analyses.invalidate(func);
+        }
+    }
+
+    /**
+     * A weighted CFG edge
+     */
+    private static class Edge
+    {
+        ILOCBasicBlock from;
+        ILOCBasicBlock to;
+        long weight;
+        boolean conditional;
+
+        Edge(ILOCBasicBlock from, ILOCBasicBlock to, long weight)
+        {
+            this.from = from;
+            this.to = to;
+            this.weight = weight;
+            this.conditional = (from.targets.size() > 1);
+        }
+    }
+
+    /**
+     * Choose the order of the reachable blocks of a function
+     * @param func Function (with a current CFG)
+     * @param loops Loop nest for static estimates (null if using a profile)
+     * @return Blocks in their new order, starting with the entry
+     */
+    private List<ILOCBasicBlock> layout(ILOCFunction func, ILOCLoops loops)
+    {
+        List<ILOCBasicBlock> blocks = func.allBlocks;
+        ILOCBasicBlock entry = func.getEntryBlock();
+        int n = blocks.size();
+        BitSet reachable = new BitSet(n);
+        Deque<ILOCBasicBlock> stack = new ArrayDeque<ILOCBasicBlock>();
+        stack.push(entry);
+        reachable.set(entry.index);
+        while (!stack.isEmpty()) {
+            for (ILOCBasicBlock s : stack.pop().targets) {
+                if (!reachable.get(s.index)) {
+                    reachable.set(s.index);
+                    stack.push(s);
+                }
+            }
+        }
+
+        // weigh the blocks and edges
+        List<Edge> edges = new ArrayList<Edge>();
+        long[] heat = new long[n];
+        for (ILOCBasicBlock b : blocks) {
+            if (!reachable.get(b.index)) {
+                continue;
+            }
+            heat[b.index] = weigh(b, loops);
+            for (ILOCBasicBlock s : b.targets) {
+                long w = (profile != null ? profile.getEdgeCount(b, s) :
+                        Math.min(weigh(b, loops), weigh(s, loops)));
+                if (w > 0 && s != b && s != entry) {
+                    edges.add(new Edge(b, s, w));
+                }
+            }
+        }
+        Collections.sort(edges, new Comparator<Edge>() {
+            public int compare(Edge a, Edge b)
+            {
+                if (a.weight != b.weight) {
+                    return Long.compare(b.weight, a.weight);
+                }
+                return Boolean.compare(a.conditional, b.conditional);
+            }
+        });
+
+        // link chains: first[] is kept up to date for the tail of each
+        // chain, and last[] for its head
+        int[] next = new int[n];
+        int[] prev = new int[n];
+        int[] first = new int[n];
+        int[] last = new int[n];
+        for (int i = 0; i < n; i++) {
+            next[i] = -1;
+            prev[i] = -1;
+            first[i] = i;
+            last[i] = i;
+        }
+        for (Edge e : edges) {
+            int a = e.from.index;
+            int b = e.to.index;
+            if (next[a] != -1 || prev[b] != -1 || first[a] == b) {
+                continue;
+            }
+            next[a] = b;
+            prev[b] = a;
+            first[last[b]] = first[a];
+            last[first[a]] = last[b];
+        }
+
+        // place the entry chain first, then the others from hot to cold
+        List<Integer> chains = new ArrayList<Integer>();
+        final long[] chainHeat = new long[n];
+        for (int i = 0; i < n; i++) {
+            if (reachable.get(i) && prev[i] == -1 && i != entry.index) {
+                chains.add(i);
+                for (int b = i; b != -1; b = next[b]) {
+                    chainHeat[i] = Math.max(chainHeat[i], heat[b]);
+                }
+            }
+        }
+        Collections.sort(chains, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b)
+            {
+                return Long.compare(chainHeat[b], chainHeat[a]);
+            }
+        });
+        chains.add(0, entry.index);
+        List<ILOCBasicBlock> order = new ArrayList<ILOCBasicBlock>();
+        for (int c : chains) {
+            for (int b = c; b != -1; b = next[b]) {
+                order.add(blocks.get(b));
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Returns the (measured or estimated) execution frequency of a block
+     */
+    private long weigh(ILOCBasicBlock b, ILOCLoops loops)
+    {
+        if (profile != null) {
+            return (b.instructions.isEmpty() ? 0 :
+                    profile.getCount(b.instructions.get(b.instructions.size() - 1)));
+        }
+        long w = 1;
+        for (int d = Math.min(loops.getDepth(b), 8); d > 0; d--) {
+            w *= 10;
+        }
+        return w;
+    }
+}
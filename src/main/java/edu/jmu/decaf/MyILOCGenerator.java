@@ -15,69 +15,120 @@ public class MyILOCGenerator extends ILOCGenerator
     {
     }
 
+    /**
+     * Shared exit label of the function currently being generated; every
+     * return statement jumps here rather than emitting its own epilogue
+     */
+    private ILOCOperand exitLabel;
+
+    @Override
+    public void preVisit(ASTFunction node)
+    {
+    	exitLabel = ILOCOperand.newAnonymousLabel();
+    }
+
     @Override 
     public void postVisit(ASTFunction node)
     {
-        // TODO: emit prologue
-    		
-    		emit(node, ILOCInstruction.Form.PUSH, ILOCOperand.REG_BP);
-    		addComment(node, "Prologue");
-    		emit(node, ILOCInstruction.Form.I2I, ILOCOperand.REG_SP, ILOCOperand.REG_BP);
-    		emitLocalVarStackAdjustment(node); // allocate space for local variables (might be in the wrong spot)
-       
+    	emit(node, ILOCInstruction.Form.PUSH, ILOCOperand.REG_BP);
+    	addComment(node, "Prologue");
+    	emit(node, ILOCInstruction.Form.I2I, ILOCOperand.REG_SP, ILOCOperand.REG_BP);
+    	emitLocalVarStackAdjustment(node);
+
     	// propagate code from body block to the function level
-    			
-    		copyCode(node, node.body);
+    	copyCode(node, node.body);
 
-        // TODO: emit epilogue
-    		if(node.returnType == DataType.VOID)
-    		{
-    			ILOCOperand label = ILOCOperand.newAnonymousLabel();
-    			System.out.println("Hello");
-    			//emit(node, ILOCInstruction.Form.JUMP, label); //This could be wrong
-    	    	emit(node, ILOCInstruction.Form.LABEL, label);
-    	    	
-    	    	
-    	    	emit(node, ILOCInstruction.Form.I2I, ILOCOperand.REG_BP, ILOCOperand.REG_SP);
-    	    	addComment(node, "Epilogue");
-    		    emit(node, ILOCInstruction.Form.POP, ILOCOperand.REG_BP);
-    		    emit(node, ILOCInstruction.Form.RETURN);
-    		}
+    	// single epilogue shared by all return statements (and by falling off
+    	// the end of a void function)
+    	emit(node, ILOCInstruction.Form.LABEL, exitLabel);
+    	emit(node, ILOCInstruction.Form.I2I, ILOCOperand.REG_BP, ILOCOperand.REG_SP);
+    	addComment(node, "Epilogue");
+    	emit(node, ILOCInstruction.Form.POP, ILOCOperand.REG_BP);
+    	emit(node, ILOCInstruction.Form.RETURN);
     }
     
     public void postVisit(ASTFunctionCall node)
     {
-    	int numberOfArgs = node.arguments.size();
-    	int offset = numberOfArgs * 4;
+    	setTempReg(node, emitCall(node, node.name, node.arguments));
+    }
+
+    /**
+     * Emits a complete call sequence: evaluate all arguments, push them in
+     * reverse order, call, de-allocate the parameter space, and copy the
+     * return value into a fresh virtual register.
+     * @param node Destination AST node
+     * @param name Callee name
+     * @param arguments Argument expressions (code already generated)
+     * @return Virtual register containing the return value
+     */
+    private ILOCOperand emitCall(ASTNode node, String name, List<ASTExpression> arguments)
+    {
+    	int numberOfArgs = arguments.size();
+    	int offset = numberOfArgs * Symbol.WORD_SIZE;
     	ILOCOperand returnReg = ILOCOperand.newVirtualReg();
-    	
+
+    	for(int i = 0; i < numberOfArgs; i ++)
+    	{
+    		copyCode(node, arguments.get(i));
+    	}
+
+    	for(int i = numberOfArgs - 1; i >= 0; i --) // Loop through arguments in reverse order and push them onto the stack
+    	{
+    		emit(node, ILOCInstruction.Form.PUSH, getTempReg(arguments.get(i)));
+    	}
+
+    	emit(node, ILOCInstruction.Form.CALL, ILOCOperand.newCallLabel(name));
     	if(numberOfArgs > 0)
     	{
-    		//Load the arguments
-    		
-    		for(int i = 0; i < numberOfArgs; i ++)
+    		emit(node, ILOCInstruction.Form.ADD_I, ILOCOperand.REG_SP, ILOCOperand.newIntConstant(offset), ILOCOperand.REG_SP);
+    	}
+    	emit(node, ILOCInstruction.Form.I2I, ILOCOperand.REG_RET, returnReg);
+    	return returnReg;
+    }
+
+    /**
+     * Emits jumping code for a condition: branches to one label if it is
+     * true and to the other if it is false. The operands of {@code &&},
+     * {@code ||}, and {@code !} are threaded through without computing
+     * their boolean values, so the right operand of {@code &&} and
+     * {@code ||} is only evaluated if it decides the result.
+     * @param node Destination AST node
+     * @param cond Condition expression (code already generated)
+     * @param trueLabel Target if the condition is true
+     * @param falseLabel Target if the condition is false
+     */
+    private void emitBranch(ASTNode node, ASTExpression cond,
+            ILOCOperand trueLabel, ILOCOperand falseLabel)
+    {
+    	if(cond instanceof ASTBinaryExpr && (((ASTBinaryExpr)cond).operator == ASTBinaryExpr.BinOp.AND ||
+    			((ASTBinaryExpr)cond).operator == ASTBinaryExpr.BinOp.OR))
+    	{
+    		ASTBinaryExpr expr = (ASTBinaryExpr)cond;
+    		ILOCOperand rightLabel = ILOCOperand.newAnonymousLabel();
+    		if(expr.operator == ASTBinaryExpr.BinOp.AND)
     		{
-    			ILOCOperand temp = ILOCOperand.newVirtualReg();
-    			temp = getTempReg(node.arguments.get(i));
-    			copyCode(node, node.arguments.get(i));
+    			emitBranch(node, expr.leftChild, rightLabel, falseLabel);
     		}
-    		
-    		
-    		
-    		for(int i = numberOfArgs - 1; i >= 0; i --) // Loop through arguments in reverse order and push them onto the stack
+    		else
     		{
-    			ILOCOperand temp = getTempReg(node.arguments.get(i));
-    			emit(node, ILOCInstruction.Form.PUSH, temp);
+    			emitBranch(node, expr.leftChild, trueLabel, rightLabel);
     		}
-    		
-    		emit(node, ILOCInstruction.Form.CALL, ILOCOperand.newCallLabel(node.name));
-    		emit(node, ILOCInstruction.Form.ADD_I, ILOCOperand.REG_SP, ILOCOperand.newIntConstant(offset), ILOCOperand.REG_SP);
-    		emit(node, ILOCInstruction.Form.I2I, ILOCOperand.REG_RET, returnReg);
-    		
-    		
-    		setTempReg(node, returnReg);
-    		
-    		
+    		emit(node, ILOCInstruction.Form.LABEL, rightLabel);
+    		emitBranch(node, expr.rightChild, trueLabel, falseLabel);
+    	}
+    	else if(cond instanceof ASTUnaryExpr && ((ASTUnaryExpr)cond).operator == ASTUnaryExpr.UnaryOp.NOT)
+    	{
+    		emitBranch(node, ((ASTUnaryExpr)cond).child, falseLabel, trueLabel);
+    	}
+    	else if(cond instanceof ASTLiteral && ((ASTLiteral)cond).type == DataType.BOOL)
+    	{
+    		boolean value = ((ASTLiteral)cond).value.toString().equals("true");
+    		emit(node, ILOCInstruction.Form.JUMP, value ? trueLabel : falseLabel);
+    	}
+    	else
+    	{
+    		copyCode(node, cond);
+    		emit(node, ILOCInstruction.Form.CBR, getTempReg(cond), trueLabel, falseLabel);
     	}
     }
 
@@ -101,18 +152,7 @@ public class MyILOCGenerator extends ILOCGenerator
     		emit(node, ILOCInstruction.Form.I2I, getTempReg(node.value), ILOCOperand.REG_RET);
     	}
     	
-    	ILOCOperand label = ILOCOperand.newAnonymousLabel();
-    	
-    	// TODO: emit epilogue
-    	
-    	emit(node, ILOCInstruction.Form.JUMP, label); //This could be wrong
-    	emit(node, ILOCInstruction.Form.LABEL, label);
-    	
-    	
-    	emit(node, ILOCInstruction.Form.I2I, ILOCOperand.REG_BP, ILOCOperand.REG_SP);
-    	addComment(node, "Epilogue");
-	    emit(node, ILOCInstruction.Form.POP, ILOCOperand.REG_BP);
-	    emit(node, ILOCInstruction.Form.RETURN);
+    	emit(node, ILOCInstruction.Form.JUMP, exitLabel);
     }
     
     @Override 
@@ -169,6 +209,26 @@ public class MyILOCGenerator extends ILOCGenerator
     
     public void postVisit(ASTBinaryExpr node)
     {
+    	if(node.operator == ASTBinaryExpr.BinOp.AND || node.operator == ASTBinaryExpr.BinOp.OR)
+    	{
+    		// short-circuit evaluation: branch on the operands and materialize
+    		// the result only at the end
+    		ILOCOperand destReg = ILOCOperand.newVirtualReg();
+    		ILOCOperand trueLabel = ILOCOperand.newAnonymousLabel();
+    		ILOCOperand falseLabel = ILOCOperand.newAnonymousLabel();
+    		ILOCOperand endLabel = ILOCOperand.newAnonymousLabel();
+
+    		emitBranch(node, node, trueLabel, falseLabel);
+    		emit(node, ILOCInstruction.Form.LABEL, trueLabel);
+    		emit(node, ILOCInstruction.Form.LOAD_I, ILOCOperand.newIntConstant(1), destReg);
+    		emit(node, ILOCInstruction.Form.JUMP, endLabel);
+    		emit(node, ILOCInstruction.Form.LABEL, falseLabel);
+    		emit(node, ILOCInstruction.Form.LOAD_I, ILOCOperand.newIntConstant(0), destReg);
+    		emit(node, ILOCInstruction.Form.LABEL, endLabel);
+    		setTempReg(node, destReg);
+    		return;
+    	}
+
     	ILOCOperand leftReg = getTempReg(node.leftChild);
     	ILOCOperand rightReg = getTempReg(node.rightChild);
     	ILOCOperand destReg = ILOCOperand.newVirtualReg();
@@ -198,15 +258,15 @@ public class MyILOCGenerator extends ILOCGenerator
     			emit(node, ILOCInstruction.Form.DIV, leftReg, rightReg, destReg);
     			break;
         		
-    		case AND:
-    			
-    			emit(node, ILOCInstruction.Form.AND, leftReg, rightReg, destReg);
-    			break;
-    		
     		case EQ:
     			
     			emit(node, ILOCInstruction.Form.CMP_EQ, leftReg, rightReg, destReg);
     			break;
+
+    		case NE:
+
+    			emit(node, ILOCInstruction.Form.CMP_NE, leftReg, rightReg, destReg);
+    			break;
 		
     		case GE:
     			
@@ -267,15 +327,10 @@ public class MyILOCGenerator extends ILOCGenerator
     
     public void postVisit(ASTConditional node)
     {
-    	
-    	copyCode(node, node.condition);
-    	
     	ILOCOperand label1 = ILOCOperand.newAnonymousLabel();
     	ILOCOperand label2 = ILOCOperand.newAnonymousLabel();
 
-    	
-    	
-    	emit(node, ILOCInstruction.Form.CBR, getTempReg(node.condition), label1, label2);
+    	emitBranch(node, node.condition, label1, label2);
     	emit(node, ILOCInstruction.Form.LABEL, label1);
     	
     	
@@ -291,11 +346,8 @@ public class MyILOCGenerator extends ILOCGenerator
     		 ILOCOperand label3 = ILOCOperand.newAnonymousLabel();
      		 emit(node, ILOCInstruction.Form.JUMP, label3); //This could be wrong
          	 emit(node, ILOCInstruction.Form.LABEL, label2);
-    		 if(node.elseBlock.statements.size() > 0)
-    		 {
-    			copyCode(node, node.elseBlock); 
-    			emit(node, ILOCInstruction.Form.LABEL, label3);	
-    		 }
+    		 copyCode(node, node.elseBlock);
+    		 emit(node, ILOCInstruction.Form.LABEL, label3);
     	 }
     }
     
@@ -306,9 +358,7 @@ public class MyILOCGenerator extends ILOCGenerator
     	ILOCOperand label3 = ILOCOperand.newAnonymousLabel();
     	
     	emit(node, ILOCInstruction.Form.LABEL, label1);
-    	copyCode(node, node.guard);
-
-    	emit(node, ILOCInstruction.Form.CBR, getTempReg(node.guard), label2, label3);
+    	emitBranch(node, node.guard, label2, label3);
 
     	emit(node, ILOCInstruction.Form.LABEL, label2);
     	copyCode(node, node.body);
@@ -318,13 +368,6 @@ public class MyILOCGenerator extends ILOCGenerator
     
     public void postVisit(ASTVoidFunctionCall node) 
     {
-    	int numberOfArgs = node.arguments.size();
-    	int offset = numberOfArgs * 4;
-    	ILOCOperand returnReg = ILOCOperand.newVirtualReg();
-    	
-    	
-    	
-    	
     	if(node.name.equals("print_str"))
     	{
     		ASTLiteral lit = (ASTLiteral) node.arguments.get(0);
@@ -333,30 +376,14 @@ public class MyILOCGenerator extends ILOCGenerator
     	}
     	else if(node.name.equals("print_int") || node.name.equals("print_bool"))
     	{
-    		ASTLiteral lit = (ASTLiteral) node.arguments.get(0);
-    		copyCode(node, lit);
-    		emit(node, ILOCInstruction.Form.PRINT, getTempReg(lit));
+    		ASTExpression arg = node.arguments.get(0);
+    		copyCode(node, arg);
+    		emit(node, ILOCInstruction.Form.PRINT, getTempReg(arg));
     	}
     	else
     	{
-    		
-    		for(int i = 0; i < node.arguments.size(); i ++)
-    		{
-    			copyCode(node, node.arguments.get(i));
-    			
-    			for(int j = numberOfArgs - 1; j >= 0; j --) // Loop through arguments in reverse order and push them onto the stack
-        		{
-    				
-        			ILOCOperand temp = getTempReg(node.arguments.get(j));
-        			emit(node, ILOCInstruction.Form.PUSH, temp);
-        		}
-    			
-    			emit(node, ILOCInstruction.Form.CALL, ILOCOperand.newCallLabel(node.name));
-    			emit(node, ILOCInstruction.Form.ADD_I, ILOCOperand.REG_SP, ILOCOperand.newIntConstant(offset), ILOCOperand.REG_SP);
-    			emit(node, ILOCInstruction.Form.I2I, ILOCOperand.REG_RET, returnReg);
-    		}
+    		setTempReg(node, emitCall(node, node.name, node.arguments));
     	}
-    	setTempReg(node, returnReg);
     }
     
     
@@ -0,0 +1,269 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Local value numbering. Within each basic block, assigns a value number to
+ * every computed value and hashes each pure computation by its form and the
+ * value numbers (or constants) of its operands. A computation whose value is
+ * already held in a register is replaced by a copy from that register, and
+ * all later reads in the block are redirected to the register that first
+ * computed each value (which makes the copies dead).
+ *
+ * Operands of commutative operations (add, mult, and, or, cmp_EQ, cmp_NE) are
+ * ordered canonically, so "a+b" and "b+a" receive the same number.
+ *
+ * Memory operations and computations involving special registers are not
+ * numbered; their results always receive fresh value numbers.
+ *
+ * Only instructions inside blocks are changed, so the CFG is preserved.
+ */
+public class NumberLocalValues extends ILOCManagedPass
+{
+    /**
+     * Hash key for a pure computation: form plus two operand "names" (value
+     * numbers for registers, raw values for constants)
+     */
+    private static class Expression
+    {
+        ILOCInstruction.Form form;
+        long left;
+        long right;
+
+        Expression(ILOCInstruction.Form form, long left, long right)
+        {
+            this.form = form;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (form.hashCode() * 31 + Long.hashCode(left)) * 31 + Long.hashCode(right);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (o instanceof Expression) {
+                Expression e = (Expression)o;
+                return form == e.form && left == e.left && right == e.right;
+            }
+            return false;
+        }
+    }
+
+    private int nextValueNumber;
+    private Map<Integer, Integer> valueOfReg;
+    private Map<Integer, ILOCOperand> regHoldingValue;
+    private Map<Expression, Integer> valueOfExpr;
+
+    public NumberLocalValues()
+    {
+    }
+
+    public Set<ILOCAnalysisManager.Analysis> getPreservedAnalyses()
+    {
+        return ILOCAnalysisManager.CFG_ONLY;
+    }
+
+    protected void transform(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            if (!func.isCFGCurrent()) {
+                func.invalidateCFG();
+            }
+            func.getEntryBlock();
+            for (ILOCBasicBlock b : func.allBlocks) {
+                numberBlock(b);
+            }
+            func.updateInstructionsFromCFG();
+        }
+    }
+
+    /**
+     * Perform value numbering on a single basic block
+     * @param b Block to optimize (instructions are replaced in place)
+     */
+    private void numberBlock(ILOCBasicBlock b)
+    {
+        nextValueNumber = 0;
+        valueOfReg = new HashMap<Integer, Integer>();
+        regHoldingValue = new HashMap<Integer, ILOCOperand>();
+        valueOfExpr = new HashMap<Expression, Integer>();
+
+        List<ILOCInstruction> result = new ArrayList<ILOCInstruction>();
+        for (ILOCInstruction insn : b.instructions) {
+            redirectReads(insn);
+
+            ILOCOperand dest = (insn.getWriteOperands().size() == 1 ?
+                    insn.getWriteOperand() : null);
+            if (dest == null || dest.type != ILOCOperand.Type.VIRTUAL_REG) {
+                result.add(insn);
+                continue;
+            }
+
+            // copies just give their destination the same value number
+            if (insn.form == ILOCInstruction.Form.I2I &&
+                    insn.operands[0].type == ILOCOperand.Type.VIRTUAL_REG) {
+                define(dest, valueOf(insn.operands[0]));
+                result.add(insn);
+                continue;
+            }
+
+            Expression key = keyOf(insn);
+            if (key == null) {
+                define(dest, nextValueNumber++);
+                result.add(insn);
+                continue;
+            }
+
+            Integer vn = valueOfExpr.get(key);
+            ILOCOperand holder = (vn == null ? null : regHoldingValue.get(vn));
+            if (holder == null) {
+                // new value (or no register holds the old one anymore)
+                if (vn == null) {
+                    vn = nextValueNumber++;
+                    valueOfExpr.put(key, vn);
+                }
+                define(dest, vn);
+                result.add(insn);
+            } else if (holder.id == dest.id) {
+                // recomputes the value that is already in its destination
+                continue;
+            } else {
+                ILOCOperand[] ops = { holder, dest };
+                ILOCInstruction copy = new ILOCInstruction(ILOCInstruction.Form.I2I,
+                        ops, insn.comment);
+                copy.variableName = insn.variableName;
+                define(dest, vn);
+                result.add(copy);
+            }
+        }
+        b.instructions.clear();
+        b.instructions.addAll(result);
+    }
+
+    /**
+     * Replace all virtual register reads with the register that first
+     * computed the same value (if it still holds it)
+     */
+    private void redirectReads(ILOCInstruction insn)
+    {
+        if (insn.form == ILOCInstruction.Form.PHI) {
+            return;     // operands belong to predecessor blocks
+        }
+        // register reads always come first in the operand list
+        int numReads = insn.getReadOperands().size();
+        for (int i = 0; i < numReads; i++) {
+            ILOCOperand op = insn.operands[i];
+            if (op.type != ILOCOperand.Type.VIRTUAL_REG) {
+                continue;
+            }
+            Integer vn = valueOfReg.get(op.id);
+            ILOCOperand holder = (vn == null ? null : regHoldingValue.get(vn));
+            if (holder != null && holder.id != op.id) {
+                insn.operands[i] = holder;
+            }
+        }
+    }
+
+    /**
+     * Record that a register now holds the given value, invalidating whatever
+     * value it held before
+     */
+    private void define(ILOCOperand reg, int vn)
+    {
+        Integer old = valueOfReg.get(reg.id);
+        if (old != null && regHoldingValue.containsKey(old) &&
+                regHoldingValue.get(old).id == reg.id) {
+            regHoldingValue.remove(old);
+        }
+        valueOfReg.put(reg.id, vn);
+        if (!regHoldingValue.containsKey(vn)) {
+            regHoldingValue.put(vn, reg);
+        }
+    }
+
+    /**
+     * Returns the value number of a register, assigning a fresh one if the
+     * register was defined outside the current block
+     */
+    private int valueOf(ILOCOperand reg)
+    {
+        Integer vn = valueOfReg.get(reg.id);
+        if (vn == null) {
+            vn = nextValueNumber++;
+            valueOfReg.put(reg.id, vn);
+            regHoldingValue.put(vn, reg);
+        }
+        return vn.intValue();
+    }
+
+    /**
+     * Build the hash key of a pure computation
+     * @return Key, or null if the instruction should not be numbered
+     */
+    private Expression keyOf(ILOCInstruction insn)
+    {
+        ILOCOperand[] ops = insn.operands;
+        switch (insn.form) {
+        case LOAD_I:
+            return new Expression(insn.form, ops[0].intConstant, 0);
+        case ADD_I:
+        case MULT_I:
+            if (ops[0].type != ILOCOperand.Type.VIRTUAL_REG) {
+                return null;
+            }
+            return new Expression(insn.form, valueOf(ops[0]), ops[1].intConstant);
+        case NOT:
+        case NEG:
+            if (ops[0].type != ILOCOperand.Type.VIRTUAL_REG) {
+                return null;
+            }
+            return new Expression(insn.form, valueOf(ops[0]), 0);
+        case ADD:
+        case MULT:
+        case AND:
+        case OR:
+        case CMP_EQ:
+        case CMP_NE:
+        case SUB:
+        case DIV:
+        case CMP_LT:
+        case CMP_LE:
+        case CMP_GE:
+        case CMP_GT:
+            if (ops[0].type != ILOCOperand.Type.VIRTUAL_REG ||
+                    ops[1].type != ILOCOperand.Type.VIRTUAL_REG) {
+                return null;
+            }
+            long left = valueOf(ops[0]);
+            long right = valueOf(ops[1]);
+            if (isCommutative(insn.form) && left > right) {
+                long tmp = left;
+                left = right;
+                right = tmp;
+            }
+            return new Expression(insn.form, left, right);
+        default:
+            return null;
+        }
+    }
+
+    private static boolean isCommutative(ILOCInstruction.Form form)
+    {
+        switch (form) {
+        case ADD:
+        case MULT:
+        case AND:
+        case OR:
+        case CMP_EQ:
+        case CMP_NE:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
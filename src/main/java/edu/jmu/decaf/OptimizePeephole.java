@@ -0,0 +1,411 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Table-driven peephole optimizer. Each {@link Pattern} describes a short
+ * window of adjacent instructions (by instruction form, plus an optional
+ * condition on the operands) and how to rewrite it; {@link #DEFAULT_PATTERNS}
+ * is the standard table, and the constructor accepts any other table (e.g.,
+ * a single pattern for testing).
+ *
+ * Instructions are copied one at a time to an output list, and after each
+ * one the patterns are matched against the windows that end at the last
+ * output instruction. A rewrite only changes that tail, so matching resumes
+ * there and can combine the rewritten code with earlier instructions (e.g.,
+ * {@code addI x, 0 => x} becomes {@code i2i x => x}, which is then removed).
+ * Every rewrite makes the code shorter or replaces an instruction with a
+ * cheaper one, so the number of rewrites (and the total running time) is
+ * linear in the size of the function. Matching only reads the output list by
+ * index and does not allocate anything.
+ *
+ * None of the patterns need liveness information: values that become dead
+ * (e.g., a {@code loadI} that was folded into an {@code addI}) are left for
+ * {@link EliminateDeadCode}.
+ */
+public class OptimizePeephole implements ILOCProcessor
+{
+    /**
+     * A single peephole rule over a window of adjacent instructions
+     */
+    public static abstract class Pattern
+    {
+        /**
+         * Short name for debugging and tests
+         */
+        public final String name;
+
+        /**
+         * Required instruction forms of the window (null matches any form)
+         */
+        public final ILOCInstruction.Form[] forms;
+
+        public Pattern(String name, ILOCInstruction.Form... forms)
+        {
+            this.name = name;
+            this.forms = forms;
+        }
+
+        /**
+         * Checks the instruction forms of the window starting at the given
+         * index and then the pattern's additional condition
+         * @param code Instruction list
+         * @param start Index of the first instruction of the window
+         * @return True if the pattern matches
+         */
+        public final boolean matches(List<ILOCInstruction> code, int start)
+        {
+            if (start < 0 || start + forms.length > code.size()) {
+                return false;
+            }
+            for (int i = 0; i < forms.length; i++) {
+                if (forms[i] != null && code.get(start + i).form != forms[i]) {
+                    return false;
+                }
+            }
+            return condition(code, start);
+        }
+
+        /**
+         * Additional condition on the operands of a window whose forms match
+         * (by default, none)
+         */
+        protected boolean condition(List<ILOCInstruction> code, int start)
+        {
+            return true;
+        }
+
+        /**
+         * Rewrite a matched window at the end of the given list; instructions
+         * may only be replaced or removed from the window onwards
+         * @param code Instruction list
+         * @param start Index of the first instruction of the window
+         */
+        public abstract void rewrite(List<ILOCInstruction> code, int start);
+    }
+
+    /**
+     * {@code jump l; l:} becomes {@code l:}
+     */
+    public static final Pattern JUMP_TO_NEXT = new Pattern("jump-to-next",
+            ILOCInstruction.Form.JUMP, ILOCInstruction.Form.LABEL) {
+        protected boolean condition(List<ILOCInstruction> code, int start)
+        {
+            return isSameLabel(code.get(start).operands[0],
+                    code.get(start + 1).operands[0]);
+        }
+        public void rewrite(List<ILOCInstruction> code, int start)
+        {
+            code.remove(start);
+        }
+    };
+
+    /**
+     * Instructions after a jump or return (up to the next label) are never
+     * executed
+     */
+    public static final Pattern UNREACHABLE = new Pattern("unreachable",
+            null, null) {
+        protected boolean condition(List<ILOCInstruction> code, int start)
+        {
+            ILOCInstruction.Form first = code.get(start).form;
+            return (first == ILOCInstruction.Form.JUMP ||
+                    first == ILOCInstruction.Form.RETURN) &&
+                code.get(start + 1).form != ILOCInstruction.Form.LABEL;
+        }
+        public void rewrite(List<ILOCInstruction> code, int start)
+        {
+            code.remove(start + 1);
+        }
+    };
+
+    /**
+     * {@code cbr r => l, l} becomes {@code jump l} (also for the fused
+     * compare-and-branch forms)
+     */
+    public static final Pattern BRANCH_TO_SAME = new Pattern("branch-to-same",
+            (ILOCInstruction.Form)null) {
+        protected boolean condition(List<ILOCInstruction> code, int start)
+        {
+            ILOCInstruction cbr = code.get(start);
+            int n = cbr.operands.length;
+            return cbr.isConditionalBranch() &&
+                isSameLabel(cbr.operands[n - 2], cbr.operands[n - 1]);
+        }
+        public void rewrite(List<ILOCInstruction> code, int start)
+        {
+            ILOCInstruction cbr = code.get(start);
+            code.set(start, derive(cbr, ILOCInstruction.Form.JUMP,
+                        cbr.operands[cbr.operands.length - 2]));
+        }
+    };
+
+    /**
+     * {@code i2i r => r} is removed
+     */
+    public static final Pattern SELF_COPY = new Pattern("self-copy",
+            ILOCInstruction.Form.I2I) {
+        protected boolean condition(List<ILOCInstruction> code, int start)
+        {
+            ILOCInstruction copy = code.get(start);
+            return sameOperand(copy.operands[0], copy.operands[1]);
+        }
+        public void rewrite(List<ILOCInstruction> code, int start)
+        {
+            code.remove(start);
+        }
+    };
+
+    /**
+     * {@code i2i a => b; i2i b => a} drops the second copy
+     */
+    public static final Pattern COPY_BACK = new Pattern("copy-back",
+            ILOCInstruction.Form.I2I, ILOCInstruction.Form.I2I) {
+        protected boolean condition(List<ILOCInstruction> code, int start)
+        {
+            ILOCOperand[] first = code.get(start).operands;
+            ILOCOperand[] second = code.get(start + 1).operands;
+            return sameOperand(first[0], second[1]) && sameOperand(first[1], second[0]);
+        }
+        public void rewrite(List<ILOCInstruction> code, int start)
+        {
+            code.remove(start + 1);
+        }
+    };
+
+    /**
+     * {@code addI x, 0 => y} becomes {@code i2i x => y} (except for the
+     * prologue's stack adjustment, which later passes may need to resize)
+     */
+    public static final Pattern ADD_ZERO = new Pattern("add-zero",
+            ILOCInstruction.Form.ADD_I) {
+        protected boolean condition(List<ILOCInstruction> code, int start)
+        {
+            ILOCOperand[] ops = code.get(start).operands;
+            return ops[1].intConstant == 0 && ops[0].type != ILOCOperand.Type.STACK_REG;
+        }
+        public void rewrite(List<ILOCInstruction> code, int start)
+        {
+            ILOCInstruction add = code.get(start);
+            code.set(start, derive(add, ILOCInstruction.Form.I2I,
+                        add.operands[0], add.operands[2]));
+        }
+    };
+
+    /**
+     * {@code multI x, 1 => y} becomes {@code i2i x => y}, and
+     * {@code multI x, 0 => y} becomes {@code loadI 0 => y}
+     */
+    public static final Pattern MULT_IDENTITY = new Pattern("mult-identity",
+            ILOCInstruction.Form.MULT_I) {
+        protected boolean condition(List<ILOCInstruction> code, int start)
+        {
+            int c = code.get(start).operands[1].intConstant;
+            return c == 0 || c == 1;
+        }
+        public void rewrite(List<ILOCInstruction> code, int start)
+        {
+            ILOCInstruction mult = code.get(start);
+            if (mult.operands[1].intConstant == 1) {
+                code.set(start, derive(mult, ILOCInstruction.Form.I2I,
+                            mult.operands[0], mult.operands[2]));
+            } else {
+                code.set(start, derive(mult, ILOCInstruction.Form.LOAD_I,
+                            ILOCOperand.newIntConstant(0), mult.operands[2]));
+            }
+        }
+    };
+
+    /**
+     * {@code loadI c => t; add x, t => y} becomes
+     * {@code loadI c => t; addI x, c => y} (also for {@code sub} with -c,
+     * for {@code mult}, and with the constant as the first operand of the
+     * commutative forms)
+     */
+    public static final Pattern FOLD_IMMEDIATE = new Pattern("fold-immediate",
+            ILOCInstruction.Form.LOAD_I, null) {
+        protected boolean condition(List<ILOCInstruction> code, int start)
+        {
+            ILOCOperand t = code.get(start).operands[1];
+            ILOCInstruction insn = code.get(start + 1);
+            switch (insn.form) {
+            case ADD:
+            case MULT:
+                return sameOperand(insn.operands[0], t) || sameOperand(insn.operands[1], t);
+            case SUB:
+                return sameOperand(insn.operands[1], t) &&
+                    code.get(start).operands[0].intConstant != Integer.MIN_VALUE;
+            default:
+                return false;
+            }
+        }
+        public void rewrite(List<ILOCInstruction> code, int start)
+        {
+            ILOCInstruction load = code.get(start);
+            ILOCInstruction insn = code.get(start + 1);
+            int c = load.operands[0].intConstant;
+            ILOCOperand x = (sameOperand(insn.operands[1], load.operands[1]) ?
+                    insn.operands[0] : insn.operands[1]);
+            ILOCInstruction.Form form = ILOCInstruction.Form.ADD_I;
+            if (insn.form == ILOCInstruction.Form.MULT) {
+                form = ILOCInstruction.Form.MULT_I;
+            } else if (insn.form == ILOCInstruction.Form.SUB) {
+                c = -c;
+            }
+            code.set(start + 1, derive(insn, form, x,
+                        ILOCOperand.newIntConstant(c), insn.operands[2]));
+        }
+    };
+
+    /**
+     * {@code push r; pop s} becomes {@code i2i r => s}
+     */
+    public static final Pattern PUSH_POP = new Pattern("push-pop",
+            ILOCInstruction.Form.PUSH, ILOCInstruction.Form.POP) {
+        public void rewrite(List<ILOCInstruction> code, int start)
+        {
+            ILOCInstruction push = code.get(start);
+            ILOCInstruction pop = code.remove(start + 1);
+            code.set(start, derive(push, ILOCInstruction.Form.I2I,
+                        push.operands[0], pop.operands[0]));
+        }
+    };
+
+    /**
+     * {@code storeAI r => [b+c]; loadAI [b+c] => s} turns the load into
+     * {@code i2i r => s}
+     */
+    public static final Pattern STORE_LOAD = new Pattern("store-load",
+            ILOCInstruction.Form.STORE_AI, ILOCInstruction.Form.LOAD_AI) {
+        protected boolean condition(List<ILOCInstruction> code, int start)
+        {
+            ILOCOperand[] store = code.get(start).operands;
+            ILOCOperand[] load = code.get(start + 1).operands;
+            return sameOperand(store[1], load[0]) && sameOperand(store[2], load[1]);
+        }
+        public void rewrite(List<ILOCInstruction> code, int start)
+        {
+            ILOCInstruction load = code.get(start + 1);
+            ILOCInstruction copy = derive(load, ILOCInstruction.Form.I2I,
+                    code.get(start).operands[0], load.operands[2]);
+            copy.variableName = null;
+            code.set(start + 1, copy);
+        }
+    };
+
+    /**
+     * Standard pattern table
+     */
+    public static final Pattern[] DEFAULT_PATTERNS = {
+        UNREACHABLE, JUMP_TO_NEXT, BRANCH_TO_SAME, SELF_COPY, COPY_BACK,
+        ADD_ZERO, MULT_IDENTITY, FOLD_IMMEDIATE, PUSH_POP, STORE_LOAD
+    };
+
+    private Pattern[] patterns;
+    private int rewrites;
+
+    /**
+     * Create a peephole optimizer with the standard pattern table
+     */
+    public OptimizePeephole()
+    {
+        this(DEFAULT_PATTERNS);
+    }
+
+    /**
+     * Create a peephole optimizer with the given patterns (tried in order)
+     * @param patterns Pattern table
+     */
+    public OptimizePeephole(Pattern... patterns)
+    {
+        this.patterns = patterns;
+        this.rewrites = 0;
+    }
+
+    /**
+     * Returns the total number of rewrites performed so far
+     * @return Rewrite count
+     */
+    public int getRewriteCount()
+    {
+        return rewrites;
+    }
+
+    public void process(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            int before = rewrites;
+            List<ILOCInstruction> code = optimize(func.getInstructions());
+            if (rewrites != before) {
+                func.setInstructions(code);
+            }
+        }
+    }
+
+    /**
+     * Apply the patterns to an instruction sequence
+     * @param code Original instructions (not modified)
+     * @return Optimized instructions
+     */
+    public List<ILOCInstruction> optimize(List<ILOCInstruction> code)
+    {
+        List<ILOCInstruction> out = new ArrayList<ILOCInstruction>(code.size());
+        for (ILOCInstruction insn : code) {
+            out.add(insn);
+            boolean changed = true;
+            while (changed && !out.isEmpty()) {
+                changed = false;
+                for (Pattern p : patterns) {
+                    int start = out.size() - p.forms.length;
+                    if (p.matches(out, start)) {
+                        p.rewrite(out, start);
+                        rewrites++;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    private static boolean isSameLabel(ILOCOperand a, ILOCOperand b)
+    {
+        return a.type == ILOCOperand.Type.JUMP_LABEL && sameOperand(a, b);
+    }
+
+    /**
+     * Compares two operands by value (like {@link ILOCOperand#equals}, but
+     * without building their strings)
+     */
+    static boolean sameOperand(ILOCOperand a, ILOCOperand b)
+    {
+        if (a.type != b.type) {
+            return false;
+        }
+        switch (a.type) {
+        case VIRTUAL_REG:
+        case JUMP_LABEL:
+            return a.id == b.id;
+        case INT_CONST:
+            return a.intConstant == b.intConstant;
+        case CALL_LABEL:
+        case STR_CONST:
+            return a.strConstant.equals(b.strConstant);
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Create a replacement instruction that keeps the original's comment
+     * and debug information
+     */
+    private static ILOCInstruction derive(ILOCInstruction original,
+            ILOCInstruction.Form form, ILOCOperand... operands)
+    {
+        ILOCInstruction insn = new ILOCInstruction(form, operands, original.comment);
+        insn.variableName = original.variableName;
+        return insn;
+    }
+}
@@ -0,0 +1,257 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Promotion of stack-allocated scalars to virtual registers ("mem2reg").
+ * {@link MyILOCGenerator} keeps every local variable and parameter in a stack
+ * slot ({@code [bp+c]}) and accesses it with a {@code loadAI} or
+ * {@code storeAI} each time it is read or written. This pass gives every
+ * slot that is only accessed that way a virtual register of its own: loads
+ * from the slot become copies from the register and stores become copies
+ * into it. Parameters are loaded into their registers once, right after the
+ * prologue (and before any tail recursion target, see
+ * {@link EliminateTailCalls}); locals that may be read before they are
+ * written start out as zero.
+ *
+ * The new registers have several definitions, like the rest of the code that
+ * the non-SSA passes work on; {@link ConvertToSSA} can split them into
+ * single-assignment values if needed. The copies are left for
+ * {@link NumberLocalValues} and {@link EliminateDeadCode}.
+ *
+ * A function is skipped entirely if bp is used for anything other than
+ * loads, stores, and the prologue and epilogue (i.e., if the address of the
+ * frame escapes). Slots of local arrays (accessed with {@code loadAO} or
+ * {@code storeAO}) stay in memory, as do all slots of a variable with the
+ * same name as such an array. Parameters stay in memory if the function
+ * contains a general tail call, since that stores the callee's arguments
+ * into the parameter slots. If all remaining accesses have constant offsets,
+ * the remaining locals are packed together and the frame is shrunk.
+ */
+public class PromoteLocals implements ILOCProcessor
+{
+    private int promoted;
+
+    public PromoteLocals()
+    {
+        this.promoted = 0;
+    }
+
+    /**
+     * Returns the number of slots promoted so far
+     * @return Number of promoted slots
+     */
+    public int getPromotedCount()
+    {
+        return promoted;
+    }
+
+    public void process(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            if (!func.getInstructions().isEmpty()) {
+                promote(func);
+            }
+        }
+    }
+
+    /**
+     * Promote the slots of a single function
+     * @param func Function to transform
+     */
+    private void promote(ILOCFunction func)
+    {
+        List<ILOCInstruction> code = func.getInstructions();
+        int prologue = code.indexOf(func.frameAllocation);
+        if (prologue < 0) {
+            return;
+        }
+
+        // find all slot accesses (by bp offset)
+        Map<Integer, List<Integer>> accesses = new TreeMap<Integer, List<Integer>>();
+        Set<String> arrays = new HashSet<String>();
+        boolean indexed = false;
+        Set<Integer> labels = new HashSet<Integer>();
+        for (int i = 0; i < code.size(); i++) {
+            ILOCInstruction insn = code.get(i);
+            if (insn.form == ILOCInstruction.Form.LABEL) {
+                labels.add(insn.operands[0].id);
+            }
+            int offset = slotOffset(insn);
+            if (offset != 0) {
+                if (!accesses.containsKey(offset)) {
+                    accesses.put(offset, new ArrayList<Integer>());
+                }
+                accesses.get(offset).add(i);
+            } else if ((insn.form == ILOCInstruction.Form.LOAD_AO &&
+                        isBP(insn.operands[0]) && !isBP(insn.operands[1])) ||
+                    (insn.form == ILOCInstruction.Form.STORE_AO &&
+                        isBP(insn.operands[1]) && !isBP(insn.operands[0]) &&
+                        !isBP(insn.operands[2]))) {
+                if (insn.variableName == null) {
+                    return;
+                }
+                arrays.add(insn.variableName);
+                indexed = true;
+            } else if (!isFrameInstruction(insn)) {
+                for (ILOCOperand op : insn.operands) {
+                    if (isBP(op)) {
+                        return;     // the frame address escapes
+                    }
+                }
+            }
+        }
+        boolean tailCalls = false;
+        for (ILOCInstruction insn : code) {
+            if (insn.form == ILOCInstruction.Form.JUMP &&
+                    !labels.contains(insn.operands[0].id)) {
+                tailCalls = true;
+            }
+        }
+
+        // choose the slots to promote
+        int numParams = func.functionSymbol.paramTypes.size();
+        Map<Integer, ILOCOperand> regs = new TreeMap<Integer, ILOCOperand>();
+        Map<Integer, String> names = new HashMap<Integer, String>();
+        for (Map.Entry<Integer, List<Integer>> e : accesses.entrySet()) {
+            int offset = e.getKey();
+            boolean candidate = (offset % Symbol.WORD_SIZE == 0) && (offset < 0 ||
+                    (!tailCalls && offset >= 2 * Symbol.WORD_SIZE &&
+                     offset < (2 + numParams) * Symbol.WORD_SIZE));
+            for (int i : e.getValue()) {
+                String name = code.get(i).variableName;
+                if (name != null) {
+                    candidate = candidate && !arrays.contains(name);
+                    names.put(offset, name);
+                }
+            }
+            if (candidate) {
+                regs.put(offset, ILOCOperand.newVirtualReg());
+            }
+        }
+        if (regs.isEmpty()) {
+            return;
+        }
+
+        // replace the accesses with copies
+        for (Map.Entry<Integer, ILOCOperand> e : regs.entrySet()) {
+            ILOCOperand reg = e.getValue();
+            for (int i : accesses.get(e.getKey())) {
+                ILOCInstruction insn = code.get(i);
+                ILOCOperand[] ops = (insn.form == ILOCInstruction.Form.LOAD_AI ?
+                        new ILOCOperand[] { reg, insn.operands[2] } :
+                        new ILOCOperand[] { insn.operands[0], reg });
+                ILOCInstruction copy = new ILOCInstruction(ILOCInstruction.Form.I2I,
+                        ops, insn.comment);
+                copy.variableName = insn.variableName;
+                code.set(i, copy);
+            }
+            promoted++;
+        }
+
+        // load the parameters and initialize locals that may be read first
+        func.invalidateCFG();
+        ILOCLiveness liveness = new ILOCLiveness(func);
+        BitSet liveIn = liveness.getLiveIn(func.getEntryBlock());
+        ILOCRegisterIndex registers = liveness.getRegisterIndex();
+        List<ILOCInstruction> init = new ArrayList<ILOCInstruction>();
+        for (Map.Entry<Integer, ILOCOperand> e : regs.entrySet()) {
+            int offset = e.getKey();
+            ILOCOperand reg = e.getValue();
+            ILOCInstruction insn;
+            if (offset > 0) {
+                insn = new ILOCInstruction(ILOCInstruction.Form.LOAD_AI,
+                        new ILOCOperand[] { ILOCOperand.REG_BP,
+                            ILOCOperand.newIntConstant(offset), reg });
+            } else if (registers.indexOf(reg) >= 0 && liveIn.get(registers.indexOf(reg))) {
+                insn = new ILOCInstruction(ILOCInstruction.Form.LOAD_I,
+                        new ILOCOperand[] { ILOCOperand.newIntConstant(0), reg },
+                        "uninitialized local");
+            } else {
+                continue;
+            }
+            insn.variableName = names.get(offset);
+            init.add(insn);
+        }
+        code.addAll(prologue + 1, init);
+
+        if (!indexed) {
+            packLocals(func, regs.keySet());
+        }
+        func.invalidateCFG();
+    }
+
+    /**
+     * Move the remaining locals next to each other at the top of the frame
+     * and shrink the frame accordingly
+     */
+    private static void packLocals(ILOCFunction func, Set<Integer> promoted)
+    {
+        Map<Integer, Integer> packed = new TreeMap<Integer, Integer>(
+                Collections.reverseOrder());
+        for (ILOCInstruction insn : func.getInstructions()) {
+            int offset = slotOffset(insn);
+            if (offset < 0 && !promoted.contains(offset)) {
+                packed.put(offset, 0);
+            }
+        }
+        int next = 0;
+        for (Map.Entry<Integer, Integer> e : packed.entrySet()) {
+            next -= Symbol.WORD_SIZE;
+            e.setValue(next);
+        }
+        for (ILOCInstruction insn : func.getInstructions()) {
+            int offset = slotOffset(insn);
+            if (offset < 0 && offset != packed.get(offset)) {
+                int index = (insn.form == ILOCInstruction.Form.LOAD_AI ? 1 : 2);
+                insn.operands[index] = ILOCOperand.newIntConstant(packed.get(offset));
+            }
+        }
+        func.localSize = -next;
+        func.updateFrameSize();
+    }
+
+    /**
+     * Returns the bp offset accessed by a {@code loadAI} or {@code storeAI}
+     * of a stack slot, or zero for all other instructions
+     */
+    private static int slotOffset(ILOCInstruction insn)
+    {
+        if (insn.form == ILOCInstruction.Form.LOAD_AI && isBP(insn.operands[0]) &&
+                insn.operands[1].type == ILOCOperand.Type.INT_CONST &&
+                !isBP(insn.operands[2])) {
+            return insn.operands[1].intConstant;
+        }
+        if (insn.form == ILOCInstruction.Form.STORE_AI && isBP(insn.operands[1]) &&
+                insn.operands[2].type == ILOCOperand.Type.INT_CONST &&
+                !isBP(insn.operands[0])) {
+            return insn.operands[2].intConstant;
+        }
+        return 0;
+    }
+
+    /**
+     * Checks for the instructions of the prologue, the epilogue, and general
+     * tail calls that save, set up, and restore bp
+     */
+    private static boolean isFrameInstruction(ILOCInstruction insn)
+    {
+        switch (insn.form) {
+        case PUSH:
+        case POP:
+            return true;
+        case I2I:
+            return (isBP(insn.operands[0]) &&
+                        insn.operands[1].type == ILOCOperand.Type.STACK_REG) ||
+                (insn.operands[0].type == ILOCOperand.Type.STACK_REG &&
+                        isBP(insn.operands[1]));
+        default:
+            return false;
+        }
+    }
+
+    private static boolean isBP(ILOCOperand op)
+    {
+        return op.type == ILOCOperand.Type.BASE_REG;
+    }
+}
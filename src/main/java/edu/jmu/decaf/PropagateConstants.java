@@ -0,0 +1,438 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Sparse conditional constant propagation (Wegman and Zadeck). Tracks a
+ * lattice value (undefined, constant, or varying) for every virtual register
+ * while only following CFG edges that can actually execute given the values
+ * known so far.
+ *
+ * Afterwards:
+ * <ul>
+ * <li>instructions that compute a constant are replaced by a {@code loadI}</li>
+ * <li>arithmetic with one constant operand is folded into the immediate forms
+ *     ({@code addI}/{@code multI})</li>
+ * <li>branches with a constant condition become unconditional jumps</li>
+ * <li>blocks that can never execute are removed</li>
+ * </ul>
+ *
+ * Each register has a single lattice value for the whole function: the meet
+ * of the values produced by all of its executable definitions. This is exact
+ * for code in SSA form and still sound (if less precise) for registers that
+ * are assigned more than once. Values propagate sparsely along use lists, so
+ * the analysis takes time and memory linear in the size of the function.
+ */
+public class PropagateConstants implements ILOCProcessor
+{
+    /**
+     * Lattice value for registers that have not been assigned a value yet;
+     * registers that are absent from the value map are also undefined
+     */
+    private static final long UNDEFINED = Long.MIN_VALUE;
+
+    /**
+     * Lattice value for registers that may hold more than one value
+     */
+    private static final long VARYING = Long.MAX_VALUE;
+
+    private Map<Integer, Long> values;
+    private Map<Integer, List<ILOCInstruction>> uses;
+    private Map<ILOCInstruction, ILOCBasicBlock> blockOf;
+    private Map<Integer, ILOCBasicBlock> blockByLabelID;
+    private boolean[] executable;
+    private Deque<ILOCBasicBlock> blockWorklist;
+    private Deque<Integer> regWorklist;
+
+    public PropagateConstants()
+    {
+    }
+
+    public void process(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            process(func);
+        }
+    }
+
+    /**
+     * Propagate constants in a single function
+     * @param func Function to optimize
+     */
+    private void process(ILOCFunction func)
+    {
+        func.invalidateCFG();
+        ILOCBasicBlock entry = func.getEntryBlock();
+        values = new HashMap<Integer, Long>();
+        uses = new HashMap<Integer, List<ILOCInstruction>>();
+        blockOf = new IdentityHashMap<ILOCInstruction, ILOCBasicBlock>();
+        blockByLabelID = new HashMap<Integer, ILOCBasicBlock>();
+        executable = new boolean[func.allBlocks.size()];
+        blockWorklist = new ArrayDeque<ILOCBasicBlock>();
+        regWorklist = new ArrayDeque<Integer>();
+
+        for (ILOCBasicBlock b : func.allBlocks) {
+            if (b.instructions.get(0).form == ILOCInstruction.Form.LABEL) {
+                blockByLabelID.put(b.instructions.get(0).operands[0].id, b);
+            }
+            for (ILOCInstruction insn : b.instructions) {
+                blockOf.put(insn, b);
+                for (ILOCOperand op : insn.getReadOperands()) {
+                    if (op.type == ILOCOperand.Type.VIRTUAL_REG) {
+                        if (!uses.containsKey(op.id)) {
+                            uses.put(op.id, new ArrayList<ILOCInstruction>());
+                        }
+                        uses.get(op.id).add(insn);
+                    }
+                }
+            }
+        }
+
+        // PHASE 1 - find executable blocks and register values
+
+        markExecutable(entry);
+        boolean done = false;
+        while (!done) {
+            while (!blockWorklist.isEmpty() || !regWorklist.isEmpty()) {
+                if (!blockWorklist.isEmpty()) {
+                    ILOCBasicBlock b = blockWorklist.poll();
+                    for (ILOCInstruction insn : b.instructions) {
+                        visit(insn);
+                    }
+                    if (!b.instructions.get(b.instructions.size() - 1).isConditionalBranch()) {
+                        for (ILOCBasicBlock s : b.targets) {
+                            markExecutable(s);
+                        }
+                    }
+                } else {
+                    Integer reg = regWorklist.poll();
+                    if (uses.containsKey(reg)) {
+                        for (ILOCInstruction insn : uses.get(reg)) {
+                            if (executable[blockOf.get(insn).index]) {
+                                visit(insn);
+                            }
+                        }
+                    }
+                }
+            }
+
+            // a branch on a register that never got a value (which can only
+            // happen if it is read before being written) must be assumed to
+            // go either way
+            done = true;
+            for (ILOCBasicBlock b : func.allBlocks) {
+                ILOCInstruction last = b.instructions.get(b.instructions.size() - 1);
+                if (!executable[b.index] || !last.isConditionalBranch()) {
+                    continue;
+                }
+                for (int i = 0; i < last.operands.length - 2; i++) {
+                    if (lookup(last.operands[i]) == UNDEFINED) {
+                        values.put(last.operands[i].id, VARYING);
+                        regWorklist.add(last.operands[i].id);
+                        done = false;
+                    }
+                }
+            }
+        }
+
+        // PHASE 2 - rewrite executable blocks and drop all others (keeping
+        // the original order so that fall-through edges are preserved)
+
+        List<ILOCInstruction> code = new ArrayList<ILOCInstruction>();
+        for (ILOCBasicBlock b : func.allBlocks) {
+            if (!executable[b.index]) {
+                continue;
+            }
+            for (ILOCInstruction insn : b.instructions) {
+                code.add(rewrite(insn));
+            }
+        }
+        func.setInstructions(code);
+        func.invalidateCFG();
+    }
+
+    private void markExecutable(ILOCBasicBlock b)
+    {
+        if (b != null && !executable[b.index]) {
+            executable[b.index] = true;
+            blockWorklist.add(b);
+        }
+    }
+
+    /**
+     * (Re-)evaluate an instruction in an executable block, lowering the
+     * values of the registers it writes or marking its branch targets as
+     * executable
+     */
+    private void visit(ILOCInstruction insn)
+    {
+        if (insn.isConditionalBranch()) {
+            int n = insn.operands.length;
+            long cond = branchCondition(insn);
+            if (cond == UNDEFINED) {
+                return;
+            }
+            if (cond == VARYING || cond != 0) {
+                markExecutable(blockByLabelID.get(insn.operands[n - 2].id));
+            }
+            if (cond == VARYING || cond == 0) {
+                markExecutable(blockByLabelID.get(insn.operands[n - 1].id));
+            }
+            return;
+        }
+        for (ILOCOperand op : insn.getWriteOperands()) {
+            if (op.type != ILOCOperand.Type.VIRTUAL_REG) {
+                continue;
+            }
+            long old = lookup(op);
+            long merged = meet(old, evaluate(insn));
+            if (merged != old) {
+                values.put(op.id, Long.valueOf(merged));
+                regWorklist.add(op.id);
+            }
+        }
+    }
+
+    private static long meet(long a, long b)
+    {
+        if (a == UNDEFINED) {
+            return b;
+        } else if (b == UNDEFINED) {
+            return a;
+        }
+        return (a == b ? a : VARYING);
+    }
+
+    private static boolean isConstant(long value)
+    {
+        return value != VARYING && value != UNDEFINED;
+    }
+
+    /**
+     * Returns the lattice value of an operand; constants are themselves and
+     * special registers always vary
+     */
+    private long lookup(ILOCOperand op)
+    {
+        if (op.type == ILOCOperand.Type.INT_CONST) {
+            return op.intConstant;
+        }
+        if (op.type != ILOCOperand.Type.VIRTUAL_REG) {
+            return VARYING;
+        }
+        Long value = values.get(op.id);
+        return (value == null ? UNDEFINED : value.longValue());
+    }
+
+    /**
+     * Compute the lattice value of the condition of a conditional branch
+     * (either a register or a fused comparison)
+     */
+    private long branchCondition(ILOCInstruction insn)
+    {
+        ILOCOperand[] ops = insn.operands;
+        if (insn.form == ILOCInstruction.Form.CBR) {
+            return lookup(ops[0]);
+        }
+        return evaluateBinary(FuseCompareBranches.comparisonOf(insn.form),
+                lookup(ops[0]), lookup(ops[1]));
+    }
+
+    /**
+     * Compute the lattice value of the result of an instruction
+     */
+    private long evaluate(ILOCInstruction insn)
+    {
+        ILOCOperand[] ops = insn.operands;
+        switch (insn.form) {
+        case LOAD_I:
+            return ops[0].intConstant;
+        case I2I:
+            return lookup(ops[0]);
+        case NOT:
+        case NEG:
+            long a = lookup(ops[0]);
+            if (!isConstant(a)) {
+                return a;
+            }
+            return (insn.form == ILOCInstruction.Form.NOT ? (a == 0 ? 1 : 0) : -(int)a);
+        case PHI:
+            long result = UNDEFINED;
+            for (int i = 0; i < ops.length - 1; i++) {
+                result = meet(result, lookup(ops[i]));
+            }
+            return result;
+        case ADD:
+        case ADD_I:
+        case SUB:
+        case MULT:
+        case MULT_I:
+        case DIV:
+        case AND:
+        case OR:
+        case CMP_LT:
+        case CMP_LE:
+        case CMP_EQ:
+        case CMP_NE:
+        case CMP_GE:
+        case CMP_GT:
+            return evaluateBinary(insn.form, lookup(ops[0]), lookup(ops[1]));
+        default:
+            return VARYING;
+        }
+    }
+
+    /**
+     * Fold a binary operation. Some operations have a constant result even if
+     * one operand varies (e.g., multiplication by zero).
+     */
+    private static long evaluateBinary(ILOCInstruction.Form form, long a, long b)
+    {
+        boolean ca = isConstant(a);
+        boolean cb = isConstant(b);
+        switch (form) {
+        case MULT:
+        case MULT_I:
+        case AND:
+            if ((ca && a == 0) || (cb && b == 0)) {
+                return 0;
+            }
+            break;
+        case OR:
+            if ((ca && a != 0) || (cb && b != 0)) {
+                return 1;
+            }
+            break;
+        default:
+            break;
+        }
+        if (a == UNDEFINED || b == UNDEFINED) {
+            return UNDEFINED;
+        }
+        if (!ca || !cb) {
+            return VARYING;
+        }
+        int x = (int)a;
+        int y = (int)b;
+        switch (form) {
+        case ADD:
+        case ADD_I:     return x + y;
+        case SUB:       return x - y;
+        case MULT:
+        case MULT_I:    return x * y;
+        case DIV:       return (y == 0 ? VARYING : x / y);   // keep the fault
+        case AND:       return (x != 0 && y != 0) ? 1 : 0;
+        case OR:        return (x != 0 || y != 0) ? 1 : 0;
+        case CMP_LT:    return (x <  y) ? 1 : 0;
+        case CMP_LE:    return (x <= y) ? 1 : 0;
+        case CMP_EQ:    return (x == y) ? 1 : 0;
+        case CMP_NE:    return (x != y) ? 1 : 0;
+        case CMP_GE:    return (x >= y) ? 1 : 0;
+        case CMP_GT:    return (x >  y) ? 1 : 0;
+        default:        return VARYING;
+        }
+    }
+
+    /**
+     * Rewrite a single instruction given the final lattice values.
+     * @return The original instruction or a simplified replacement
+     */
+    private ILOCInstruction rewrite(ILOCInstruction insn)
+    {
+        ILOCOperand[] ops = insn.operands;
+
+        // constant branch condition: only one target can execute
+        if (insn.isConditionalBranch()) {
+            int n = ops.length;
+            long cond = branchCondition(insn);
+            if (!isConstant(cond)) {
+                return insn;
+            }
+            ILOCOperand[] target = { cond != 0 ? ops[n - 2] : ops[n - 1] };
+            return copyInfo(insn, new ILOCInstruction(ILOCInstruction.Form.JUMP, target));
+        }
+
+        if (!isFoldable(insn.form)) {
+            return insn;
+        }
+        ILOCOperand dest = insn.getWriteOperand();
+        if (dest.type != ILOCOperand.Type.VIRTUAL_REG) {
+            return insn;
+        }
+
+        // constant result: materialize it directly
+        long value = evaluate(insn);
+        if (isConstant(value)) {
+            if (insn.form == ILOCInstruction.Form.LOAD_I) {
+                return insn;
+            }
+            ILOCOperand[] newOps = { ILOCOperand.newIntConstant((int)value), dest };
+            return copyInfo(insn, new ILOCInstruction(ILOCInstruction.Form.LOAD_I, newOps));
+        }
+
+        // one constant operand: use the immediate form
+        long a = (ops.length > 1 ? lookup(ops[0]) : VARYING);
+        long b = (ops.length > 1 ? lookup(ops[1]) : VARYING);
+        switch (insn.form) {
+        case ADD:
+        case MULT:
+            ILOCInstruction.Form immForm = (insn.form == ILOCInstruction.Form.ADD ?
+                    ILOCInstruction.Form.ADD_I : ILOCInstruction.Form.MULT_I);
+            if (isConstant(b)) {
+                ILOCOperand[] newOps = { ops[0], ILOCOperand.newIntConstant((int)b), dest };
+                return copyInfo(insn, new ILOCInstruction(immForm, newOps));
+            } else if (isConstant(a)) {
+                ILOCOperand[] newOps = { ops[1], ILOCOperand.newIntConstant((int)a), dest };
+                return copyInfo(insn, new ILOCInstruction(immForm, newOps));
+            }
+            break;
+        case SUB:
+            if (isConstant(b)) {
+                ILOCOperand[] newOps = { ops[0], ILOCOperand.newIntConstant(-(int)b), dest };
+                return copyInfo(insn, new ILOCInstruction(ILOCInstruction.Form.ADD_I, newOps));
+            }
+            break;
+        default:
+            break;
+        }
+        return insn;
+    }
+
+    /**
+     * Side-effect-free forms whose result depends only on their operands
+     */
+    private static boolean isFoldable(ILOCInstruction.Form form)
+    {
+        switch (form) {
+        case LOAD_I:
+        case I2I:
+        case NOT:
+        case NEG:
+        case PHI:
+        case ADD:
+        case ADD_I:
+        case SUB:
+        case MULT:
+        case MULT_I:
+        case DIV:
+        case AND:
+        case OR:
+        case CMP_LT:
+        case CMP_LE:
+        case CMP_EQ:
+        case CMP_NE:
+        case CMP_GE:
+        case CMP_GT:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static ILOCInstruction copyInfo(ILOCInstruction from, ILOCInstruction to)
+    {
+        to.comment = from.comment;
+        to.variableName = from.variableName;
+        return to;
+    }
+}
@@ -0,0 +1,912 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Induction variable strength reduction with linear function test
+ * replacement. Finds the basic induction variables of each natural loop and
+ * replaces multiplications of them by constants (mainly the
+ * {@code multI i, 4} of every array access) with registers that are updated
+ * by {@code addI} whenever the variable changes.
+ *
+ * A basic induction variable is either a local variable in a stack slot
+ * ({@code [bp+c]}) or a virtual register whose every write in the loop adds a
+ * constant to its current value (e.g., {@code i = i + 1}). Values are tracked
+ * symbolically within each block as "variable plus constant" through loads,
+ * copies, and constant additions, so that the address arithmetic emitted by
+ * {@link MyILOCGenerator} (which reloads the variable before each use) is
+ * recognized.
+ *
+ * For each multiple s*i that is used (where s is a constant or, if nothing is
+ * added to i, a loop-invariant register), a new register p is initialized to
+ * s*i in the preheader and incremented by s*c right after every update i += c;
+ * each {@code multI} is replaced by a copy of p (or p plus a constant), and
+ * the copy is forwarded to later reads in the same block.
+ *
+ * Comparisons of i with a constant limit n are then rewritten to compare p
+ * with s*n (for s > 0), but only if neither s*n nor s times any value that i
+ * can have in the loop overflows, since wrapped values do not compare the
+ * same way. That range is known if i starts at a constant, always moves in
+ * the same direction by updates that run at most once per iteration, and is
+ * tested against a constant by the branch that leaves the loop from its
+ * header. If the variable itself is then only used to update itself and is
+ * not read after the loop, its updates are removed; the remaining dead
+ * instructions are left for {@link EliminateDeadCode}.
+ */
+public class ReduceStrength extends ILOCManagedPass
+{
+    /**
+     * A candidate induction variable: a stack slot or a virtual register
+     */
+    private static class Var
+    {
+        boolean slot;
+        int key;                // bp offset or register ID
+        ILOCOperand reg;        // register operand (only for registers)
+
+        Var(boolean slot, int key, ILOCOperand reg)
+        {
+            this.slot = slot;
+            this.key = key;
+            this.reg = reg;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (slot ? 31 * key + 1 : 31 * key);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (o instanceof Var) {
+                Var v = (Var)o;
+                return slot == v.slot && key == v.key;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Symbolic value: the given version of a variable plus a constant
+     */
+    private static class Affine
+    {
+        Var var;
+        int version;
+        int offset;
+
+        Affine(Var var, int version, int offset)
+        {
+            this.var = var;
+            this.version = version;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * An instruction that uses an induction variable (an update, a
+     * multiplication, or a comparison)
+     */
+    private static class Use
+    {
+        ILOCBasicBlock block;
+        ILOCInstruction insn;
+        Var var;
+        int value;              // step, scale, or IV operand position
+        int offset;             // constant added to the variable
+        ILOCOperand factor;     // invariant register scale (if not constant)
+
+        Use(ILOCBasicBlock block, ILOCInstruction insn, Var var, int value, int offset)
+        {
+            this.block = block;
+            this.insn = insn;
+            this.var = var;
+            this.value = value;
+            this.offset = offset;
+        }
+    }
+
+
+    // per-function state
+    private Map<Integer, Integer> constants;
+
+    // per-loop state
+    private ILOCRegisterIndex registers;
+    private int[] defs;
+    private Map<Var, List<Use>> updates;
+    private Set<Var> varying;           // written other than by updates
+    private boolean unknownSlotWrites;
+    private List<Use> products;
+    private List<Use> compares;
+    private Map<Integer, Affine> symbols;
+    private Map<Var, Integer> versions;
+
+    public ReduceStrength()
+    {
+    }
+
+    public Set<ILOCAnalysisManager.Analysis> getPreservedAnalyses()
+    {
+        return ILOCAnalysisManager.CFG_ONLY;
+    }
+
+    protected void transform(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            ILOCLoops loops = analyses.getLoops(func);
+            if (loops.getLoops().isEmpty()) {
+                continue;
+            }
+            if (InsertLoopPreheaders.insertPreheaders(func, loops)) {
+                analyses.invalidate(func);
+                loops = analyses.getLoops(func);
+            }
+            constants = HoistLoopInvariants.findConstants(func);
+
+            boolean changed = false;
+            for (ILOCLoops.Loop loop : loops.getLoops()) {
+                ILOCBasicBlock preheader = loop.getPreheader();
+                if (preheader != null && reduce(func, loops, loop, preheader)) {
+                    analyses.invalidate(func, ILOCAnalysisManager.Analysis.LIVENESS);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                func.updateInstructionsFromCFG();
+            }
+        }
+    }
+
+    /**
+     * Strength-reduce the induction variables of a single loop
+     * @return True if the loop was changed
+     */
+    private boolean reduce(ILOCFunction func, ILOCLoops loops, ILOCLoops.Loop loop,
+            ILOCBasicBlock preheader)
+    {
+        ILOCLiveness liveness = analyses.getLiveness(func);
+        registers = liveness.getRegisterIndex();
+        List<ILOCBasicBlock> body = new ArrayList<ILOCBasicBlock>();
+        for (ILOCBasicBlock b : func.allBlocks) {
+            if (loop.contains(b)) {
+                body.add(b);
+            }
+        }
+        scan(body);
+
+        // group the multiplications by variable and scale (an Integer for
+        // constants, or the ID of an invariant register)
+        Map<Var, Map<Object, ILOCOperand>> scaled = new HashMap<Var, Map<Object, ILOCOperand>>();
+        List<ILOCInstruction> init = new ArrayList<ILOCInstruction>();
+        List<Use> copies = new ArrayList<Use>();
+        for (Use product : products) {
+            if (!isInductionVariable(product.var)) {
+                continue;
+            }
+            if (!scaled.containsKey(product.var)) {
+                scaled.put(product.var, new LinkedHashMap<Object, ILOCOperand>());
+            }
+            Map<Object, ILOCOperand> pointers = scaled.get(product.var);
+            Object scale = (product.factor == null ? (Object)product.value :
+                    "r" + product.factor.id);
+            ILOCOperand p = pointers.get(scale);
+            if (p == null) {
+                p = ILOCOperand.newVirtualReg();
+                pointers.put(scale, p);
+                init.addAll(initialize(product, p));
+                for (Use update : updates.get(product.var)) {
+                    insertAfter(update.block, update.insn,
+                            increment(product, update.value, p, init));
+                }
+            }
+
+            // t = s*(i+b) becomes t = p + s*b
+            ILOCOperand t = product.insn.getWriteOperand();
+            ILOCInstruction replacement = (product.offset == 0 ?
+                    newInstruction(ILOCInstruction.Form.I2I, p, t) :
+                    newInstruction(ILOCInstruction.Form.ADD_I, p,
+                        ILOCOperand.newIntConstant(product.value * product.offset), t));
+            replace(product.block, product.insn, replacement);
+            if (product.offset == 0) {
+                copies.add(new Use(product.block, replacement, product.var, 0, 0));
+                forwardCopy(product.block, replacement);
+            }
+        }
+        if (scaled.isEmpty()) {
+            return false;
+        }
+
+        // linear function test replacement (only where nothing can overflow)
+        Map<Var, long[]> ranges = new HashMap<Var, long[]>();
+        for (Use cmp : compares) {
+            Map<Object, ILOCOperand> pointers = scaled.get(cmp.var);
+            ILOCOperand bound = cmp.insn.operands[1 - cmp.value];
+            if (pointers == null || !isInductionVariable(cmp.var) || !isConstant(bound)) {
+                continue;
+            }
+            if (!ranges.containsKey(cmp.var)) {
+                ranges.put(cmp.var, findRange(loops, loop, preheader, cmp.var));
+            }
+            long[] range = ranges.get(cmp.var);
+            if (range == null) {
+                continue;
+            }
+            for (Map.Entry<Object, ILOCOperand> e : pointers.entrySet()) {
+                if (!(e.getKey() instanceof Integer) || (Integer)e.getKey() <= 0) {
+                    continue;
+                }
+                long scale = (Integer)e.getKey();
+                long limit = scale * constants.get(bound.id);
+                if (fits(scale * range[0]) && fits(scale * range[1]) && fits(limit)) {
+                    ILOCOperand reg = ILOCOperand.newVirtualReg();
+                    init.add(newInstruction(ILOCInstruction.Form.LOAD_I,
+                                ILOCOperand.newIntConstant((int)limit), reg));
+                    cmp.insn.operands[cmp.value] = e.getValue();
+                    cmp.insn.operands[1 - cmp.value] = reg;
+                    break;
+                }
+            }
+        }
+
+        // initialize the new registers at the end of the preheader
+        int pos = preheader.instructions.size();
+        if (pos > 0 && preheader.instructions.get(pos - 1).form ==
+                ILOCInstruction.Form.JUMP) {
+            pos--;
+        }
+        preheader.instructions.addAll(pos, init);
+
+        // drop copies that were forwarded to all of their uses, and then the
+        // updates of variables that are no longer needed
+        Map<Integer, Integer> reads = countReads(func);
+        for (Use copy : copies) {
+            if (!reads.containsKey(copy.insn.operands[1].id)) {
+                copy.block.instructions.remove(indexOf(copy.block, copy.insn));
+            }
+        }
+        for (Var v : scaled.keySet()) {
+            if (isDeadAfterReduction(func, loop, liveness, v)) {
+                for (Use update : updates.get(v)) {
+                    update.block.instructions.remove(indexOf(update.block, update.insn));
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the range of values that an induction variable has anywhere in a
+     * loop. It starts at a constant c, all of its updates move it in the
+     * same direction and run at most once per iteration (adding up to at
+     * most d), and the header's branch leaves the loop unless it is below a
+     * constant n (or above it, when counting down). Every iteration starts
+     * below n, so the variable stays within [c, max(c, n) + d].
+     * @return Lowest and highest value, or null if they are unknown or do
+     *         not fit in an int
+     */
+    private long[] findRange(ILOCLoops loops, ILOCLoops.Loop loop,
+            ILOCBasicBlock preheader, Var v)
+    {
+        long distance = 0;
+        int direction = 0;
+        for (Use update : updates.get(v)) {
+            int sign = Integer.signum(update.value);
+            if (sign == 0 || (direction != 0 && sign != direction) ||
+                    loops.getLoopFor(update.block) != loop) {
+                return null;
+            }
+            direction = sign;
+            distance += Math.abs((long)update.value);
+        }
+        Integer start = findInitialValue(preheader, v);
+        if (start == null) {
+            return null;
+        }
+
+        // the header's branch must test the variable against a constant
+        ILOCBasicBlock header = loop.header;
+        ILOCInstruction branch = header.instructions.get(header.instructions.size() - 1);
+        if (branch.form != ILOCInstruction.Form.CBR || header.targets.size() != 2 ||
+                loop.contains(header.targets.get(0)) == loop.contains(header.targets.get(1))) {
+            return null;
+        }
+        Use test = null;
+        for (Use cmp : compares) {
+            if (cmp.block == header && cmp.var.equals(v) &&
+                    cmp.insn.getWriteOperand().id == branch.operands[0].id) {
+                test = cmp;
+            }
+        }
+        if (test == null || !isConstant(test.insn.operands[1 - test.value])) {
+            return null;
+        }
+        for (int i = indexOf(header, test.insn) + 1; i < header.instructions.size(); i++) {
+            for (ILOCOperand op : header.instructions.get(i).getWriteOperands()) {
+                if (op.id == branch.operands[0].id) {
+                    return null;
+                }
+            }
+        }
+
+        // normalize the test to "continue while v REL n"
+        ILOCInstruction.Form relation = test.insn.form;
+        if (test.value == 1) {
+            relation = swap(relation);
+        }
+        if (!loop.contains(header.targets.get(0))) {
+            relation = negate(relation);
+        }
+        long limit = constants.get(test.insn.operands[1 - test.value].id);
+        long[] range;
+        if (direction > 0 && relation == ILOCInstruction.Form.CMP_LT) {
+            range = new long[] { start, Math.max(start, limit - 1) + distance };
+        } else if (direction > 0 && relation == ILOCInstruction.Form.CMP_LE) {
+            range = new long[] { start, Math.max(start, limit) + distance };
+        } else if (direction < 0 && relation == ILOCInstruction.Form.CMP_GT) {
+            range = new long[] { Math.min(start, limit + 1) - distance, start };
+        } else if (direction < 0 && relation == ILOCInstruction.Form.CMP_GE) {
+            range = new long[] { Math.min(start, limit) - distance, start };
+        } else {
+            return null;
+        }
+        return (fits(range[0]) && fits(range[1]) ? range : null);
+    }
+
+    /**
+     * Find the constant that a variable holds on entry to a loop by following
+     * the (single) path into the preheader backwards
+     */
+    private Integer findInitialValue(ILOCBasicBlock preheader, Var v)
+    {
+        Set<ILOCBasicBlock> seen = new HashSet<ILOCBasicBlock>();
+        ILOCBasicBlock b = preheader;
+        while (b != null && seen.add(b)) {
+            for (int i = b.instructions.size() - 1; i >= 0; i--) {
+                ILOCInstruction insn = b.instructions.get(i);
+                ILOCOperand[] ops = insn.operands;
+                if (v.slot) {
+                    if (insn.form == ILOCInstruction.Form.STORE_AI &&
+                            ops[1].type == ILOCOperand.Type.BASE_REG &&
+                            ops[2].intConstant == v.key) {
+                        return (isConstant(ops[0]) ? constants.get(ops[0].id) : null);
+                    }
+                    if ((insn.form == ILOCInstruction.Form.STORE ||
+                                insn.form == ILOCInstruction.Form.STORE_AO) &&
+                            ops[1].type == ILOCOperand.Type.BASE_REG) {
+                        return null;
+                    }
+                    continue;
+                }
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    if (ILOCRegisterIndex.isVirtual(op) && op.id == v.key) {
+                        if (insn.form == ILOCInstruction.Form.LOAD_I) {
+                            return ops[0].intConstant;
+                        }
+                        return (insn.form == ILOCInstruction.Form.I2I && isConstant(ops[0]) ?
+                                constants.get(ops[0].id) : null);
+                    }
+                }
+            }
+            b = (b.sources.size() == 1 ? b.sources.get(0) : null);
+        }
+        return null;
+    }
+
+    private static boolean fits(long value)
+    {
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the comparison with its operands swapped
+     */
+    private static ILOCInstruction.Form swap(ILOCInstruction.Form relation)
+    {
+        switch (relation) {
+        case CMP_LT:    return ILOCInstruction.Form.CMP_GT;
+        case CMP_LE:    return ILOCInstruction.Form.CMP_GE;
+        case CMP_GT:    return ILOCInstruction.Form.CMP_LT;
+        case CMP_GE:    return ILOCInstruction.Form.CMP_LE;
+        default:        return relation;
+        }
+    }
+
+    /**
+     * Returns the negated comparison
+     */
+    private static ILOCInstruction.Form negate(ILOCInstruction.Form relation)
+    {
+        switch (relation) {
+        case CMP_LT:    return ILOCInstruction.Form.CMP_GE;
+        case CMP_LE:    return ILOCInstruction.Form.CMP_GT;
+        case CMP_GT:    return ILOCInstruction.Form.CMP_LE;
+        case CMP_GE:    return ILOCInstruction.Form.CMP_LT;
+        case CMP_EQ:    return ILOCInstruction.Form.CMP_NE;
+        case CMP_NE:    return ILOCInstruction.Form.CMP_EQ;
+        default:        return relation;
+        }
+    }
+
+    /**
+     * Find updates, multiplications, and comparisons of candidate variables
+     */
+    private void scan(List<ILOCBasicBlock> body)
+    {
+        defs = new int[registers.size()];
+        updates = new HashMap<Var, List<Use>>();
+        varying = new HashSet<Var>();
+        unknownSlotWrites = false;
+        products = new ArrayList<Use>();
+        compares = new ArrayList<Use>();
+        for (ILOCBasicBlock b : body) {
+            for (ILOCInstruction insn : b.instructions) {
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    int r = registers.indexOf(op);
+                    if (r >= 0) {
+                        defs[r]++;
+                    }
+                }
+            }
+        }
+
+        for (ILOCBasicBlock b : body) {
+            symbols = new HashMap<Integer, Affine>();
+            versions = new HashMap<Var, Integer>();
+            for (ILOCInstruction insn : b.instructions) {
+                ILOCOperand[] ops = insn.operands;
+
+                // uses (operands are read before the result is written)
+                switch (insn.form) {
+                case MULT_I:
+                    recordProduct(b, insn, ops[0], ops[1].intConstant);
+                    break;
+                case MULT:
+                    if (isConstant(ops[1])) {
+                        recordProduct(b, insn, ops[0], constants.get(ops[1].id));
+                    } else if (isConstant(ops[0])) {
+                        recordProduct(b, insn, ops[1], constants.get(ops[0].id));
+                    } else if (isInvariant(ops[1])) {
+                        recordProduct(b, insn, ops[0], ops[1]);
+                    } else if (isInvariant(ops[0])) {
+                        recordProduct(b, insn, ops[1], ops[0]);
+                    }
+                    break;
+                case CMP_LT:
+                case CMP_LE:
+                case CMP_EQ:
+                case CMP_NE:
+                case CMP_GE:
+                case CMP_GT:
+                    for (int i = 0; i <= 1; i++) {
+                        Affine a = valueOf(ops[i]);
+                        if (a != null && a.offset == 0 && isInvariant(ops[1 - i])) {
+                            compares.add(new Use(b, insn, a.var, i, 0));
+                            break;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+                }
+
+                // writes to stack slots
+                switch (insn.form) {
+                case STORE:
+                case STORE_AO:
+                    if (ops[1].type == ILOCOperand.Type.BASE_REG) {
+                        unknownSlotWrites = true;
+                    }
+                    break;
+                case STORE_AI:
+                    if (ops[1].type == ILOCOperand.Type.BASE_REG) {
+                        write(b, insn, new Var(true, ops[2].intConstant, null), valueOf(ops[0]));
+                    }
+                    break;
+                default:
+                    break;
+                }
+
+                // writes to registers
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    if (op.type == ILOCOperand.Type.BASE_REG) {
+                        unknownSlotWrites = true;
+                    } else if (ILOCRegisterIndex.isVirtual(op)) {
+                        Affine value = evaluate(insn);
+                        Var v = new Var(false, op.id, op);
+                        if (value != null && value.var.equals(v)) {
+                            write(b, insn, v, value);
+                            symbols.remove(op.id);
+                        } else {
+                            write(b, insn, v, null);
+                            if (value != null) {
+                                symbols.put(op.id, value);
+                            } else {
+                                symbols.remove(op.id);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Record a write to a variable, which is an update if the new value is
+     * the variable's current value plus a constant
+     */
+    private void write(ILOCBasicBlock b, ILOCInstruction insn, Var v, Affine value)
+    {
+        if (value != null && value.var.equals(v)) {
+            if (!updates.containsKey(v)) {
+                updates.put(v, new ArrayList<Use>());
+            }
+            updates.get(v).add(new Use(b, insn, v, value.offset, 0));
+        } else {
+            varying.add(v);
+        }
+        versions.put(v, version(v) + 1);
+    }
+
+    private void recordProduct(ILOCBasicBlock b, ILOCInstruction insn,
+            ILOCOperand op, int scale)
+    {
+        Affine a = valueOf(op);
+        if (a != null && ILOCRegisterIndex.isVirtual(insn.getWriteOperand())) {
+            products.add(new Use(b, insn, a.var, scale, a.offset));
+        }
+    }
+
+    private void recordProduct(ILOCBasicBlock b, ILOCInstruction insn,
+            ILOCOperand op, ILOCOperand factor)
+    {
+        Affine a = valueOf(op);
+        if (a != null && a.offset == 0 &&
+                ILOCRegisterIndex.isVirtual(insn.getWriteOperand())) {
+            Use product = new Use(b, insn, a.var, 0, 0);
+            product.factor = factor;
+            products.add(product);
+        }
+    }
+
+    /**
+     * Returns the symbolic value of an instruction's result (if it is a
+     * variable plus a constant)
+     */
+    private Affine evaluate(ILOCInstruction insn)
+    {
+        ILOCOperand[] ops = insn.operands;
+        switch (insn.form) {
+        case LOAD_AI:
+            if (ops[0].type == ILOCOperand.Type.BASE_REG) {
+                Var v = new Var(true, ops[1].intConstant, null);
+                return new Affine(v, version(v), 0);
+            }
+            return null;
+        case I2I:
+            return valueOf(ops[0]);
+        case ADD_I:
+            return plus(valueOf(ops[0]), ops[1].intConstant);
+        case ADD:
+            if (isConstant(ops[1])) {
+                return plus(valueOf(ops[0]), constants.get(ops[1].id));
+            } else if (isConstant(ops[0])) {
+                return plus(valueOf(ops[1]), constants.get(ops[0].id));
+            }
+            return null;
+        case SUB:
+            if (isConstant(ops[1])) {
+                return plus(valueOf(ops[0]), -constants.get(ops[1].id));
+            }
+            return null;
+        default:
+            return null;
+        }
+    }
+
+    private static Affine plus(Affine a, int c)
+    {
+        return (a == null ? null : new Affine(a.var, a.version, a.offset + c));
+    }
+
+    /**
+     * Returns the current symbolic value of a register operand: either what
+     * it was computed from (if that variable has not changed since), or the
+     * register itself
+     */
+    private Affine valueOf(ILOCOperand op)
+    {
+        if (!ILOCRegisterIndex.isVirtual(op)) {
+            return null;
+        }
+        Affine a = symbols.get(op.id);
+        if (a != null && a.version == version(a.var)) {
+            return a;
+        }
+        Var v = new Var(false, op.id, op);
+        return new Affine(v, version(v), 0);
+    }
+
+    private int version(Var v)
+    {
+        Integer ver = versions.get(v);
+        return (ver == null ? 0 : ver);
+    }
+
+    private boolean isConstant(ILOCOperand op)
+    {
+        return ILOCRegisterIndex.isVirtual(op) && constants.containsKey(op.id);
+    }
+
+    private boolean isInvariant(ILOCOperand op)
+    {
+        int r = registers.indexOf(op);
+        return r >= 0 && defs[r] == 0;
+    }
+
+    private boolean isInductionVariable(Var v)
+    {
+        return updates.containsKey(v) && !varying.contains(v) &&
+            !(v.slot && unknownSlotWrites);
+    }
+
+    /**
+     * Build the preheader code that initializes p = s*v
+     */
+    private static List<ILOCInstruction> initialize(Use product, ILOCOperand p)
+    {
+        List<ILOCInstruction> code = new ArrayList<ILOCInstruction>();
+        Var v = product.var;
+        ILOCOperand value = v.reg;
+        if (v.slot) {
+            value = ILOCOperand.newVirtualReg();
+            code.add(newInstruction(ILOCInstruction.Form.LOAD_AI, ILOCOperand.REG_BP,
+                        ILOCOperand.newIntConstant(v.key), value));
+        }
+        if (product.factor == null) {
+            code.add(newInstruction(ILOCInstruction.Form.MULT_I, value,
+                        ILOCOperand.newIntConstant(product.value), p));
+        } else {
+            code.add(newInstruction(ILOCInstruction.Form.MULT, value,
+                        product.factor, p));
+        }
+        return code;
+    }
+
+    /**
+     * Build the update p += s*c that follows an update i += c (computing s*c
+     * in the preheader if s is a register)
+     */
+    private static ILOCInstruction increment(Use product, int step, ILOCOperand p,
+            List<ILOCInstruction> init)
+    {
+        if (product.factor == null) {
+            return newInstruction(ILOCInstruction.Form.ADD_I, p,
+                    ILOCOperand.newIntConstant(product.value * step), p);
+        }
+        ILOCOperand amount = product.factor;
+        if (step != 1) {
+            amount = ILOCOperand.newVirtualReg();
+            init.add(newInstruction(ILOCInstruction.Form.MULT_I, product.factor,
+                        ILOCOperand.newIntConstant(step), amount));
+        }
+        return newInstruction(ILOCInstruction.Form.ADD, p, amount, p);
+    }
+
+    /**
+     * Replace reads of a copy's destination with its source in the rest of
+     * the block (until either register is written)
+     */
+    private static void forwardCopy(ILOCBasicBlock b, ILOCInstruction copy)
+    {
+        ILOCOperand src = copy.operands[0];
+        ILOCOperand dst = copy.operands[1];
+        for (int i = indexOf(b, copy) + 1; i < b.instructions.size(); i++) {
+            ILOCInstruction insn = b.instructions.get(i);
+            int numReads = insn.getReadOperands().size();
+            for (int j = 0; j < numReads; j++) {
+                if (ILOCRegisterIndex.isVirtual(insn.operands[j]) &&
+                        insn.operands[j].id == dst.id) {
+                    insn.operands[j] = src;
+                }
+            }
+            for (ILOCOperand op : insn.getWriteOperands()) {
+                if (ILOCRegisterIndex.isVirtual(op) &&
+                        (op.id == src.id || op.id == dst.id)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether the updates of a variable can be removed after its
+     * multiplications and comparisons were replaced: every value loaded from
+     * it in the loop may only feed its own updates, and it must not be read
+     * after the loop
+     */
+    private boolean isDeadAfterReduction(ILOCFunction func, ILOCLoops.Loop loop,
+            ILOCLiveness liveness, Var v)
+    {
+        Set<ILOCInstruction> updateInsns = Collections.newSetFromMap(
+                new IdentityHashMap<ILOCInstruction, Boolean>());
+        for (Use update : updates.get(v)) {
+            updateInsns.add(update.insn);
+        }
+
+        if (!v.slot) {
+            for (ILOCBasicBlock b : func.allBlocks) {
+                if (!loop.contains(b)) {
+                    continue;
+                }
+                for (ILOCBasicBlock s : b.targets) {
+                    int r = registers.indexOf(v.reg);
+                    if (!loop.contains(s) && liveness.getLiveIn(s).get(r)) {
+                        return false;
+                    }
+                }
+                for (ILOCInstruction insn : b.instructions) {
+                    if (!updateInsns.contains(insn) && readsRegister(insn, v.key)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        // the slot must be dead on every exit of the loop, and every use of
+        // a value loaded from it in the loop must be an update of the slot
+        // (possibly through an intermediate addI or add)
+        Set<Integer> loaded = new HashSet<Integer>();
+        Deque<ILOCBasicBlock> worklist = new ArrayDeque<ILOCBasicBlock>();
+        for (ILOCBasicBlock b : func.allBlocks) {
+            for (ILOCInstruction insn : b.instructions) {
+                if (insn.form == ILOCInstruction.Form.LOAD_AO &&
+                        insn.operands[0].type == ILOCOperand.Type.BASE_REG) {
+                    return false;
+                }
+                if (loop.contains(b) && readsSlot(insn, v.key)) {
+                    loaded.add(insn.operands[2].id);
+                }
+            }
+            if (loop.contains(b)) {
+                for (ILOCBasicBlock s : b.targets) {
+                    if (!loop.contains(s)) {
+                        worklist.add(s);
+                    }
+                }
+            }
+        }
+        if (!isSlotDead(func, worklist, v.key)) {
+            return false;
+        }
+        Set<Integer> allowed = new HashSet<Integer>(loaded);
+        for (Use update : updates.get(v)) {
+            ILOCOperand stored = update.insn.operands[0];
+            allowed.add(stored.id);
+        }
+        for (ILOCBasicBlock b : func.allBlocks) {
+            for (ILOCInstruction insn : b.instructions) {
+                int numReads = insn.getReadOperands().size();
+                for (int j = 0; j < numReads; j++) {
+                    ILOCOperand op = insn.operands[j];
+                    if (!ILOCRegisterIndex.isVirtual(op) || !allowed.contains(op.id)) {
+                        continue;
+                    }
+                    if (updateInsns.contains(insn)) {
+                        continue;
+                    }
+                    // an intermediate step of an update (e.g., addI)
+                    List<ILOCOperand> writes = insn.getWriteOperands();
+                    if (writes.size() == 1 && ILOCRegisterIndex.isVirtual(writes.get(0)) &&
+                            allowed.contains(writes.get(0).id) &&
+                            !loaded.contains(writes.get(0).id)) {
+                        continue;
+                    }
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a stack slot is overwritten before it is read on every
+     * path from a set of blocks (a search that stops at stores to the slot)
+     */
+    private static boolean isSlotDead(ILOCFunction func, Deque<ILOCBasicBlock> worklist,
+            int offset)
+    {
+        BitSet visited = new BitSet(func.allBlocks.size());
+        while (!worklist.isEmpty()) {
+            ILOCBasicBlock b = worklist.poll();
+            if (visited.get(b.index)) {
+                continue;
+            }
+            visited.set(b.index);
+            boolean stored = false;
+            for (ILOCInstruction insn : b.instructions) {
+                if (readsSlot(insn, offset)) {
+                    return false;
+                }
+                if (insn.form == ILOCInstruction.Form.STORE_AI &&
+                        insn.operands[1].type == ILOCOperand.Type.BASE_REG &&
+                        insn.operands[2].intConstant == offset) {
+                    stored = true;
+                    break;
+                }
+            }
+            if (!stored) {
+                worklist.addAll(b.targets);
+            }
+        }
+        return true;
+    }
+
+    private static boolean readsSlot(ILOCInstruction insn, int offset)
+    {
+        return insn.form == ILOCInstruction.Form.LOAD_AI &&
+            insn.operands[0].type == ILOCOperand.Type.BASE_REG &&
+            insn.operands[1].intConstant == offset;
+    }
+
+    private static boolean readsRegister(ILOCInstruction insn, int id)
+    {
+        for (ILOCOperand op : insn.getReadOperands()) {
+            if (ILOCRegisterIndex.isVirtual(op) && op.id == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Count the reads of every virtual register in a function
+     */
+    private static Map<Integer, Integer> countReads(ILOCFunction func)
+    {
+        Map<Integer, Integer> reads = new HashMap<Integer, Integer>();
+        for (ILOCBasicBlock b : func.allBlocks) {
+            for (ILOCInstruction insn : b.instructions) {
+                for (ILOCOperand op : insn.getReadOperands()) {
+                    if (ILOCRegisterIndex.isVirtual(op)) {
+                        Integer n = reads.get(op.id);
+                        reads.put(op.id, (n == null ? 1 : n + 1));
+                    }
+                }
+            }
+        }
+        return reads;
+    }
+
+    private static int indexOf(ILOCBasicBlock b, ILOCInstruction insn)
+    {
+        for (int i = 0; i < b.instructions.size(); i++) {
+            if (b.instructions.get(i) == insn) {
+                return i;
+            }
+        }
+        assert(false);
+        return -1;
+    }
+
+    private static void insertAfter(ILOCBasicBlock b, ILOCInstruction insn,
+            ILOCInstruction next)
+    {
+        b.instructions.add(indexOf(b, insn) + 1, next);
+    }
+
+    private static void replace(ILOCBasicBlock b, ILOCInstruction insn,
+            ILOCInstruction replacement)
+    {
+        replacement.variableName = insn.variableName;
+        b.instructions.set(indexOf(b, insn), replacement);
+    }
+
+    private static ILOCInstruction newInstruction(ILOCInstruction.Form form,
+            ILOCOperand... ops)
+    {
+        return new ILOCInstruction(form, ops);
+    }
+}
@@ -0,0 +1,131 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Loop rotation. {@link MyILOCGenerator} compiles a while loop to a header
+ * that evaluates the guard and branches into the body or out of the loop,
+ * followed by the body, which ends with a jump back to the header. Every
+ * iteration thus executes a {@code cbr} and a {@code jump}. This pass
+ * replaces the jump at the end of each latch with a copy of the header's
+ * code (including its {@code cbr}), turning the loop into a do-while loop
+ * guarded by the original header, which is now only executed on entry:
+ *
+ * <pre>
+ *   H: guard; cbr c => B, X          H: guard; cbr c => B, X
+ *   B: body; jump H          ==>     B: body; guard; cbr c => B, X
+ *   X: ...                           X: ...
+ * </pre>
+ *
+ * Executing the header's code at the end of the latch is exactly what the
+ * jump did, so the transformation is always safe; it only changes the
+ * instruction count. Headers with more than {@link #MAX_HEADER_SIZE}
+ * instructions or containing calls are not copied, and neither are headers
+ * with phi-nodes (which depend on the predecessor). Since later passes
+ * expect while loops in their original shape (see {@link UnrollLoops}), this
+ * pass should run after the other loop optimizations.
+ */
+public class RotateLoops extends ILOCManagedPass
+{
+    /**
+     * Maximum number of instructions in a header that is copied
+     */
+    public static final int MAX_HEADER_SIZE = 10;
+
+    private int rotated;
+
+    public RotateLoops()
+    {
+        this.rotated = 0;
+    }
+
+    public Set<ILOCAnalysisManager.Analysis> getPreservedAnalyses()
+    {
+        return ILOCAnalysisManager.NONE;
+    }
+
+    /**
+     * Returns the number of back edges rotated so far
+     * @return Number of latches that received a copy of their header
+     */
+    public int getRotatedCount()
+    {
+        return rotated;
+    }
+
+    protected void transform(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            if (func.getInstructions().isEmpty()) {
+                continue;
+            }
+            boolean changed = false;
+            for (ILOCLoops.Loop loop : analyses.getLoops(func).getLoops()) {
+                if (!canCopy(loop.header)) {
+                    continue;
+                }
+                ILOCOperand label = loop.header.instructions.get(0).operands[0];
+                for (ILOCBasicBlock latch : loop.latches) {
+                    changed |= rotate(latch, loop.header, label);
+                }
+            }
+            if (changed) {
+                func.updateInstructionsFromCFG();
+                analyses.invalidate(func);
+            }
+        }
+    }
+
+    /**
+     * Replace the jump back to the header at the end of a latch with a copy
+     * of the header's code
+     * @return True if the latch was changed
+     */
+    private boolean rotate(ILOCBasicBlock latch, ILOCBasicBlock header, ILOCOperand label)
+    {
+        List<ILOCInstruction> code = latch.instructions;
+        ILOCInstruction last = code.get(code.size() - 1);
+        if (last.form != ILOCInstruction.Form.JUMP || last.operands[0].id != label.id) {
+            return false;
+        }
+        code.remove(code.size() - 1);
+        for (int i = 1; i < header.instructions.size(); i++) {
+            ILOCInstruction insn = header.instructions.get(i);
+            try {
+                code.add((ILOCInstruction)insn.clone());
+            } catch (CloneNotSupportedException ex) {
+                throw new AssertionError(ex);
+            }
+        }
+        rotated++;
+        return true;
+    }
+
+    /**
+     * Checks whether a loop header can be copied to the end of its latches
+     */
+    private static boolean canCopy(ILOCBasicBlock header)
+    {
+        List<ILOCInstruction> code = header.instructions;
+        if (code.isEmpty() || code.get(0).form != ILOCInstruction.Form.LABEL ||
+                !code.get(code.size() - 1).isConditionalBranch() ||
+                code.size() - 1 > MAX_HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 1; i < code.size(); i++) {
+            switch (code.get(i).form) {
+            case LABEL:
+            case PHI:
+            case CALL:
+            case PUSH:
+            case POP:
+            case RETURN:
+            case JUMP:
+                return false;
+            default:
+                break;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,204 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Control flow graph simplification. Cleans up the label-only blocks, jumps
+ * to jumps, and dead code after returns that {@link MyILOCGenerator} leaves
+ * behind (and that other passes create by removing instructions):
+ *
+ * <ul>
+ * <li>Jump threading: every branch to a block that contains nothing but a
+ * label and a jump (or that only falls through) is redirected to the final
+ * target of the chain.</li>
+ * <li>A {@code cbr} whose two targets are the same becomes a {@code jump}.</li>
+ * <li>A block with a single successor is merged with that successor if it
+ * is the successor's only (reachable) predecessor.</li>
+ * <li>Blocks that are unreachable from the entry are removed.</li>
+ * </ul>
+ *
+ * The instructions are then rebuilt from the CFG with
+ * {@link ILOCFunction#flattenCFG}. The label of the entry block is never
+ * removed, since it may be the target of tail calls from other functions.
+ */
+public class SimplifyCFG implements ILOCProcessor
+{
+    public SimplifyCFG()
+    {
+    }
+
+    public void process(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            if (!func.getInstructions().isEmpty()) {
+                simplify(func);
+            }
+        }
+    }
+
+    /**
+     * Simplify the CFG of a single function
+     * @param func Function to transform
+     */
+    private static void simplify(ILOCFunction func)
+    {
+        func.buildCFG();
+        threadJumps(func);
+        func.buildCFG();
+        mergeBlocks(func, findReachable(func));
+        func.flattenCFG();
+    }
+
+    /**
+     * Redirect all branches past empty blocks, and fold conditional
+     * branches whose targets are the same
+     */
+    private static void threadJumps(ILOCFunction func)
+    {
+        for (ILOCBasicBlock b : func.allBlocks) {
+            if (b.instructions.isEmpty()) {
+                continue;
+            }
+            int last = b.instructions.size() - 1;
+            ILOCInstruction insn = b.instructions.get(last);
+            if (insn.form == ILOCInstruction.Form.JUMP && b.targets.size() == 1) {
+                ILOCBasicBlock target = forward(func, b.targets.get(0));
+                insn.operands[0] = labelOf(target, insn.operands[0]);
+            } else if (insn.isConditionalBranch()) {
+                int n = insn.operands.length;
+                ILOCBasicBlock ifTrue = forward(func, b.targets.get(0));
+                ILOCBasicBlock ifFalse = forward(func, b.targets.get(1));
+                if (ifTrue == ifFalse) {
+                    b.instructions.set(last, new ILOCInstruction(ILOCInstruction.Form.JUMP,
+                                new ILOCOperand[] { labelOf(ifTrue, insn.operands[n - 2]) },
+                                insn.comment));
+                } else {
+                    insn.operands[n - 2] = labelOf(ifTrue, insn.operands[n - 2]);
+                    insn.operands[n - 1] = labelOf(ifFalse, insn.operands[n - 1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Follow a chain of empty blocks (at most once around a cycle)
+     * @return The first block on the chain that does something
+     */
+    private static ILOCBasicBlock forward(ILOCFunction func, ILOCBasicBlock b)
+    {
+        for (int steps = 0; steps < func.allBlocks.size(); steps++) {
+            ILOCBasicBlock next = emptySuccessor(func, b);
+            if (next == null) {
+                break;
+            }
+            b = next;
+        }
+        return b;
+    }
+
+    /**
+     * Returns the only successor of a block that contains nothing but a
+     * label and possibly a jump, or null if the block does anything else
+     */
+    private static ILOCBasicBlock emptySuccessor(ILOCFunction func, ILOCBasicBlock b)
+    {
+        if (b == func.entryBlock || b.targets.size() != 1) {
+            return null;
+        }
+        for (ILOCInstruction insn : b.instructions) {
+            if (insn.form != ILOCInstruction.Form.LABEL &&
+                    insn.form != ILOCInstruction.Form.NOP &&
+                    insn.form != ILOCInstruction.Form.JUMP) {
+                return null;
+            }
+        }
+        return b.targets.get(0);
+    }
+
+    /**
+     * Returns an operand for the label at the start of a block (or the
+     * original operand if it already refers to that label)
+     */
+    private static ILOCOperand labelOf(ILOCBasicBlock b, ILOCOperand original)
+    {
+        ILOCInstruction first = b.instructions.get(0);
+        assert(first.form == ILOCInstruction.Form.LABEL);
+        if (first.operands[0].id == original.id) {
+            return original;
+        }
+        return ILOCOperand.newJumpLabel(first.operands[0].id);
+    }
+
+    /**
+     * Find the blocks that are reachable from the entry
+     * @return Set of reachable blocks (by index)
+     */
+    private static BitSet findReachable(ILOCFunction func)
+    {
+        BitSet reachable = new BitSet(func.allBlocks.size());
+        Deque<ILOCBasicBlock> stack = new ArrayDeque<ILOCBasicBlock>();
+        stack.push(func.entryBlock);
+        reachable.set(func.entryBlock.index);
+        while (!stack.isEmpty()) {
+            for (ILOCBasicBlock s : stack.pop().targets) {
+                if (!reachable.get(s.index)) {
+                    reachable.set(s.index);
+                    stack.push(s);
+                }
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Append each block to its single predecessor if that predecessor has no
+     * other successor (updating the CFG edges)
+     */
+    private static void mergeBlocks(ILOCFunction func, BitSet reachable)
+    {
+        for (ILOCBasicBlock a : func.allBlocks) {
+            if (!reachable.get(a.index)) {
+                continue;
+            }
+            while (a.targets.size() == 1) {
+                ILOCBasicBlock b = a.targets.get(0);
+                if (b == a || b == func.entryBlock || countReachable(b.sources, reachable) != 1) {
+                    break;
+                }
+                List<ILOCInstruction> code = a.instructions;
+                if (!code.isEmpty()) {
+                    ILOCInstruction last = code.get(code.size() - 1);
+                    if (last.isConditionalBranch()) {
+                        break;
+                    } else if (last.form == ILOCInstruction.Form.JUMP) {
+                        code.remove(code.size() - 1);
+                    }
+                }
+                for (ILOCInstruction insn : b.instructions) {
+                    if (insn.form != ILOCInstruction.Form.LABEL) {
+                        code.add(insn);
+                    }
+                }
+                a.targets = b.targets;
+                for (ILOCBasicBlock t : b.targets) {
+                    Collections.replaceAll(t.sources, b, a);
+                }
+                b.instructions = new ArrayList<ILOCInstruction>();
+                b.sources = new ArrayList<ILOCBasicBlock>();
+                b.targets = new ArrayList<ILOCBasicBlock>();
+                reachable.clear(b.index);
+            }
+        }
+    }
+
+    private static int countReachable(List<ILOCBasicBlock> blocks, BitSet reachable)
+    {
+        int count = 0;
+        for (ILOCBasicBlock b : blocks) {
+            if (reachable.get(b.index)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,672 @@
+package edu.jmu.decaf;
+
+import java.util.*;
+
+/**
+ * Loop unrolling for counted loops. {@link MyILOCGenerator} compiles a while
+ * loop to a header that evaluates the condition and branches into the body
+ * or out of the loop, followed by the body, which jumps back to the header.
+ * This pass recognizes innermost loops of that shape that are counted by a
+ * basic induction variable i: the header only computes {@code i < n} (or
+ * {@code <=}, {@code >}, {@code >=}) for a loop-invariant n and branches on
+ * it (or uses a fused compare-and-branch such as {@code cbr_LT}), the only
+ * exit is from the header, and i is only changed by a single
+ * addition of a constant s in the block that jumps back to the header.
+ *
+ * Such a loop is unrolled by a factor of k (see {@link #UnrollLoops(int)})
+ * by placing k copies of the body in front of it, which jump from one copy to
+ * the next without testing the condition. A new header guards the copies
+ * with {@code i + (k-1)*s < n}, which holds exactly if the next k iterations
+ * all run; otherwise, it branches to the original loop, which runs the
+ * remaining iterations. So that nothing overflows, the guard compares i
+ * with {@code n - (k-1)*s} instead. That is a constant if n is one;
+ * otherwise, it is computed once before entering the loop, which goes
+ * straight to the original loop if n is within (k-1)*s of the end of the
+ * int range (e.g., {@code n < MIN_VALUE + (k-1)*s} when counting up). If the
+ * initial value of i and n are constants and the loop runs at most
+ * {@link #MAX_FULL_UNROLL} times, it is replaced by straight-line copies of
+ * its body instead.
+ *
+ * The header must not compute anything (other than the branch condition)
+ * that is used after it, since it is skipped by the unrolled code. Both the
+ * number of copies and the size of the unrolled code are limited by
+ * {@link #MAX_UNROLLED_SIZE}. Jumps between the copies are left for
+ * {@link SimplifyCFG}, which merges the copies into larger blocks.
+ */
+public class UnrollLoops extends ILOCManagedPass
+{
+    /**
+     * Default unrolling factor
+     */
+    public static final int DEFAULT_FACTOR = 4;
+
+    /**
+     * Maximum number of iterations of loops that are unrolled completely
+     */
+    public static final int MAX_FULL_UNROLL = 8;
+
+    /**
+     * Maximum number of instructions in all copies of a loop body
+     */
+    public static final int MAX_UNROLLED_SIZE = 120;
+
+    /**
+     * A recognized counted loop
+     */
+    private static class CountedLoop
+    {
+        ILOCBasicBlock header;
+        List<ILOCBasicBlock> body;
+        ILOCOperand headerLabel;
+        ILOCOperand bodyLabel;      // target of the header's branch into the body
+        ILOCOperand exitLabel;      // target of the header's branch out of the loop
+        ILOCOperand iv;
+        int step;
+        ILOCInstruction.Form relation;      // continue while iv REL limit
+        ILOCOperand limit;
+        Integer limitValue;
+        int size;
+    }
+
+    private int factor;
+    private int unrolled;
+
+    /**
+     * Unroll loops by the default factor
+     */
+    public UnrollLoops()
+    {
+        this(DEFAULT_FACTOR);
+    }
+
+    /**
+     * Unroll loops by the given factor
+     * @param factor Number of copies of the body per iteration of the
+     *        unrolled loop (at least 2)
+     */
+    public UnrollLoops(int factor)
+    {
+        assert(factor >= 2);
+        this.factor = factor;
+        this.unrolled = 0;
+    }
+
+    public Set<ILOCAnalysisManager.Analysis> getPreservedAnalyses()
+    {
+        return ILOCAnalysisManager.NONE;
+    }
+
+    /**
+     * Returns the number of loops unrolled (partially or completely) so far
+     * @return Number of unrolled loops
+     */
+    public int getUnrolledCount()
+    {
+        return unrolled;
+    }
+
+    protected void transform(ILOCProgram program)
+    {
+        for (ILOCFunction func : program.functions) {
+            if (analyses.getLoops(func).getLoops().isEmpty()) {
+                continue;
+            }
+
+            // unroll one loop at a time (each changes the CFG), never looking
+            // at the same header twice
+            Set<Integer> visited = new HashSet<Integer>();
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                ILOCLoops loops = analyses.getLoops(func);
+                for (ILOCLoops.Loop loop : loops.getLoops()) {
+                    ILOCInstruction first = loop.header.instructions.get(0);
+                    if (!loop.children.isEmpty() || first.form != ILOCInstruction.Form.LABEL ||
+                            !visited.add(first.operands[0].id)) {
+                        continue;
+                    }
+                    CountedLoop counted = recognize(func, loop);
+                    if (counted != null && unroll(func, counted, visited)) {
+                        analyses.invalidate(func);
+                        unrolled++;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the instructions of a block, followed by an explicit jump if the
+     * block falls through to the next one (so that it can be moved around
+     * freely)
+     */
+    private static List<ILOCInstruction> withExplicitJump(ILOCBasicBlock b)
+    {
+        List<ILOCInstruction> code = b.instructions;
+        ILOCInstruction last = (code.isEmpty() ? null : code.get(code.size() - 1));
+        if (b.targets.size() == 1 && (last == null ||
+                    (last.form != ILOCInstruction.Form.JUMP && !last.isConditionalBranch()))) {
+            ILOCInstruction target = b.targets.get(0).instructions.get(0);
+            assert(target.form == ILOCInstruction.Form.LABEL);
+            code = new ArrayList<ILOCInstruction>(code);
+            code.add(new ILOCInstruction(ILOCInstruction.Form.JUMP,
+                        new ILOCOperand[] { ILOCOperand.newJumpLabel(target.operands[0].id) }));
+        }
+        return code;
+    }
+
+    /**
+     * Check whether a loop is a counted loop that can be unrolled
+     * @return Description of the loop, or null if it cannot be unrolled
+     */
+    private CountedLoop recognize(ILOCFunction func, ILOCLoops.Loop loop)
+    {
+        CountedLoop counted = new CountedLoop();
+        ILOCBasicBlock header = loop.header;
+        if (loop.latches.size() != 1 || header.targets.size() != 2) {
+            return null;
+        }
+        ILOCBasicBlock latch = loop.latches.get(0);
+        if (latch == header) {
+            return null;
+        }
+        counted.header = header;
+        counted.headerLabel = header.instructions.get(0).operands[0];
+
+        // the header's branch is the only exit
+        List<ILOCInstruction> code = header.instructions;
+        ILOCInstruction branch = code.get(code.size() - 1);
+        if (!branch.isConditionalBranch() ||
+                loop.contains(header.targets.get(0)) == loop.contains(header.targets.get(1))) {
+            return null;
+        }
+        boolean continueIfTrue = loop.contains(header.targets.get(0));
+        int n = branch.operands.length;
+        counted.bodyLabel = branch.operands[continueIfTrue ? n - 2 : n - 1];
+        counted.exitLabel = branch.operands[continueIfTrue ? n - 1 : n - 2];
+        counted.body = new ArrayList<ILOCBasicBlock>();
+        for (ILOCBasicBlock b : func.allBlocks) {
+            if (b == header || !loop.contains(b)) {
+                continue;
+            }
+            if (b.targets.isEmpty()) {
+                return null;
+            }
+            for (ILOCBasicBlock t : b.targets) {
+                if (!loop.contains(t)) {
+                    return null;
+                }
+            }
+            counted.body.add(b);
+            for (ILOCInstruction insn : b.instructions) {
+                if (insn.form == ILOCInstruction.Form.RETURN ||
+                        insn.form == ILOCInstruction.Form.PHI) {
+                    return null;
+                }
+                if (insn.form != ILOCInstruction.Form.LABEL) {
+                    counted.size++;
+                }
+            }
+        }
+
+        // the header only computes the condition
+        ILOCLiveness liveness = analyses.getLiveness(func);
+        ILOCRegisterIndex registers = liveness.getRegisterIndex();
+        boolean fused = (branch.form != ILOCInstruction.Form.CBR);
+        ILOCInstruction compare = null;
+        for (int i = 1; i < code.size() - 1; i++) {
+            ILOCInstruction insn = code.get(i);
+            if (!isPure(insn)) {
+                return null;
+            }
+            ILOCOperand dest = insn.getWriteOperand();
+            int r = registers.indexOf(dest);
+            if (r < 0 || liveness.getLiveOut(header).get(r)) {
+                return null;
+            }
+            if (!fused && dest.id == branch.operands[0].id) {
+                compare = insn;
+            } else if (compare != null && isReadBy(dest, compare)) {
+                return null;    // operand changes after the comparison
+            }
+        }
+        if (fused) {
+            compare = branch;   // compares its operands itself
+        }
+        if (compare == null) {
+            return null;
+        }
+        ILOCInstruction.Form relation = (fused ?
+                FuseCompareBranches.comparisonOf(branch.form) : compare.form);
+        if (swap(relation) == null) {
+            return null;
+        }
+
+        // one side of the comparison is the induction variable
+        Map<Integer, Integer> constants = HoistLoopInvariants.findConstants(func);
+        Map<Integer, Integer> defsInLoop = countDefinitions(func, loop);
+        for (int side = 0; side < 2 && counted.iv == null; side++) {
+            ILOCOperand iv = compare.operands[side];
+            ILOCOperand limit = compare.operands[1 - side];
+            if (!ILOCRegisterIndex.isVirtual(iv) || !ILOCRegisterIndex.isVirtual(limit) ||
+                    defsInLoop.containsKey(limit.id) && !constants.containsKey(limit.id)) {
+                continue;
+            }
+            Integer step = findStep(latch, iv, defsInLoop, constants);
+            if (step != null) {
+                counted.iv = iv;
+                counted.step = step;
+                counted.limit = limit;
+                counted.limitValue = constants.get(limit.id);
+                relation = (side == 0 ? relation : swap(relation));
+            }
+        }
+        if (counted.iv == null || relation == null) {
+            return null;
+        }
+        counted.relation = (continueIfTrue ? relation : negate(relation));
+        if (counted.step > 0 && counted.relation != ILOCInstruction.Form.CMP_LT &&
+                counted.relation != ILOCInstruction.Form.CMP_LE) {
+            return null;
+        }
+        if (counted.step < 0 && counted.relation != ILOCInstruction.Form.CMP_GT &&
+                counted.relation != ILOCInstruction.Form.CMP_GE) {
+            return null;
+        }
+        return counted;
+    }
+
+    /**
+     * Returns the step of a basic induction variable, which must be defined
+     * only once in the loop, by the latch ({@code iv + s => iv}, possibly
+     * through a temporary that is copied back), or null if it is not one
+     */
+    private static Integer findStep(ILOCBasicBlock latch, ILOCOperand iv,
+            Map<Integer, Integer> defsInLoop, Map<Integer, Integer> constants)
+    {
+        Integer count = defsInLoop.get(iv.id);
+        if (count == null || count != 1) {
+            return null;
+        }
+        Map<Integer, Integer> increments = new HashMap<Integer, Integer>();
+        for (ILOCInstruction insn : latch.instructions) {
+            Integer step = findIncrement(insn, iv, constants);
+            if (step != null) {
+                if (insn.getWriteOperand().id == iv.id) {
+                    return step;
+                }
+                increments.put(insn.getWriteOperand().id, step);
+                continue;
+            }
+            for (ILOCOperand op : insn.getWriteOperands()) {
+                if (insn.form == ILOCInstruction.Form.I2I && op.id == iv.id &&
+                        increments.containsKey(insn.operands[0].id)) {
+                    return increments.get(insn.operands[0].id);
+                }
+                increments.remove(op.id);
+                if (op.id == iv.id) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns c if an instruction computes {@code iv + c} for a constant c,
+     * or null otherwise
+     */
+    private static Integer findIncrement(ILOCInstruction insn, ILOCOperand iv,
+            Map<Integer, Integer> constants)
+    {
+        ILOCOperand[] ops = insn.operands;
+        switch (insn.form) {
+        case ADD_I:
+            return (isRegister(ops[0], iv) ? (Integer)ops[1].intConstant : null);
+        case ADD:
+            if (isRegister(ops[0], iv) && ILOCRegisterIndex.isVirtual(ops[1])) {
+                return constants.get(ops[1].id);
+            }
+            if (isRegister(ops[1], iv) && ILOCRegisterIndex.isVirtual(ops[0])) {
+                return constants.get(ops[0].id);
+            }
+            return null;
+        case SUB:
+            if (isRegister(ops[0], iv) && ILOCRegisterIndex.isVirtual(ops[1]) &&
+                    constants.containsKey(ops[1].id)) {
+                return -constants.get(ops[1].id);
+            }
+            return null;
+        default:
+            return null;
+        }
+    }
+
+    private static boolean isRegister(ILOCOperand op, ILOCOperand reg)
+    {
+        return ILOCRegisterIndex.isVirtual(op) && op.id == reg.id;
+    }
+
+    /**
+     * Count the definitions of every register in a loop
+     */
+    private static Map<Integer, Integer> countDefinitions(ILOCFunction func, ILOCLoops.Loop loop)
+    {
+        Map<Integer, Integer> defs = new HashMap<Integer, Integer>();
+        for (ILOCBasicBlock b : func.allBlocks) {
+            if (!loop.contains(b)) {
+                continue;
+            }
+            for (ILOCInstruction insn : b.instructions) {
+                for (ILOCOperand op : insn.getWriteOperands()) {
+                    if (ILOCRegisterIndex.isVirtual(op)) {
+                        Integer n = defs.get(op.id);
+                        defs.put(op.id, (n == null ? 1 : n + 1));
+                    }
+                }
+            }
+        }
+        return defs;
+    }
+
+    /**
+     * Unroll a counted loop (completely if possible)
+     * @param visited Header labels that should not be unrolled again
+     * @return True if the loop was changed
+     */
+    private boolean unroll(ILOCFunction func, CountedLoop loop, Set<Integer> visited)
+    {
+        Integer trips = countTrips(loop);
+        boolean full = (trips != null && trips <= MAX_FULL_UNROLL &&
+                trips * loop.size <= MAX_UNROLLED_SIZE);
+        int copies = (full ? trips : Math.min(factor, MAX_UNROLLED_SIZE / Math.max(1, loop.size)));
+        if (!full && copies < 2) {
+            return false;
+        }
+
+        // labels of the copies of the body
+        List<Map<Integer, ILOCOperand>> labels = new ArrayList<Map<Integer, ILOCOperand>>();
+        for (int c = 0; c < copies; c++) {
+            Map<Integer, ILOCOperand> map = new HashMap<Integer, ILOCOperand>();
+            for (ILOCBasicBlock b : loop.body) {
+                ILOCInstruction first = b.instructions.get(0);
+                if (first.form == ILOCInstruction.Form.LABEL) {
+                    map.put(first.operands[0].id, ILOCOperand.newAnonymousLabel());
+                }
+            }
+            labels.add(map);
+        }
+        ILOCOperand guard = ILOCOperand.newAnonymousLabel();
+        ILOCOperand after = (full ? loop.exitLabel : guard);
+        ILOCOperand entry = (copies > 0 ? labels.get(0).get(loop.bodyLabel.id) : after);
+
+        List<ILOCInstruction> added = new ArrayList<ILOCInstruction>();
+        ILOCOperand start = (full ? entry : guard);
+        if (!full) {
+            // i + (k-1)*s < n  <=>  i < n - (k-1)*s, where the right side is
+            // a constant or is computed before entering the loop (after
+            // checking that it does not overflow)
+            long distance = (long)(copies - 1) * loop.step;
+            ILOCOperand adjusted = null;
+            if (loop.limitValue == null) {
+                long bound = (loop.step > 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE) + distance;
+                if (!fits(bound) || !fits(-distance)) {
+                    return false;
+                }
+                start = ILOCOperand.newAnonymousLabel();
+                ILOCOperand adjust = ILOCOperand.newAnonymousLabel();
+                added.add(new ILOCInstruction(ILOCInstruction.Form.LABEL,
+                            new ILOCOperand[] { start }));
+                addTest(added, (loop.step > 0 ? ILOCInstruction.Form.CMP_GE :
+                            ILOCInstruction.Form.CMP_LE), loop.limit, (int)bound,
+                        adjust, loop.headerLabel);
+                added.add(new ILOCInstruction(ILOCInstruction.Form.LABEL,
+                            new ILOCOperand[] { adjust }));
+                adjusted = ILOCOperand.newVirtualReg();
+                added.add(new ILOCInstruction(ILOCInstruction.Form.ADD_I, new ILOCOperand[] {
+                            loop.limit, ILOCOperand.newIntConstant((int)-distance), adjusted }));
+            } else if (!fits(loop.limitValue - distance)) {
+                return false;
+            }
+            visited.add(guard.id);
+            added.add(new ILOCInstruction(ILOCInstruction.Form.LABEL,
+                        new ILOCOperand[] { guard }, "unrolled loop"));
+            if (adjusted == null) {
+                addTest(added, loop.relation, loop.iv,
+                        (int)(loop.limitValue - distance), entry, loop.headerLabel);
+            } else {
+                ILOCOperand cond = ILOCOperand.newVirtualReg();
+                added.add(new ILOCInstruction(loop.relation,
+                            new ILOCOperand[] { loop.iv, adjusted, cond }));
+                added.add(new ILOCInstruction(ILOCInstruction.Form.CBR, new ILOCOperand[] {
+                            cond, ILOCOperand.newJumpLabel(entry.id),
+                            ILOCOperand.newJumpLabel(loop.headerLabel.id) }));
+            }
+        }
+        for (int c = 0; c < copies; c++) {
+            ILOCOperand next = (c + 1 < copies ? labels.get(c + 1).get(loop.bodyLabel.id) : after);
+            for (ILOCBasicBlock b : loop.body) {
+                for (ILOCInstruction insn : withExplicitJump(b)) {
+                    ILOCInstruction copy = copy(insn);
+                    for (int j = 0; j < copy.operands.length; j++) {
+                        ILOCOperand op = copy.operands[j];
+                        if (op.type != ILOCOperand.Type.JUMP_LABEL) {
+                            continue;
+                        }
+                        ILOCOperand label = (op.id == loop.headerLabel.id ? next :
+                                labels.get(c).get(op.id));
+                        assert(label != null);
+                        copy.operands[j] = ILOCOperand.newJumpLabel(label.id);
+                    }
+                    added.add(copy);
+                }
+            }
+        }
+
+        // enter the unrolled code instead of the original loop
+        List<ILOCInstruction> code = new ArrayList<ILOCInstruction>();
+        for (ILOCBasicBlock b : func.allBlocks) {
+            boolean inLoop = (b == loop.header || loop.body.contains(b));
+            if (full && inLoop) {
+                continue;
+            }
+            for (ILOCInstruction insn : withExplicitJump(b)) {
+                if (!inLoop && insn.form != ILOCInstruction.Form.LABEL) {
+                    for (int j = 0; j < insn.operands.length; j++) {
+                        ILOCOperand op = insn.operands[j];
+                        if (op.type == ILOCOperand.Type.JUMP_LABEL &&
+                                op.id == loop.headerLabel.id) {
+                            insn.operands[j] = ILOCOperand.newJumpLabel(start.id);
+                        }
+                    }
+                }
+                code.add(insn);
+            }
+        }
+        code.addAll(added);
+        func.setInstructions(code);
+        return true;
+    }
+
+    /**
+     * Append a test of a register against a constant that branches to one
+     * of two labels
+     */
+    private static void addTest(List<ILOCInstruction> code, ILOCInstruction.Form relation,
+            ILOCOperand reg, int value, ILOCOperand ifTrue, ILOCOperand ifFalse)
+    {
+        ILOCOperand constant = ILOCOperand.newVirtualReg();
+        ILOCOperand cond = ILOCOperand.newVirtualReg();
+        code.add(new ILOCInstruction(ILOCInstruction.Form.LOAD_I, new ILOCOperand[] {
+                    ILOCOperand.newIntConstant(value), constant }));
+        code.add(new ILOCInstruction(relation, new ILOCOperand[] { reg, constant, cond }));
+        code.add(new ILOCInstruction(ILOCInstruction.Form.CBR, new ILOCOperand[] {
+                    cond, ILOCOperand.newJumpLabel(ifTrue.id),
+                    ILOCOperand.newJumpLabel(ifFalse.id) }));
+    }
+
+    private static boolean fits(long value)
+    {
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Compute the number of iterations of a loop if the induction variable
+     * starts at a constant and the limit is a constant
+     * @return Trip count, or null if unknown or larger than
+     *         {@link #MAX_FULL_UNROLL}
+     */
+    private static Integer countTrips(CountedLoop loop)
+    {
+        if (loop.limitValue == null) {
+            return null;
+        }
+        Integer start = findInitialValue(loop);
+        if (start == null) {
+            return null;
+        }
+        long value = start;
+        for (int trips = 0; trips <= MAX_FULL_UNROLL; trips++) {
+            if (!holds(loop.relation, value, loop.limitValue)) {
+                return trips;
+            }
+            value += loop.step;
+        }
+        return null;
+    }
+
+    /**
+     * Find the constant that the induction variable holds on entry to the
+     * loop by following the (single) path into the header backwards
+     */
+    private static Integer findInitialValue(CountedLoop loop)
+    {
+        ILOCBasicBlock b = null;
+        for (ILOCBasicBlock p : loop.header.sources) {
+            if (p != loop.header && !loop.body.contains(p)) {
+                if (b != null) {
+                    return null;
+                }
+                b = p;
+            }
+        }
+        Set<ILOCBasicBlock> seen = new HashSet<ILOCBasicBlock>();
+        Map<Integer, Integer> constants = new HashMap<Integer, Integer>();
+        while (b != null && seen.add(b)) {
+            for (int i = b.instructions.size() - 1; i >= 0; i--) {
+                ILOCInstruction insn = b.instructions.get(i);
+                if (!insn.getWriteOperands().contains(loop.iv)) {
+                    continue;
+                }
+                if (insn.form == ILOCInstruction.Form.LOAD_I) {
+                    return insn.operands[0].intConstant;
+                }
+                if (insn.form == ILOCInstruction.Form.I2I) {
+                    // a copy of a constant loaded earlier in the same block
+                    for (int j = i - 1; j >= 0; j--) {
+                        ILOCInstruction def = b.instructions.get(j);
+                        if (def.getWriteOperands().contains(insn.operands[0])) {
+                            return (def.form == ILOCInstruction.Form.LOAD_I ?
+                                    def.operands[0].intConstant : null);
+                        }
+                    }
+                }
+                return null;
+            }
+            b = (b.sources.size() == 1 ? b.sources.get(0) : null);
+        }
+        return null;
+    }
+
+    private static boolean holds(ILOCInstruction.Form relation, long left, long right)
+    {
+        switch (relation) {
+        case CMP_LT:    return left < right;
+        case CMP_LE:    return left <= right;
+        case CMP_GT:    return left > right;
+        case CMP_GE:    return left >= right;
+        default:        return false;
+        }
+    }
+
+    /**
+     * Returns the comparison with its operands swapped (or null for
+     * comparisons that are not ordered)
+     */
+    private static ILOCInstruction.Form swap(ILOCInstruction.Form relation)
+    {
+        switch (relation) {
+        case CMP_LT:    return ILOCInstruction.Form.CMP_GT;
+        case CMP_LE:    return ILOCInstruction.Form.CMP_GE;
+        case CMP_GT:    return ILOCInstruction.Form.CMP_LT;
+        case CMP_GE:    return ILOCInstruction.Form.CMP_LE;
+        default:        return null;
+        }
+    }
+
+    /**
+     * Returns the negated comparison (or null for comparisons that are not
+     * ordered)
+     */
+    private static ILOCInstruction.Form negate(ILOCInstruction.Form relation)
+    {
+        switch (relation) {
+        case CMP_LT:    return ILOCInstruction.Form.CMP_GE;
+        case CMP_LE:    return ILOCInstruction.Form.CMP_GT;
+        case CMP_GT:    return ILOCInstruction.Form.CMP_LE;
+        case CMP_GE:    return ILOCInstruction.Form.CMP_LT;
+        default:        return null;
+        }
+    }
+
+    /**
+     * Checks for instructions without side effects that only write a
+     * virtual register
+     */
+    private static boolean isPure(ILOCInstruction insn)
+    {
+        switch (insn.form) {
+        case ADD:
+        case SUB:
+        case MULT:
+        case ADD_I:
+        case MULT_I:
+        case AND:
+        case OR:
+        case NOT:
+        case NEG:
+        case LOAD_I:
+        case I2I:
+        case CMP_LT:
+        case CMP_LE:
+        case CMP_EQ:
+        case CMP_GE:
+        case CMP_GT:
+        case CMP_NE:
+            return ILOCRegisterIndex.isVirtual(insn.getWriteOperand());
+        default:
+            return false;
+        }
+    }
+
+    private static boolean isReadBy(ILOCOperand reg, ILOCInstruction insn)
+    {
+        for (ILOCOperand op : insn.getReadOperands()) {
+            if (isRegister(op, reg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ILOCInstruction copy(ILOCInstruction insn)
+    {
+        try {
+            return (ILOCInstruction)insn.clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+}
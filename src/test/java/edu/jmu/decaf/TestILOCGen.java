@@ -2,6 +2,7 @@ package edu.jmu.decaf;
 
 import java.io.*;
 import java.time.*;
+import java.util.*;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -36,11 +37,13 @@ public class TestILOCGen extends TestCase
     private static class TimeoutTest implements Runnable
     {
         String text;
+        ILOCProcessor[] passes;
         int retVal;
 
-        TimeoutTest(String text)
+        TimeoutTest(String text, ILOCProcessor[] passes)
         {
             this.text = text;
+            this.passes = passes;
         }
 
         public int getReturnValue()
@@ -50,47 +53,62 @@ public class TestILOCGen extends TestCase
 
         public void run()
         {
-            StaticAnalysis.resetErrors();
-            ASTProgram program = null;
-            try {
-                program = (new MyDecafParser()).parse(
-                        (new MyDecafLexer()).lex(text));
-                program.traverse(new BuildParentLinks());
-                program.traverse(new BuildSymbolTables());
-                program.traverse(new MyDecafAnalysis());
-                String errors = StaticAnalysis.getErrorString();
-                if (errors.length() > 0) {
-                    throw new InvalidProgramException(errors);
-                }
-            } catch (IOException ex) {
-                assertTrue(false);
-            } catch (InvalidTokenException ex) {
-                assertTrue(false);
-            } catch (InvalidSyntaxException ex) {
-                assertTrue(false);
-            } catch (InvalidProgramException ex) {
-                assertTrue(false);
+            ILOCProgram program = generate(text);
+            for (ILOCProcessor pass : passes) {
+                pass.process(program);
             }
-            program.traverse(new AllocateSymbols());
-            ILOCGenerator codegen = new MyILOCGenerator();
-            program.traverse(codegen);
             ILOCInterpreter interp = new ILOCInterpreter();
-            interp.process(codegen.getProgram());
+            interp.process(program);
             retVal = interp.getReturnValue();
         }
     }
 
+    /**
+     * Parse, analyze, and generate ILOC for the given Decaf source code
+     * @param text Decaf source code
+     * @return Generated ILOC program
+     */
+    public static ILOCProgram generate(String text)
+    {
+        StaticAnalysis.resetErrors();
+        ASTProgram program = null;
+        try {
+            program = (new MyDecafParser()).parse(
+                    (new MyDecafLexer()).lex(text));
+            program.traverse(new BuildParentLinks());
+            program.traverse(new BuildSymbolTables());
+            program.traverse(new MyDecafAnalysis());
+            String errors = StaticAnalysis.getErrorString();
+            if (errors.length() > 0) {
+                throw new InvalidProgramException(errors);
+            }
+        } catch (IOException ex) {
+            assertTrue(false);
+        } catch (InvalidTokenException ex) {
+            assertTrue(false);
+        } catch (InvalidSyntaxException ex) {
+            assertTrue(false);
+        } catch (InvalidProgramException ex) {
+            assertTrue(false);
+        }
+        program.traverse(new AllocateSymbols());
+        ILOCGenerator codegen = new MyILOCGenerator();
+        program.traverse(codegen);
+        return codegen.getProgram();
+    }
+
     /**
      * Parse, analyze, and generate ILOC for the given Decaf source code. Also
      * runs the resulting ILOC in the interpreter and returns the result. If the
      * test takes longer than a second, it is interrupted and counted as a
      * failure.
      * @param text Decaf source code
+     * @param passes ILOC passes to run before interpretation
      * @return Integer program return value
      */
-    public static int runProgram(String text)
+    public static int runProgram(String text, ILOCProcessor... passes)
     {
-        TimeoutTest test = new TimeoutTest(text);
+        TimeoutTest test = new TimeoutTest(text, passes);
         Thread t = new Thread(test);
         Instant start = Instant.now();
         t.start();
@@ -115,6 +133,20 @@ public class TestILOCGen extends TestCase
         return runProgram("def int main() { return (" + expr + "); }");
     }
 
+    /**
+     * Runs a program through the pass pipelines for every optimization level
+     * and checks that they all produce the expected result
+     * @param expected Expected program return value
+     * @param text Decaf source code
+     */
+    public static void assertAllLevels(int expected, String text)
+    {
+        for (int level = 0; level <= ILOCPassManager.MAX_OPT_LEVEL; level++) {
+            assertEquals("-O" + level, expected,
+                    runProgram(text, ILOCPassManager.forOptLevel(level)));
+        }
+    }
+
     public void testExprInt() { assertEquals(7, runExpr("7")); }
     public void testExprAdd() { assertEquals(5, runExpr("2+3")); }
 
@@ -140,4 +172,971 @@ public class TestILOCGen extends TestCase
                 "def int add(int a, int b) { return a + b; } " +
                 "def int main() { return add(2,3); }")); }
 
+    public void testMultipleReturns() { assertEquals(4, runProgram(
+                "def int pick(int a) { " +
+                "  if (a < 3) { return 1; } " +
+                "  if (a < 6) { return 2; } " +
+                "  return 3; } " +
+                "def int main() { return pick(1) + pick(7); }")); }
+
+    public void testVoidCalls() { assertEquals(6, runProgram(
+                "int g; " +
+                "def void set(int a, int b) { g = a * b; } " +
+                "def void bump() { g = g + 3; } " +
+                "def int three() { return 3; } " +
+                "def int main() { set(2, three()); bump(); return g - 3 + 0 * three(); }")); }
+
+    public void testTailRecursion() { assertEquals(12502500, runProgram(
+                "def int sum(int n, int acc) { " +
+                "  if (n == 0) { return acc; } " +
+                "  return sum(n - 1, acc + n); } " +
+                "def int main() { return sum(5000, 0); }",
+                new EliminateTailCalls())); }
+
+    public void testTailCall() { assertEquals(6, runProgram(
+                "def int twice(int x) { return x + x; } " +
+                "def int wrap(int a, int b) { return twice(a + b); } " +
+                "def int main() { return wrap(1, 2); }",
+                new EliminateTailCalls())); }
+
+    public void testOptLevels() { assertAllLevels(5140,
+                "int g; " +
+                "def int sum(int n, int acc) { " +
+                "  if (n == 0) { return acc; } " +
+                "  return sum(n - 1, acc + n); } " +
+                "def int main() { " +
+                "  int i; i = 0; g = 0; " +
+                "  while (i < 10) { g = g + i; i = i + 1; } " +
+                "  return sum(100, g + g); }"); }
+
+    public void testFixpointGroup() {
+        ILOCPassManager pm = new ILOCPassManager();
+        pm.addFixpoint(3, new EliminateTailCalls());
+        assertEquals(5, runProgram(
+                "def int f(int n) { if (n > 4) { return n; } return f(n + 1); } " +
+                "def int main() { return f(0); }", pm));
+        assertEquals(1, pm.getStats().size());
+        assertEquals(2, pm.getStats().get(0).runs);
+    }
+
+    public void testOptLevel3() {
+        ILOCPassManager o2 = ILOCPassManager.forOptLevel(2);
+        ILOCPassManager o3 = ILOCPassManager.forOptLevel(3);
+        assertEquals(5040, runProgram(
+                "def int main() { " +
+                "  int i; int s; i = 0; s = 0; " +
+                "  while (i < 100) { if (i > 200) { s = s - 1; } s = s + i + 1; i = i + 1; } " +
+                "  return s - 10; }", o3));
+        assertEquals(o2.getStats().size() + 3, o3.getStats().size());
+        Set<String> names = new HashSet<String>();
+        for (ILOCPassManager.PassStats ps : o3.getStats()) {
+            assertTrue(ps.name, ps.runs >= 1);
+            assertTrue(ps.name, names.add(ps.name));
+        }
+        assertTrue(names.contains("SimplifyCFG #3"));
+        assertFalse(names.contains("SimplifyCFG"));
+    }
+
+    public void testConstantBranches() { assertAllLevels(27,
+                "int g; " +
+                "def int main() { " +
+                "  int a; int b; a = 2 + 3 * 4; " +
+                "  if (a > 10) { b = 1; } else { b = 2; } " +
+                "  while (false) { b = b + 1; } " +
+                "  if (true && (1 < 2)) { g = a * b; } " +
+                "  return g + a - 1; }"); }
+
+    public void testDeadCode() {
+        String text =
+                "int g; " +
+                "def void inc() { g = g + 1; } " +
+                "def int main() { " +
+                "  int a; g = 0; a = 5 * 7 - 2; " +
+                "  inc(); inc(); inc(); " +
+                "  return g; }";
+        assertAllLevels(3, text);
+
+        // once a is in a register, nothing reads the value computed for it
+        // (six instructions) or the return values of the calls (three copies)
+        ILOCProgram program = generate(text);
+        new PromoteLocals().process(program);
+        ILOCFunction main = program.getFunction("main");
+        int before = main.getInstructions().size();
+        new EliminateDeadCode().process(program);
+        assertEquals(before - 9, main.getInstructions().size());
+        for (ILOCInstruction insn : main.getInstructions()) {
+            assertTrue(insn.toString(), insn.form != ILOCInstruction.Form.MULT &&
+                    insn.form != ILOCInstruction.Form.SUB);
+        }
+        assertEquals(3, interpret(program));
+    }
+
+    public void testLocalValueNumbering() { assertAllLevels(52,
+                "int a[10]; " +
+                "def int f(int x, int y) { " +
+                "  a[x + y] = x * y + y * x; " +
+                "  return a[y + x] + (x * y) - (x + y) * 1; } " +
+                "def int main() { return f(3, 4) + f(2, 5); }"); }
+
+    public void testRecursiveRegisters() { assertAllLevels(55,
+                "def int f(int n) { if (n == 0) { return 0; } return n + f(n - 1); } " +
+                "def int main() { return f(10); }"); }
+
+    public void testSSARoundTrip() {
+        String text =
+                "int g; " +
+                "def int f(int n) { " +
+                "  int i; int s; i = 0; s = 0; " +
+                "  while (i < n) { if (i > 2) { s = s + i * 2; } else { s = s + 1; } i = i + 1; } " +
+                "  return s; } " +
+                "def int main() { g = f(6); return g + f(2); }";
+        assertEquals(29, runProgram(text, new ConvertToSSA(), new ConvertFromSSA()));
+        assertEquals(29, runProgram(text, new ConvertToSSA(false), new PropagateConstants(),
+                    new NumberLocalValues(), new EliminateDeadCode(), new ConvertFromSSA()));
+    }
+
+    /**
+     * Builds a loop that swaps two registers three times, then returns
+     * 10*a + b (starting from a=1, b=2). Each swap goes through a temporary,
+     * so after SSA construction and copy folding the loop header contains two
+     * phis that read each other (the "swap problem").
+     */
+    private static ILOCProgram buildSwapLoop()
+    {
+        ILOCProgram program = new ILOCProgram();
+        ILOCFunction main = new ILOCFunction(new Symbol("main",
+                    ASTNode.DataType.INT, new ArrayList<ASTNode.DataType>()));
+        program.functions.add(main);
+        ILOCOperand a = ILOCOperand.newVirtualReg();
+        ILOCOperand b = ILOCOperand.newVirtualReg();
+        ILOCOperand i = ILOCOperand.newVirtualReg();
+        ILOCOperand t = ILOCOperand.newVirtualReg();
+        ILOCOperand c = ILOCOperand.newVirtualReg();
+        ILOCOperand three = ILOCOperand.newVirtualReg();
+        ILOCOperand ten = ILOCOperand.newVirtualReg();
+        ILOCOperand head = ILOCOperand.newAnonymousLabel();
+        ILOCOperand body = ILOCOperand.newAnonymousLabel();
+        ILOCOperand exit = ILOCOperand.newAnonymousLabel();
+        emit(main, ILOCInstruction.Form.PUSH, ILOCOperand.REG_BP);
+        emit(main, ILOCInstruction.Form.I2I, ILOCOperand.REG_SP, ILOCOperand.REG_BP);
+        emit(main, ILOCInstruction.Form.LOAD_I, ILOCOperand.newIntConstant(1), a);
+        emit(main, ILOCInstruction.Form.LOAD_I, ILOCOperand.newIntConstant(2), b);
+        emit(main, ILOCInstruction.Form.LOAD_I, ILOCOperand.newIntConstant(0), i);
+        emit(main, ILOCInstruction.Form.LOAD_I, ILOCOperand.newIntConstant(3), three);
+        emit(main, ILOCInstruction.Form.LABEL, head);
+        emit(main, ILOCInstruction.Form.CMP_LT, i, three, c);
+        emit(main, ILOCInstruction.Form.CBR, c, body, exit);
+        emit(main, ILOCInstruction.Form.LABEL, body);
+        emit(main, ILOCInstruction.Form.I2I, a, t);
+        emit(main, ILOCInstruction.Form.I2I, b, a);
+        emit(main, ILOCInstruction.Form.I2I, t, b);
+        emit(main, ILOCInstruction.Form.ADD_I, i, ILOCOperand.newIntConstant(1), i);
+        emit(main, ILOCInstruction.Form.JUMP, head);
+        emit(main, ILOCInstruction.Form.LABEL, exit);
+        emit(main, ILOCInstruction.Form.LOAD_I, ILOCOperand.newIntConstant(10), ten);
+        emit(main, ILOCInstruction.Form.MULT, a, ten, t);
+        emit(main, ILOCInstruction.Form.ADD, t, b, t);
+        emit(main, ILOCInstruction.Form.I2I, t, ILOCOperand.REG_RET);
+        emit(main, ILOCInstruction.Form.I2I, ILOCOperand.REG_BP, ILOCOperand.REG_SP);
+        emit(main, ILOCInstruction.Form.POP, ILOCOperand.REG_BP);
+        emit(main, ILOCInstruction.Form.RETURN);
+        return program;
+    }
+
+    private static void emit(ILOCFunction func, ILOCInstruction.Form form,
+            ILOCOperand... operands)
+    {
+        func.addInstruction(new ILOCInstruction(form, operands));
+    }
+
+    private static int interpret(ILOCProgram program)
+    {
+        ILOCInterpreter interp = new ILOCInterpreter();
+        interp.process(program);
+        return interp.getReturnValue();
+    }
+
+    /**
+     * Run a program, check its result, and return its execution profile
+     */
+    private static ILOCProfile profile(ILOCProgram program, int expected)
+    {
+        ILOCProfile profile = new ILOCProfile();
+        ILOCInterpreter interp = new ILOCInterpreter();
+        interp.setProfile(profile);
+        interp.process(program);
+        assertEquals(expected, interp.getReturnValue());
+        return profile;
+    }
+
+    /**
+     * Run a pass on a profiled program and check that the result does not
+     * change and that fewer instructions of the given form (or fewer
+     * instructions in total, if it is null) are executed
+     * @return Profile after the pass
+     */
+    private static ILOCProfile assertPassReducesCount(ILOCProgram program, int expected,
+            ILOCProfile before, ILOCProcessor pass, ILOCInstruction.Form form)
+    {
+        pass.process(program);
+        ILOCProfile after = profile(program, expected);
+        if (form == null) {
+            assertTrue(after.getTotalCount() < before.getTotalCount());
+        } else {
+            assertTrue(form.toString(), after.getTotalCount(form) < before.getTotalCount(form));
+        }
+        return after;
+    }
+
+    public void testSSASwapProblem() {
+        assertEquals(21, interpret(buildSwapLoop()));
+
+        ILOCProgram program = buildSwapLoop();
+        new ConvertToSSA().process(program);
+        int phis = 0;
+        for (ILOCInstruction insn : program.functions.get(0).getInstructions()) {
+            if (insn.form == ILOCInstruction.Form.PHI) {
+                phis++;
+            }
+        }
+        assertEquals(3, phis);
+        new NumberLocalValues().process(program);
+        new EliminateDeadCode().process(program);
+        new ConvertFromSSA().process(program);
+        assertEquals(21, interpret(program));
+    }
+
+    public void testLoopNest() {
+        ILOCProgram program = generate(
+                "def int f(int n) { " +
+                "  int i; int j; int s; i = 0; s = 0; " +
+                "  while (i < n) { " +
+                "    j = 0; " +
+                "    while (j < i) { s = s + j; j = j + 1; } " +
+                "    i = i + 1; } " +
+                "  while (s > 100) { s = s - 100; } " +
+                "  return s; } " +
+                "def int main() { return f(5); }");
+        ILOCFunction f = program.getFunction("f");
+        ILOCDominators dom = new ILOCDominators(f);
+        ILOCLoops loops = new ILOCLoops(f, dom);
+        assertEquals(3, loops.getLoops().size());
+        assertEquals(2, loops.getTopLevelLoops().size());
+
+        int maxDepth = 0;
+        for (ILOCBasicBlock b : f.allBlocks) {
+            assertTrue(dom.dominates(f.getEntryBlock(), b));
+            maxDepth = Math.max(maxDepth, loops.getDepth(b));
+            ILOCLoops.Loop loop = loops.getLoopFor(b);
+            if (loop != null) {
+                assertTrue(dom.dominates(loop.header, b));
+                assertTrue(loop.contains(b));
+            }
+        }
+        assertEquals(2, maxDepth);
+        assertEquals(0, loops.getDepth(f.getEntryBlock()));
+    }
+
+    public void testAnalysisCache() {
+        ILOCProgram program = generate(
+                "def int f(int n) { int i; i = 0; while (i < n) { i = i + 1; } return i; } " +
+                "def int main() { return f(3); }");
+        ILOCFunction f = program.getFunction("f");
+        ILOCAnalysisManager analyses = new ILOCAnalysisManager();
+
+        // rebuilding the CFG must not duplicate blocks
+        f.getEntryBlock();
+        int blocks = f.allBlocks.size();
+        f.buildCFG();
+        assertEquals(blocks, f.allBlocks.size());
+
+        // results are cached until the CFG changes or they are invalidated
+        ILOCLoops loops = analyses.getLoops(f);
+        assertSame(loops, analyses.getLoops(f));
+        assertSame(analyses.getDominators(f), analyses.getDominators(f));
+        ILOCLiveness liveness = analyses.getLiveness(f);
+        analyses.invalidate(f, ILOCAnalysisManager.Analysis.LIVENESS);
+        assertNotSame(liveness, analyses.getLiveness(f));
+        assertSame(loops, analyses.getLoops(f));
+        f.setInstructions(new ArrayList<ILOCInstruction>(f.getInstructions()));
+        assertNotSame(loops, analyses.getLoops(f));
+        assertEquals(1, analyses.getLoops(f).getLoops().size());
+
+        // passes that only edit instructions keep the CFG
+        ILOCPassManager pm = new ILOCPassManager();
+        pm.add(new NumberLocalValues()).add(new EliminateDeadCode());
+        ILOCDominators dom = pm.getAnalysisManager().getDominators(f);
+        pm.process(program);
+        assertSame(dom, pm.getAnalysisManager().getDominators(f));
+        assertEquals(3, interpret(program));
+    }
+
+    public void testLinearScan() {
+        assertAllocates(new AllocateRegistersLinearScan(3), 3);
+        assertAllocates(new AllocateRegistersLinearScan(8), 8);
+    }
+
+    public void testGraphColoring() {
+        assertAllocates(new AllocateRegistersGraphColoring(3), 3);
+        assertAllocates(new AllocateRegistersGraphColoring(8), 8);
+    }
+
+    public void testFrameAllocation() {
+        ILOCProgram program = generate("def int main() { int a; a = 5; return a; }");
+        ILOCFunction main = program.getFunction("main");
+        assertEquals(-Symbol.WORD_SIZE, main.frameAllocation.operands[1].intConstant);
+
+        // new space resizes the prologue's allocation, not the first stack
+        // adjustment in the function
+        ILOCInstruction other = new ILOCInstruction(ILOCInstruction.Form.ADD_I,
+                new ILOCOperand[] { ILOCOperand.REG_SP, ILOCOperand.newIntConstant(0),
+                    ILOCOperand.REG_SP });
+        main.getInstructions().add(0, other);
+        assertEquals(-2 * Symbol.WORD_SIZE, main.allocateLocal(Symbol.WORD_SIZE));
+        assertEquals(0, other.operands[1].intConstant);
+        assertEquals(-2 * Symbol.WORD_SIZE, main.frameAllocation.operands[1].intConstant);
+        assertEquals(5, interpret(program));
+    }
+
+    /**
+     * Runs a register allocator after the pass pipeline of every optimization
+     * level and checks both the results and the registers that remain
+     * @param allocator Register allocation pass
+     * @param k Number of physical registers
+     */
+    private static void assertAllocates(ILOCProcessor allocator, int k)
+    {
+        String[] programs = {
+                "int g; " +
+                "def int sum(int n, int acc) { " +
+                "  if (n == 0) { return acc; } " +
+                "  return sum(n - 1, acc + n); } " +
+                "def int main() { " +
+                "  int i; i = 0; g = 0; " +
+                "  while (i < 10) { g = g + i; i = i + 1; } " +
+                "  return sum(100, g + g); }",
+                "int a[4]; " +
+                "def int f(int x, int y) { " +
+                "  a[x - y] = (x + 1) * (y + 2) - (x + 3) * (y + 4) + (x + 5) * (y + 6); " +
+                "  return a[x - y] + ((x * 2) + (y * 3)) * ((x * 4) + (y * 5)); } " +
+                "def int main() { return f(3, 1) + f(2, 2); }" };
+        int[] expected = { 5140, 409 };
+        for (int p = 0; p < programs.length; p++) {
+            for (int level = 0; level <= ILOCPassManager.MAX_OPT_LEVEL; level++) {
+                String context = "-O" + level + " k=" + k;
+                ILOCProgram program = generate(programs[p]);
+                ILOCPassManager.forOptLevel(level).process(program);
+                int unallocated = interpret(program);
+                assertEquals(context, expected[p], unallocated);
+
+                // physical registers share the virtual register type (with
+                // IDs below k), so only IDs of k and above are known to be
+                // left over from before allocation
+                Set<Integer> virtuals = new HashSet<Integer>();
+                for (ILOCFunction func : program.functions) {
+                    for (ILOCInstruction insn : func.getInstructions()) {
+                        for (ILOCOperand op : insn.operands) {
+                            if (ILOCRegisterIndex.isVirtual(op) && op.id >= k) {
+                                virtuals.add(op.id);
+                            }
+                        }
+                    }
+                }
+                assertFalse(context, virtuals.isEmpty());
+
+                ILOCPassManager pm = new ILOCPassManager();
+                pm.add(allocator);
+                pm.process(program);
+                for (ILOCFunction func : program.functions) {
+                    for (ILOCInstruction insn : func.getInstructions()) {
+                        for (ILOCOperand op : insn.operands) {
+                            if (ILOCRegisterIndex.isVirtual(op)) {
+                                assertFalse(context + ": " + insn,
+                                        virtuals.contains(op.id));
+                                assertTrue(context + ": " + insn, op.id < k);
+                            }
+                        }
+                    }
+                }
+                assertEquals(context, unallocated, interpret(program));
+            }
+        }
+    }
+
+    public void testLoopInvariants() {
+        String text =
+                "int a[10]; int g; int h; " +
+                "def void bump() { h = h + 1; } " +
+                "def int main() { " +
+                "  int i; int j; int s; i = 0; s = 0; g = 3; h = 0; " +
+                "  while (i < 10) { " +
+                "    j = 0; " +
+                "    while (j < i) { a[j] = a[j] + g * 2 + 5; j = j + 1; } " +
+                "    bump(); s = s + h; i = i + 1; } " +
+                "  return s + a[0] + a[8]; }";
+        assertAllLevels(165, text);
+
+        ILOCProgram program = generate(text);
+        new HoistLoopInvariants().process(program);
+        ILOCFunction main = program.getFunction("main");
+        ILOCLoops loops = new ILOCLoops(main);
+        assertEquals(2, loops.getLoops().size());
+        for (ILOCLoops.Loop loop : loops.getLoops()) {
+            assertNotNull(loop.getPreheader());
+        }
+        int constants = 0;
+        int globalLoads = 0;
+        for (ILOCBasicBlock b : main.allBlocks) {
+            for (ILOCInstruction insn : b.instructions) {
+                if (loops.getDepth(b) > 0 && insn.form == ILOCInstruction.Form.LOAD_I) {
+                    constants++;
+                }
+                if (loops.getDepth(b) > 0 && insn.form == ILOCInstruction.Form.LOAD_AI &&
+                        insn.operands[0].type != ILOCOperand.Type.BASE_REG) {
+                    globalLoads++;
+                }
+            }
+        }
+        assertEquals(0, constants);
+        assertEquals(2, globalLoads);   // the call may write g and h
+        assertEquals(165, interpret(program));
+    }
+
+    public void testStrengthReduction() {
+        String text =
+                "int a[200]; " +
+                "def int fill(int n, int k) { " +
+                "  int i; int j; i = 0; " +
+                "  while (i < n) { " +
+                "    j = 0; " +
+                "    while (j < k) { a[i * k + j] = i * j + i * k; j = j + 1; } " +
+                "    i = i + 1; } " +
+                "  return 0; } " +
+                "def int main() { " +
+                "  int i; int s; fill(10, 20); s = 0; i = 0; " +
+                "  while (i < 200) { s = s + a[i] + a[i + 1] * 3; i = i + 2; } " +
+                "  return s + i; }";
+        assertAllLevels(53750, text);
+
+        ILOCProgram program = generate(text);
+        new HoistLoopInvariants().process(program);
+        new ReduceStrength().process(program);
+        assertEquals(0, countInLoops(program.getFunction("fill"), 2, ILOCInstruction.Form.MULT));
+        assertEquals(0, countInLoops(program.getFunction("main"), 1, ILOCInstruction.Form.MULT_I));
+        assertEquals(53750, interpret(program));
+
+        // 4*n wraps around, so i < n must not become 4*i < 4*n
+        assertAllLevels(1705032704,
+                "def int f(int n) { " +
+                "  int i; int c; i = 0; c = 0; " +
+                "  while (i < n) { c = c + i * 4; i = i + 100000000; } " +
+                "  return c; } " +
+                "def int main() { return f(600000000); }");
+        assertAllLevels(1705032704,
+                "def int main() { " +
+                "  int i; int c; i = 0; c = 0; " +
+                "  while (i < 600000000) { c = c + i * 4; i = i + 100000000; } " +
+                "  return c; }");
+    }
+
+    private static int countInLoops(ILOCFunction func, int depth, ILOCInstruction.Form form)
+    {
+        ILOCLoops loops = new ILOCLoops(func);
+        int count = 0;
+        for (ILOCBasicBlock b : func.allBlocks) {
+            for (ILOCInstruction insn : b.instructions) {
+                if (loops.getDepth(b) >= depth && insn.form == form) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public void testPeepholePatterns() {
+        ILOCOperand a = ILOCOperand.newVirtualReg();
+        ILOCOperand b = ILOCOperand.newVirtualReg();
+        ILOCOperand l = ILOCOperand.newAnonymousLabel();
+        ILOCOperand zero = ILOCOperand.newIntConstant(0);
+        ILOCOperand one = ILOCOperand.newIntConstant(1);
+        ILOCOperand five = ILOCOperand.newIntConstant(5);
+
+        assertForms(peephole(OptimizePeephole.JUMP_TO_NEXT,
+                    insn(ILOCInstruction.Form.JUMP, l), insn(ILOCInstruction.Form.LABEL, l)),
+                ILOCInstruction.Form.LABEL);
+        assertForms(peephole(OptimizePeephole.UNREACHABLE,
+                    insn(ILOCInstruction.Form.JUMP, l), insn(ILOCInstruction.Form.I2I, a, b),
+                    insn(ILOCInstruction.Form.NOP), insn(ILOCInstruction.Form.LABEL, l)),
+                ILOCInstruction.Form.JUMP, ILOCInstruction.Form.LABEL);
+        assertForms(peephole(OptimizePeephole.BRANCH_TO_SAME,
+                    insn(ILOCInstruction.Form.CBR, a, l, l)),
+                ILOCInstruction.Form.JUMP);
+        assertForms(peephole(OptimizePeephole.BRANCH_TO_SAME,
+                    insn(ILOCInstruction.Form.CBR_LT, a, b, l, l)),
+                ILOCInstruction.Form.JUMP);
+        assertForms(peephole(OptimizePeephole.SELF_COPY,
+                    insn(ILOCInstruction.Form.I2I, a, a), insn(ILOCInstruction.Form.I2I, a, b)),
+                ILOCInstruction.Form.I2I);
+        assertForms(peephole(OptimizePeephole.COPY_BACK,
+                    insn(ILOCInstruction.Form.I2I, a, b), insn(ILOCInstruction.Form.I2I, b, a)),
+                ILOCInstruction.Form.I2I);
+        assertForms(peephole(OptimizePeephole.ADD_ZERO,
+                    insn(ILOCInstruction.Form.ADD_I, a, zero, b),
+                    insn(ILOCInstruction.Form.ADD_I, ILOCOperand.REG_SP, zero, ILOCOperand.REG_SP)),
+                ILOCInstruction.Form.I2I, ILOCInstruction.Form.ADD_I);
+        assertForms(peephole(OptimizePeephole.MULT_IDENTITY,
+                    insn(ILOCInstruction.Form.MULT_I, a, one, b),
+                    insn(ILOCInstruction.Form.MULT_I, a, zero, b)),
+                ILOCInstruction.Form.I2I, ILOCInstruction.Form.LOAD_I);
+        assertForms(peephole(OptimizePeephole.FOLD_IMMEDIATE,
+                    insn(ILOCInstruction.Form.LOAD_I, five, a),
+                    insn(ILOCInstruction.Form.SUB, b, a, b)),
+                ILOCInstruction.Form.LOAD_I, ILOCInstruction.Form.ADD_I);
+        assertForms(peephole(OptimizePeephole.FOLD_IMMEDIATE,
+                    insn(ILOCInstruction.Form.LOAD_I, five, a),
+                    insn(ILOCInstruction.Form.SUB, a, b, b)),
+                ILOCInstruction.Form.LOAD_I, ILOCInstruction.Form.SUB);
+        assertForms(peephole(OptimizePeephole.PUSH_POP,
+                    insn(ILOCInstruction.Form.PUSH, a), insn(ILOCInstruction.Form.POP, b)),
+                ILOCInstruction.Form.I2I);
+        assertForms(peephole(OptimizePeephole.STORE_LOAD,
+                    insn(ILOCInstruction.Form.STORE_AI, a, ILOCOperand.REG_BP, five),
+                    insn(ILOCInstruction.Form.LOAD_AI, ILOCOperand.REG_BP, five, b)),
+                ILOCInstruction.Form.STORE_AI, ILOCInstruction.Form.I2I);
+
+        // rewrites combine with earlier instructions
+        assertForms(new OptimizePeephole().optimize(Arrays.asList(
+                    insn(ILOCInstruction.Form.PUSH, a), insn(ILOCInstruction.Form.LOAD_I, zero, b),
+                    insn(ILOCInstruction.Form.ADD, a, b, a), insn(ILOCInstruction.Form.POP, a),
+                    insn(ILOCInstruction.Form.JUMP, l), insn(ILOCInstruction.Form.LABEL, l))),
+                ILOCInstruction.Form.PUSH, ILOCInstruction.Form.LOAD_I,
+                ILOCInstruction.Form.POP, ILOCInstruction.Form.LABEL);
+
+        // every return of a multi-return function jumps to the epilogue
+        String text = "def int f(int x) { if (x < 3) { return 1; } return x + 0 * x; } " +
+                "def int main() { return f(2) + f(7); }";
+        assertAllLevels(8, text);
+        ILOCProgram program = generate(text);
+        new OptimizePeephole().process(program);
+        assertEquals(8, interpret(program));
+        List<ILOCInstruction> code = program.getFunction("f").getInstructions();
+        for (int i = 0; i + 1 < code.size(); i++) {
+            assertFalse(OptimizePeephole.JUMP_TO_NEXT.matches(code, i));
+        }
+    }
+
+    private static ILOCInstruction insn(ILOCInstruction.Form form, ILOCOperand... operands)
+    {
+        return new ILOCInstruction(form, operands);
+    }
+
+    private static List<ILOCInstruction> peephole(OptimizePeephole.Pattern pattern,
+            ILOCInstruction... code)
+    {
+        return new OptimizePeephole(pattern).optimize(Arrays.asList(code));
+    }
+
+    private static void assertForms(List<ILOCInstruction> code,
+            ILOCInstruction.Form... forms)
+    {
+        assertEquals(forms.length, code.size());
+        for (int i = 0; i < forms.length; i++) {
+            assertEquals(forms[i], code.get(i).form);
+        }
+    }
+
+    public void testSimplifyCFG() {
+        String text =
+                "def int f(int x) { " +
+                "  if (x < 3) { if (x < 1) { return 1; } else { return 2; } } " +
+                "  while (x > 10) { if (x > 20) { x = x - 7; } else { x = x - 1; } } " +
+                "  return x; } " +
+                "def int main() { return f(0) + f(2) * 10 + f(30) * 100; }";
+        assertAllLevels(1021, text);
+
+        ILOCProgram program = generate(text);
+        ILOCFunction f = program.getFunction("f");
+        f.buildCFG();
+        int blocksBefore = f.allBlocks.size();
+        new SimplifyCFG().process(program);
+        assertEquals(1021, interpret(program));
+        f.buildCFG();
+        assertTrue(f.allBlocks.size() < blocksBefore);
+        for (ILOCBasicBlock b : f.allBlocks) {
+            assertTrue(b == f.entryBlock || !b.sources.isEmpty());
+            int work = 0;
+            for (ILOCInstruction insn : b.instructions) {
+                if (insn.form != ILOCInstruction.Form.LABEL &&
+                        insn.form != ILOCInstruction.Form.JUMP) {
+                    work++;
+                }
+            }
+            assertTrue(work > 0);
+            if (b.targets.size() == 1) {
+                assertTrue(b.targets.get(0).sources.size() > 1);
+            }
+        }
+    }
+
+    public void testBlockLayout() {
+        String text =
+                "def int main() { " +
+                "  int i; int j; int s; i = 0; s = 0; " +
+                "  while (i < 20) { " +
+                "    j = 0; " +
+                "    while (j < i) { if (j < 5) { s = s + j; } else { s = s - 1; } j = j + 1; } " +
+                "    i = i + 1; } " +
+                "  return s; }";
+        assertAllLevels(55, text);
+
+        ILOCProgram program = generate(text);
+        new SimplifyCFG().process(program);
+        ILOCProfile before = profile(program, 55);
+
+        // every instruction of a block (labels included) has its count
+        ILOCFunction main = program.getFunction("main");
+        main.getEntryBlock();
+        for (ILOCBasicBlock b : main.allBlocks) {
+            for (ILOCInstruction insn : b.instructions) {
+                assertEquals(insn.toString(), before.getCount(b.instructions.get(0)),
+                        before.getCount(insn));
+            }
+        }
+
+        ILOCProfile after = assertPassReducesCount(program, 55, before,
+                new LayoutBlocks(before), ILOCInstruction.Form.JUMP);
+        assertTrue(after.getTotalCount() < before.getTotalCount());
+
+        // static estimates (without a profile) also help
+        ILOCProgram estimated = generate(text);
+        new SimplifyCFG().process(estimated);
+        assertPassReducesCount(estimated, 55, profile(estimated, 55),
+                new LayoutBlocks(), ILOCInstruction.Form.JUMP);
+
+        // training runs of nonterminating programs stop at the step limit
+        ILOCProgram forever = generate(
+                "def int main() { int i; i = 0; while (true) { i = i + 1; } return i; }");
+        ILOCProfile partial = new ILOCProfile();
+        ILOCInterpreter interp = new ILOCInterpreter();
+        interp.setProfile(partial);
+        interp.setStepLimit(1000);
+        interp.process(forever);
+        assertTrue(interp.isStopped());
+        assertTrue(partial.getTotalCount() > 0 && partial.getTotalCount() <= 1000);
+        new LayoutBlocks(partial).process(forever);
+    }
+
+    public void testInlining() {
+        String text =
+                "int a[10]; " +
+                "def int get(int i) { return a[i]; } " +
+                "def void set(int i, int v) { a[i] = v; } " +
+                "def int sq(int x) { int y; y = x * x; return y; } " +
+                "def int main() { " +
+                "  int i; int s; s = 0; i = 0; " +
+                "  while (i < 10) { set(i, sq(i) + 1); i = i + 1; } " +
+                "  i = 0; " +
+                "  while (i < 10) { s = s + get(i); i = i + 1; } " +
+                "  return s; }";
+        assertAllLevels(295, text);
+
+        ILOCProgram program = generate(text);
+        InlineFunctions inliner = new InlineFunctions();
+        assertPassReducesCount(program, 295, profile(program, 295), inliner, null);
+        assertEquals(3, inliner.getInlinedCount());
+        for (ILOCInstruction insn : program.getFunction("main").getInstructions()) {
+            assertTrue(insn.form != ILOCInstruction.Form.CALL);
+        }
+    }
+
+    public void testPromoteLocals() {
+        String text =
+                "def int f(int n) { int i; int s; int u; " +
+                "  i = 0; s = 0; u = 1; " +
+                "  while (i < n) { s = s + u; u = i; i = i + 1; } " +
+                "  return s; } " +
+                "def int main() { return f(10) + f(3); }";
+        assertAllLevels(39, text);
+
+        ILOCProgram program = generate(text);
+        PromoteLocals promoter = new PromoteLocals();
+        promoter.process(program);
+        assertEquals(4, promoter.getPromotedCount());
+        ILOCFunction f = program.getFunction("f");
+        assertEquals(0, f.localSize);
+        int loads = 0;
+        for (ILOCInstruction insn : f.getInstructions()) {
+            assertTrue(insn.form != ILOCInstruction.Form.STORE_AI);
+            if (insn.form == ILOCInstruction.Form.LOAD_AI) {
+                loads++;
+            }
+        }
+        assertEquals(1, loads);     // parameter n, once
+        assertEquals(39, interpret(program));
+    }
+
+    public void testRedundantAccesses() {
+        String text =
+                "int g; int h; int a[4]; " +
+                "def int main() { " +
+                "  g = 1; g = 2; h = g + g; " +
+                "  a[0] = 5; a[1] = h; " +
+                "  g = a[0] + g; " +
+                "  return g + h + a[1]; }";
+        assertAllLevels(15, text);
+
+        ILOCProgram program = generate(text);
+        EliminateRedundantAccesses pass = new EliminateRedundantAccesses();
+        pass.process(program);
+        assertEquals(8, pass.getRemovedCount());
+        int loads = 0;
+        int stores = 0;
+        for (ILOCInstruction insn : program.getFunction("main").getInstructions()) {
+            if (insn.form == ILOCInstruction.Form.LOAD_AI) {
+                loads++;
+            } else if (insn.form == ILOCInstruction.Form.STORE_AI) {
+                stores++;
+            }
+        }
+        assertEquals(0, loads);     // every scalar read is forwarded
+        assertEquals(2, stores);    // g = 1 and g = 2 are overwritten
+        assertEquals(15, interpret(program));
+    }
+
+    public void testPartialRedundancy() {
+        String text =
+                "def int main() { " +
+                "  int a; int b; int x; int y; int i; " +
+                "  x = 0; i = 0; b = 3; " +
+                "  while (i < 10) { " +
+                "    a = i; " +
+                "    if (i < 5) { x = x + a * b; } " +
+                "    y = a * b; x = x + y; i = i + 1; } " +
+                "  return x; }";
+        assertAllLevels(165, text);
+
+        ILOCProgram program = generate(text);
+        new SimplifyCFG().process(program);
+        new PromoteLocals().process(program);
+        new NumberLocalValues().process(program);
+        ILOCProfile before = profile(program, 165);
+
+        // a * b moves onto the path that skips the if
+        EliminatePartialRedundancy pre = new EliminatePartialRedundancy();
+        ILOCProfile after = assertPassReducesCount(program, 165, before, pre,
+                ILOCInstruction.Form.MULT);
+        assertEquals(1, pre.getDeletedCount());
+        assertEquals(15, before.getTotalCount(ILOCInstruction.Form.MULT));
+        assertEquals(10, after.getTotalCount(ILOCInstruction.Form.MULT));
+
+        // functions where nothing moves are left alone (edges are not split)
+        ILOCProgram unchanged = generate(
+                "def int main() { int a; int x; a = 2; x = 0; " +
+                "  if (a < 3) { x = a * a; } " +
+                "  while (x < 9) { x = x + 1; } return x; }");
+        new PromoteLocals().process(unchanged);
+        String code = unchanged.toString();
+        pre = new EliminatePartialRedundancy();
+        pre.process(unchanged);
+        assertEquals(0, pre.getDeletedCount());
+        assertEquals(code, unchanged.toString());
+    }
+
+    public void testLoopUnrolling() {
+        String text =
+                "def int sum(int n) { " +
+                "  int i; int s; " +
+                "  i = 0; s = 0; " +
+                "  while (i < n) { s = s + i * i; i = i + 1; } " +
+                "  return s; } " +
+                "def int main() { " +
+                "  int i; int p; " +
+                "  i = 1; p = 1; " +
+                "  while (i <= 5) { p = p * 2 + i; i = i + 1; } " +
+                "  return p + sum(10) + sum(3) + sum(0); }";
+        assertAllLevels(379, text);
+
+        ILOCProgram program = generate(text);
+        new SimplifyCFG().process(program);
+        new PromoteLocals().process(program);
+        new NumberLocalValues().process(program);
+        ILOCProfile before = profile(program, 379);
+
+        // the loop in main runs five times and is unrolled completely; the
+        // one in sum is unrolled by four with a remainder loop (and checks
+        // n once per call before computing n - 3)
+        UnrollLoops unroll = new UnrollLoops();
+        ILOCProfile after = assertPassReducesCount(program, 379, before,
+                new ILOCPassManager().add(unroll).add(new SimplifyCFG()),
+                ILOCInstruction.Form.CBR);
+        assertEquals(2, unroll.getUnrolledCount());
+        assertTrue(program.getFunction("main").toString().indexOf("cbr") < 0);
+        assertEquals(22, before.getTotalCount(ILOCInstruction.Form.CBR));
+        assertEquals(16, after.getTotalCount(ILOCInstruction.Form.CBR));
+        assertTrue(after.getTotalCount() < before.getTotalCount());
+
+        // loops that cannot be unrolled (here, the step is not constant)
+        // leave the code unchanged
+        ILOCProgram unchanged = generate(
+                "def int main() { int i; int s; i = 1; s = 0; " +
+                "  while (i < 100) { if (s < 5) { s = s + 1; } i = i + s; } " +
+                "  return i; }");
+        new PromoteLocals().process(unchanged);
+        String code = unchanged.toString();
+        unroll = new UnrollLoops();
+        unroll.process(unchanged);
+        assertEquals(0, unroll.getUnrolledCount());
+        assertEquals(code, unchanged.toString());
+
+        // i + 3*s must not wrap around near the ends of the int range
+        String edges =
+                "def int up(int i, int n) { int c; c = 0; " +
+                "  while (i < n) { c = c + 1; i = i + 1; } return c; } " +
+                "def int down(int i, int n) { int c; c = 0; " +
+                "  while (i > n) { c = c + 1; i = i - 1; } return c; } " +
+                "def int main() { " +
+                "  return up(2147483641, 2147483647) * 1000 + " +
+                "    up(0 - 2147483647 - 1, 0 - 2147483647) * 100 + " +
+                "    down(0 - 2147483642, 0 - 2147483647 - 1) * 10 + " +
+                "    down(2147483647, 2147483646); }";
+        ILOCProgram bounded = generate(edges);
+        new SimplifyCFG().process(bounded);
+        new PromoteLocals().process(bounded);
+        new NumberLocalValues().process(bounded);
+        unroll = new UnrollLoops();
+        unroll.process(bounded);
+        assertEquals(2, unroll.getUnrolledCount());
+        ILOCInterpreter interp = new ILOCInterpreter();
+        interp.setStepLimit(10000);
+        interp.process(bounded);
+        assertFalse(interp.isStopped());
+        assertEquals(6161, interp.getReturnValue());
+        assertAllLevels(6161, edges);
+        assertAllLevels(6,
+                "def int f(int n) { int i; int c; i = n - 6; c = 0; " +
+                "  while (i < n) { c = c + 1; i = i + 1; } return c; } " +
+                "def int main() { return f(2147483647); }");
+    }
+
+    public void testLoopRotation() {
+        String text =
+                "def int main() { " +
+                "  int i; int j; int s; " +
+                "  i = 0; s = 0; " +
+                "  while (i < 10) { " +
+                "    j = 0; " +
+                "    while (j < i) { s = s + j; j = j + 1; } " +
+                "    i = i + 1; } " +
+                "  return s; }";
+        assertAllLevels(120, text);
+
+        ILOCProgram program = generate(text);
+        new SimplifyCFG().process(program);
+        ILOCProfile before = profile(program, 120);
+
+        // both back edges branch conditionally instead of jumping to the guard
+        RotateLoops rotate = new RotateLoops();
+        ILOCProfile after = assertPassReducesCount(program, 120, before, rotate,
+                ILOCInstruction.Form.JUMP);
+        assertEquals(2, rotate.getRotatedCount());
+        assertEquals(before.getTotalCount(ILOCInstruction.Form.CBR),
+                after.getTotalCount(ILOCInstruction.Form.CBR));
+        assertEquals(before.getTotalCount(ILOCInstruction.Form.JUMP) - 55,
+                after.getTotalCount(ILOCInstruction.Form.JUMP));
+    }
+
+    public void testShortCircuit() {
+        // the result encodes the number of calls to check()
+        String text =
+                "int calls; " +
+                "def bool check(int x) { calls = calls + 1; return x > 2; } " +
+                "def int main() { " +
+                "  int i; int n; bool b; " +
+                "  i = 0; n = 0; calls = 0; " +
+                "  while (i < 10 && !(i == 7 || check(i) && false)) { " +
+                "    if (i < 3 || check(i)) { n = n + 1; } " +
+                "    if (!(i > 4) && !check(i)) { n = n + 10; } " +
+                "    i = i + 1; } " +
+                "  b = i > 5 || check(100); " +
+                "  if (b && true) { n = n + 100; } " +
+                "  b = false && check(1); " +
+                "  if (b) { n = n + 1000; } else { } " +
+                "  return n * 100 + calls; }";
+        assertAllLevels(13716, text);
+
+        // conditions never compute the value of && or ||
+        for (ILOCInstruction insn : generate(text).getFunction("main").getInstructions()) {
+            assertTrue(insn.form != ILOCInstruction.Form.AND);
+            assertTrue(insn.form != ILOCInstruction.Form.OR);
+        }
+
+        // != in conditions and in value contexts
+        assertAllLevels(15,
+                "def int main() { " +
+                "  int i; int n; bool b; " +
+                "  i = 0; n = 0; " +
+                "  while (i != 5 || n != 15) { n = n + 3; i = i + 1; } " +
+                "  b = n != 15; " +
+                "  if (b) { n = n + 100; } " +
+                "  return n; }");
+    }
+
+    public void testFusedBranches() {
+        String text =
+                "def int main() { " +
+                "  int i; int n; " +
+                "  i = 0; n = 0; " +
+                "  while (i != 12) { " +
+                "    if (i < 3) { n = n + 1; } " +
+                "    if (i <= 4) { n = n + 10; } " +
+                "    if (i == 5) { n = n + 100; } " +
+                "    if (i >= 10) { n = n + 1000; } " +
+                "    if (i > 10) { n = n + 10000; } " +
+                "    i = i + 1; } " +
+                "  return n; }";
+        assertAllLevels(12153, text);
+
+        ILOCProgram program = generate(text);
+        ILOCProfile before = profile(program, 12153);
+
+        // every comparison only feeds the branch after it
+        FuseCompareBranches fuse = new FuseCompareBranches();
+        ILOCProfile after = assertPassReducesCount(program, 12153, before, fuse, null);
+        assertEquals(6, fuse.getFusedCount());
+        long compares = 0;
+        for (ILOCInstruction.Form form : new ILOCInstruction.Form[] {
+                    ILOCInstruction.Form.CMP_LT, ILOCInstruction.Form.CMP_LE,
+                    ILOCInstruction.Form.CMP_EQ, ILOCInstruction.Form.CMP_GE,
+                    ILOCInstruction.Form.CMP_GT, ILOCInstruction.Form.CMP_NE }) {
+            compares += before.getTotalCount(form);
+            assertEquals(0, after.getTotalCount(form));
+        }
+        assertEquals(before.getTotalCount(ILOCInstruction.Form.CBR), compares);
+        assertEquals(before.getTotalCount() - compares, after.getTotalCount());
+
+        // every pass handles the fused forms like cbr
+        for (int level = 1; level <= ILOCPassManager.MAX_OPT_LEVEL; level++) {
+            program = generate(text);
+            fuse.process(program);
+            new ConvertToSSA().process(program);
+            new ConvertFromSSA().process(program);
+            ILOCPassManager.forOptLevel(level).process(program);
+            assertEquals("-O" + level, 12153, interpret(program));
+        }
+        program = generate("def int main() { int i; int s; int n; i = 0; s = 0; n = 5; " +
+                "  while (i < 5) { s = s + i; i = i + 1; } " +
+                "  if (n > 100) { s = s + 1; } return s; }");
+        new SimplifyCFG().process(program);
+        new PromoteLocals().process(program);
+        new NumberLocalValues().process(program);
+        fuse.process(program);
+        UnrollLoops unroll = new UnrollLoops();
+        unroll.process(program);
+        assertEquals(1, unroll.getUnrolledCount());
+        new PropagateConstants().process(program);
+        new SimplifyCFG().process(program);
+        assertTrue(program.toString().indexOf("cbr") < 0);
+        assertEquals(10, interpret(program));
+    }
+
 }